@@ -0,0 +1,368 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Aging buckets and the recommendation rules evaluated on them. Definitions are read once, from the
+ * JSON file named by -Dinventory.agingSchemes, or else DEFAULT_SCHEMES (the original 30/60/90 days):
+ *
+ * <pre>
+ * {"schemes": [{
+ *   "name": "grocery",
+ *   "buckets": [{"label": "Fresh", "maxAge": 7, "risk": "Low"}, {"label": "Stale", "maxAge": 21},
+ *               {"label": "Expired", "risk": "Critical"}],
+ *   "categoryMaxAges": {"Frozen": [30, 90]},
+ *   "rules": [{"when": "count", "buckets": ["Expired"], "above": 0, "message": "{count} items expired"},
+ *             {"when": "categoryCount", "buckets": ["Stale", "Expired"], "above": 5, "message": "{category}: {count}"},
+ *             {"when": "valueShare", "buckets": ["Expired"], "above": 0.1, "message": "{share} of value expired"}],
+ *   "otherwise": "Nothing to report"
+ * }]}
+ * </pre>
+ *
+ * A bucket holds ages up to its maxAge; the last one has none and takes everything older. A category
+ * listed under categoryMaxAges uses its own limits for the same buckets. Risk levels default to an
+ * even spread from Low to Critical and follow the default limits whatever the category. A rule's
+ * buckets default to the last one; "above" is a count, or for valueShare a fraction of total value.
+ *
+ * Each set of limits compiles to a byte table indexed by age in days, so placing an item is one array
+ * read. The first scheme drives the report, risk levels and KPIs, whose critical figures are its last
+ * bucket, per-category limits included, and are labelled with its name; the others are tallied in the same pass and reported alongside by POST /analyze and
+ * snapshot summaries.
+ */
+class AgingScheme {
+    static final String DEFAULT_SCHEMES = "{\"schemes\": [{"
+        + "\"name\": \"default\","
+        + "\"buckets\": ["
+        + "  {\"label\": \"Fresh (0-30 days)\", \"maxAge\": 30},"
+        + "  {\"label\": \"Moderate (31-60 days)\", \"maxAge\": 60},"
+        + "  {\"label\": \"Aging (61-90 days)\", \"maxAge\": 90},"
+        + "  {\"label\": \"Critical (>90 days)\"}],"
+        + "\"rules\": ["
+        + "  {\"when\": \"count\", \"buckets\": [\"Critical (>90 days)\"], \"above\": 0,"
+        + "   \"message\": \"🚨 URGENT: {count} items are over 90 days old. Consider liquidation or promotional pricing.\"},"
+        + "  {\"when\": \"categoryCount\", \"buckets\": [\"Aging (61-90 days)\", \"Critical (>90 days)\"], \"above\": 5,"
+        + "   \"message\": \"📉 Category '{category}' has {count} aging items. Review procurement strategy.\"},"
+        + "  {\"when\": \"valueShare\", \"buckets\": [\"Critical (>90 days)\"], \"above\": 0.15,"
+        + "   \"message\": \"💰 {share} of inventory value is in critical aging. Implement aggressive clearance strategy.\"}],"
+        + "\"otherwise\": \"✅ Inventory aging is within acceptable parameters. Continue monitoring.\""
+        + "}]}";
+
+    // Longest bucket limit accepted, so a table stays a few hundred KB at most
+    private static final int MAX_AGE_LIMIT = 100_000;
+
+    static final List<AgingScheme> SCHEMES = load(System.getProperty("inventory.agingSchemes"));
+    static final AgingScheme PRIMARY = SCHEMES.get(0);
+
+    final String name;
+    final String[] buckets;
+    // Youngest age, in days, at each of ItemTable.RISK_LEVELS; Long.MAX_VALUE when no bucket has that level
+    final long[] riskMinAges;
+    private final long[] maxAges;
+    private final byte[] ages;
+    private final Map<String, byte[]> categoryAges = new HashMap<>();
+    private final byte[] risks;
+    private final Rule[] rules;
+    private final int[] categoryRules;
+    private final String otherwise;
+
+    private AgingScheme(JsonObject definition) {
+        name = string(definition, "name", "scheme");
+        JsonArray bucketList = array(definition, "buckets", name);
+        int n = bucketList.size();
+        if (n == 0 || n > Byte.MAX_VALUE) throw invalid(name, "needs 1 to " + Byte.MAX_VALUE + " buckets");
+        buckets = new String[n];
+        maxAges = new long[n - 1];
+        risks = new byte[n];
+        for (int b = 0; b < n; b++) {
+            JsonObject bucket = bucketList.get(b).getAsJsonObject();
+            buckets[b] = string(bucket, "label", name);
+            if (b < n - 1) maxAges[b] = number(bucket, "maxAge", name).longValue();
+            else if (bucket.has("maxAge")) throw invalid(name, "the last bucket takes every older item and has no maxAge");
+            risks[b] = (byte) (bucket.has("risk") ? riskLevel(bucket.get("risk").getAsString(), name)
+                                                  : n == 1 ? 0 : Math.round(b * (ItemTable.RISK_LEVELS.length - 1) / (float) (n - 1)));
+            if (b > 0 && risks[b] < risks[b - 1]) throw invalid(name, "risk levels must not fall as buckets get older");
+        }
+        if (new HashSet<>(Arrays.asList(buckets)).size() != n) throw invalid(name, "bucket labels must be distinct");
+        ages = compile(maxAges, name);
+
+        if (definition.has("categoryMaxAges")) {
+            for (Map.Entry<String, JsonElement> category : definition.getAsJsonObject("categoryMaxAges").entrySet()) {
+                JsonArray limits = category.getValue().getAsJsonArray();
+                if (limits.size() != n - 1) throw invalid(name, "categoryMaxAges." + category.getKey() + " needs " + (n - 1) + " limits");
+                long[] categoryMaxAges = new long[n - 1];
+                for (int b = 0; b < n - 1; b++) categoryMaxAges[b] = limits.get(b).getAsLong();
+                categoryAges.put(category.getKey(), compile(categoryMaxAges, name + ".categoryMaxAges." + category.getKey()));
+            }
+        }
+
+        riskMinAges = new long[ItemTable.RISK_LEVELS.length];
+        for (int level = 0; level < riskMinAges.length; level++) {
+            int b = 0;
+            while (b < n && risks[b] < level) b++;
+            riskMinAges[level] = b == 0 ? Long.MIN_VALUE : b == n ? Long.MAX_VALUE : maxAges[b - 1] + 1;
+        }
+
+        JsonArray ruleList = definition.has("rules") ? definition.getAsJsonArray("rules") : new JsonArray();
+        rules = new Rule[ruleList.size()];
+        for (int r = 0; r < rules.length; r++) rules[r] = new Rule(ruleList.get(r).getAsJsonObject());
+        categoryRules = IntStream.range(0, rules.length).filter(r -> rules[r].when.equals("categoryCount")).toArray();
+        otherwise = definition.has("otherwise") ? definition.get("otherwise").getAsString() : null;
+    }
+
+    /** table[age] is the bucket of that age for ages up to the last limit; older ages go in the last bucket. */
+    private static byte[] compile(long[] maxAges, String where) {
+        long previous = -1;
+        for (long limit : maxAges) {
+            if (limit <= previous || limit > MAX_AGE_LIMIT) {
+                throw invalid(where, "bucket limits must rise from 0 to at most " + MAX_AGE_LIMIT + " days");
+            }
+            previous = limit;
+        }
+        byte[] table = new byte[maxAges.length == 0 ? 0 : (int) maxAges[maxAges.length - 1] + 1];
+        for (int b = 0, age = 0; b < maxAges.length; b++) {
+            for (; age <= maxAges[b]; age++) table[age] = (byte) b;
+        }
+        return table;
+    }
+
+    static List<AgingScheme> load(String path) {
+        String json;
+        try {
+            json = path == null ? DEFAULT_SCHEMES : new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read aging schemes from " + path, e);
+        }
+        JsonArray definitions = array(JsonParser.parseString(json).getAsJsonObject(), "schemes", "inventory.agingSchemes");
+        if (definitions.size() == 0) throw invalid("inventory.agingSchemes", "defines no schemes");
+        List<AgingScheme> schemes = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (JsonElement definition : definitions) {
+            AgingScheme scheme = new AgingScheme(definition.getAsJsonObject());
+            if (!names.add(scheme.name)) throw invalid(scheme.name, "is defined twice");
+            schemes.add(scheme);
+        }
+        return Collections.unmodifiableList(schemes);
+    }
+
+    /** Index into buckets for an item of this category this many days old. */
+    int bucket(String category, long age) {
+        return bucket(table(category), age);
+    }
+
+    /** Index into ItemTable.RISK_LEVELS for an item this many days old. */
+    int riskLevel(long age) {
+        return risks[bucket(ages, age)];
+    }
+
+    int lastBucket() {
+        return buckets.length - 1;
+    }
+
+    /** True when some category places items by its own limits, which risk levels do not follow. */
+    boolean hasCategoryLimits() {
+        return !categoryAges.isEmpty();
+    }
+
+    private byte[] table(String category) {
+        return categoryAges.getOrDefault(category, ages);
+    }
+
+    private int bucket(byte[] table, long age) {
+        return age < 0 ? 0 : age >= table.length ? buckets.length - 1 : table[(int) age];
+    }
+
+    private int bucketIndex(String label) {
+        for (int b = 0; b < buckets.length; b++) {
+            if (buckets[b].equals(label)) return b;
+        }
+        throw invalid(name, "has no bucket '" + label + "'");
+    }
+
+    private static int riskLevel(String risk, String scheme) {
+        for (int level = 0; level < ItemTable.RISK_LEVELS.length; level++) {
+            if (ItemTable.RISK_LEVELS[level].equals(risk)) return level;
+        }
+        throw invalid(scheme, "unknown risk level '" + risk + "', expected one of " + Arrays.toString(ItemTable.RISK_LEVELS));
+    }
+
+    private static String string(JsonObject object, String member, String where) {
+        if (!object.has(member)) throw invalid(where, "needs \"" + member + "\"");
+        return object.get(member).getAsString();
+    }
+
+    private static Number number(JsonObject object, String member, String where) {
+        if (!object.has(member)) throw invalid(where, "needs \"" + member + "\"");
+        return object.get(member).getAsNumber();
+    }
+
+    private static JsonArray array(JsonObject object, String member, String where) {
+        if (!object.has(member) || !object.get(member).isJsonArray()) throw invalid(where, "needs a \"" + member + "\" array");
+        return object.getAsJsonArray(member);
+    }
+
+    private static IllegalStateException invalid(String where, String problem) {
+        return new IllegalStateException("Aging scheme " + where + ": " + problem);
+    }
+
+    /** One recommendation: the message, when the tally over its buckets is above its limit. */
+    private class Rule {
+        final String when;
+        final boolean[] buckets = new boolean[AgingScheme.this.buckets.length];
+        final double above;
+        final String message;
+
+        Rule(JsonObject rule) {
+            when = string(rule, "when", name);
+            if (!when.equals("count") && !when.equals("categoryCount") && !when.equals("valueShare")) {
+                throw invalid(name, "unknown rule \"" + when + "\", expected count, categoryCount or valueShare");
+            }
+            if (rule.has("buckets")) {
+                for (JsonElement label : rule.getAsJsonArray("buckets")) buckets[bucketIndex(label.getAsString())] = true;
+            } else {
+                buckets[lastBucket()] = true;
+            }
+            above = rule.has("above") ? rule.get("above").getAsDouble() : 0;
+            message = string(rule, "message", name);
+        }
+    }
+
+    /**
+     * Bucket counts, bucket values and the per-category counts of categoryCount rules for one scheme,
+     * gathered in AnalysisAccumulator's walk. Like it, categories keep first-qualifying order and
+     * combine() appends the right-hand side; an accumulator made without a table only takes
+     * pre-aggregated add() calls and combine().
+     */
+    class Accumulator {
+        private final ItemTable table;
+        private final long[] counts = new long[buckets.length];
+        private final DoubleSummaryStatistics[] values = new DoubleSummaryStatistics[buckets.length];
+        private final List<Map<String, long[]>> categoryCounts = new ArrayList<>();
+        // By the table's category id: its age table, and its counter under each categoryCount rule
+        private byte[][] tablesById = new byte[0][];
+        private long[][][] countersById = new long[0][][];
+
+        Accumulator(ItemTable table) {
+            this.table = table;
+            for (int b = 0; b < values.length; b++) values[b] = new DoubleSummaryStatistics();
+            for (Rule rule : rules) categoryCounts.add(rule.when.equals("categoryCount") ? new LinkedHashMap<>() : null);
+        }
+
+        AgingScheme scheme() {
+            return AgingScheme.this;
+        }
+
+        /** Tallies a table row and returns its bucket. */
+        int accept(int row, long age, double value) {
+            int category = table.categoryId(row);
+            if (category >= tablesById.length || tablesById[category] == null) bind(category);
+            int bucket = bucket(tablesById[category], age);
+            counts[bucket]++;
+            values[bucket].accept(value);
+            long[][] counters = countersById[category];
+            for (int r : categoryRules) {
+                if (!rules[r].buckets[bucket]) continue;
+                // Created once the category first qualifies, so the map keeps that order
+                if (counters[r] == null) counters[r] = categoryCounts.get(r).computeIfAbsent(table.category(row), k -> new long[1]);
+                counters[r][0]++;
+            }
+            return bucket;
+        }
+
+        /** Tallies count items of one category and age, worth value between them. */
+        void add(String category, long age, long count, double value) {
+            int bucket = bucket(category, age);
+            counts[bucket] += count;
+            values[bucket].accept(value);
+            for (int r : categoryRules) {
+                if (rules[r].buckets[bucket]) categoryCounts.get(r).computeIfAbsent(category, k -> new long[1])[0] += count;
+            }
+        }
+
+        private void bind(int category) {
+            if (category >= tablesById.length) {
+                tablesById = Arrays.copyOf(tablesById, category + 8);
+                countersById = Arrays.copyOf(countersById, category + 8);
+            }
+            tablesById[category] = table(table.categories.value(category));
+            countersById[category] = new long[rules.length][];
+        }
+
+        void combine(Accumulator other) {
+            for (int b = 0; b < counts.length; b++) {
+                counts[b] += other.counts[b];
+                values[b].combine(other.values[b]);
+            }
+            for (int r : categoryRules) {
+                Map<String, long[]> counts = categoryCounts.get(r);
+                other.categoryCounts.get(r).forEach((k, v) -> counts.computeIfAbsent(k, x -> new long[1])[0] += v[0]);
+            }
+        }
+
+        long count(int bucket) {
+            return counts[bucket];
+        }
+
+        double value(int bucket) {
+            return values[bucket].getSum();
+        }
+
+        List<String> recommendations(double total) {
+            List<String> recommendations = new ArrayList<>();
+            for (int r = 0; r < rules.length; r++) {
+                Rule rule = rules[r];
+                long count = 0;
+                double value = 0;
+                for (int b = 0; b < counts.length; b++) {
+                    if (!rule.buckets[b]) continue;
+                    count += counts[b];
+                    value += values[b].getSum();
+                }
+                if (rule.when.equals("count")) {
+                    if (count > rule.above) recommendations.add(rule.message.replace("{count}", String.valueOf(count)));
+                } else if (rule.when.equals("valueShare")) {
+                    double share = value / total;
+                    if (share > rule.above) recommendations.add(rule.message.replace("{share}", String.format("%.1f%%", share * 100)));
+                } else {
+                    // A HashMap filled in first-qualifying order, iterated as groupingBy()'s result always was
+                    Map<String, Long> byCategory = new HashMap<>();
+                    categoryCounts.get(r).forEach((k, v) -> byCategory.computeIfAbsent(k, x -> v[0]));
+                    byCategory.forEach((category, n) -> {
+                        if (n > rule.above) {
+                            recommendations.add(rule.message.replace("{count}", String.valueOf(n)).replace("{category}", category));
+                        }
+                    });
+                }
+            }
+            if (recommendations.isEmpty() && otherwise != null) recommendations.add(otherwise);
+            return recommendations;
+        }
+
+        /** Bucket totals and recommendations, for reporting a scheme other than the primary one. */
+        Result result(double total) {
+            return new Result(this, total);
+        }
+    }
+
+    static class Result {
+        final String[] buckets;
+        final long[] items;
+        final double[] values;
+        final List<String> recommendations;
+
+        private Result(Accumulator acc, double total) {
+            buckets = acc.scheme().buckets;
+            items = acc.counts.clone();
+            values = new double[buckets.length];
+            for (int b = 0; b < values.length; b++) values[b] = acc.value(b);
+            recommendations = acc.recommendations(total);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * JSON form of an InventoryAnalysis, for POST /analyze, and of query results for
+ * GET /inventory/:id/query. Written field by field with Gson's JsonWriter
+ * straight into the response, so nothing is built on the output side beyond the writer's buffer.
+ *
+ * The aggregates are one compact object. The NDJSON variant puts that object on the first line and
+ * then one line per item, bucket by bucket in the detail sheet's order; lines reach the client as
+ * the buffer under the writer fills, so a feed of any length needs no more memory than a short one.
+ * Non-finite numbers, such as the percentages of an empty inventory, are written as null.
+ */
+class AnalysisJson {
+    static final String JSON_CONTENT_TYPE = "application/json";
+    static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    private AnalysisJson() {
+    }
+
+    static void writeAggregates(InventoryAgingReportGenerator.InventoryAnalysis analysis, Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        aggregates(json, analysis);
+        json.flush();
+    }
+
+    static void writeNdjson(InventoryAgingReportGenerator.InventoryAnalysis analysis, Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.setLenient(true); // lets one top-level value follow another
+        aggregates(json, analysis);
+        out.write('\n');
+        ItemTable items = analysis.items;
+        for (Map.Entry<String, int[]> bucket : analysis.agingGroups.entrySet()) {
+            for (int row : bucket.getValue()) {
+                item(json, items, row, bucket.getKey());
+                out.write('\n');
+            }
+        }
+        json.flush();
+    }
+
+    static void writeQueryResult(String inventory, InventoryIndex.Result result, long micros, Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        ItemTable hits = result.hits;
+        json.beginObject();
+        json.name("inventory").value(inventory);
+        json.name("asOf").value(LocalDate.ofEpochDay(hits.asOfDay).toString());
+        json.name("matched").value(result.matched);
+        json.name("scanned").value(result.scanned);
+        json.name("tookMicros").value(micros);
+        json.name("agingDaysPercentiles");
+        if (result.percentiles == null) {
+            json.nullValue();
+        } else {
+            json.beginObject();
+            for (int i = 0; i < result.percentiles.length; i++) {
+                double p = result.query.percentiles[i];
+                json.name("p" + (p == Math.rint(p) ? String.valueOf((long) p) : String.valueOf(p))).value(result.percentiles[i]);
+            }
+            json.endObject();
+        }
+        json.name("items").beginArray();
+        AgingScheme scheme = AgingScheme.PRIMARY;
+        for (int row = 0; row < hits.size(); row++) {
+            item(json, hits, row, scheme.buckets[scheme.bucket(hits.category(row), hits.agingDays(row))]);
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    private static void aggregates(JsonWriter json, InventoryAgingReportGenerator.InventoryAnalysis analysis) throws IOException {
+        json.beginObject();
+        json.name("totalItems").value(analysis.totalItems);
+        json.name("totalValue");
+        number(json, analysis.totalValue);
+
+        json.name("kpis").beginObject();
+        for (Map.Entry<String, Object> kpi : new TreeMap<>(analysis.kpis).entrySet()) {
+            json.name(kpi.getKey());
+            number(json, (Number) kpi.getValue());
+        }
+        json.endObject();
+
+        json.name("agingBuckets").beginObject();
+        for (Map.Entry<String, int[]> bucket : analysis.agingGroups.entrySet()) {
+            double value = 0;
+            for (int row : bucket.getValue()) value += analysis.items.totalValue(row);
+            json.name(bucket.getKey()).beginObject();
+            json.name("items").value(bucket.getValue().length);
+            json.name("value");
+            number(json, value);
+            json.endObject();
+        }
+        json.endObject();
+
+        json.name("categoryValues").beginObject();
+        for (Map.Entry<String, Double> category : analysis.categoryValues.entrySet()) {
+            json.name(category.getKey());
+            number(json, category.getValue());
+        }
+        json.endObject();
+
+        json.name("supplierCounts").beginObject();
+        for (Map.Entry<String, Integer> supplier : analysis.supplierCounts.entrySet()) {
+            json.name(supplier.getKey()).value(supplier.getValue());
+        }
+        json.endObject();
+
+        json.name("recommendations").beginArray();
+        for (String recommendation : analysis.recommendations) json.value(recommendation);
+        json.endArray();
+
+        if (!analysis.schemes.isEmpty()) {
+            json.name("schemes").beginObject();
+            for (Map.Entry<String, AgingScheme.Result> scheme : analysis.schemes.entrySet()) {
+                AgingScheme.Result result = scheme.getValue();
+                json.name(scheme.getKey()).beginObject();
+                json.name("agingBuckets").beginObject();
+                for (int b = 0; b < result.buckets.length; b++) {
+                    json.name(result.buckets[b]).beginObject();
+                    json.name("items").value(result.items[b]);
+                    json.name("value");
+                    number(json, result.values[b]);
+                    json.endObject();
+                }
+                json.endObject();
+                json.name("recommendations").beginArray();
+                for (String recommendation : result.recommendations) json.value(recommendation);
+                json.endArray();
+                json.endObject();
+            }
+            json.endObject();
+        }
+
+        RejectionReport rejections = analysis.items.rejections;
+        json.name("rejected").beginObject();
+        json.name("total").value(rejections.total());
+        json.name("byReason").beginObject();
+        for (Map.Entry<String, Long> reason : rejections.countsByReason().entrySet()) {
+            json.name(reason.getKey()).value(reason.getValue());
+        }
+        json.endObject();
+        json.endObject();
+
+        json.endObject();
+    }
+
+    private static void item(JsonWriter json, ItemTable items, int row, String bucket) throws IOException {
+        json.beginObject();
+        json.name("bucket").value(bucket);
+        json.name("name").value(items.name(row));
+        json.name("category").value(items.category(row));
+        json.name("quantity").value(items.quantity(row));
+        json.name("unitCost").value(items.unitCost(row));
+        json.name("totalValue").value(items.totalValue(row));
+        json.name("dateReceived").value(LocalDate.ofEpochDay(items.receivedDay(row)).toString());
+        json.name("agingDays").value(items.agingDays(row));
+        json.name("riskLevel").value(items.riskLevel(row));
+        json.name("supplier").value(items.supplier(row));
+        json.name("location").value(items.location(row));
+        json.endObject();
+    }
+
+    private static void number(JsonWriter json, Number value) throws IOException {
+        if (value instanceof Double && !Double.isFinite((Double) value)) json.nullValue();
+        else json.value(value);
+    }
+}
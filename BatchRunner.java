@@ -0,0 +1,245 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless batch mode: turns every inventory file in one directory into a report in another, without
+ * the HTTP server and its multipart handling in between.
+ *
+ * <pre>
+ * java InventoryAgingReportGenerator --batch &lt;inputDir&gt; &lt;outputDir&gt; [--rollup] [--no-charts] [--no-summary] [--no-recommendations]
+ * </pre>
+ *
+ * Files (.csv, .xlsx, .xls) run on a work-stealing pool of -Dinventory.batch.parallelism workers,
+ * one file per task; large ones go through ReportPipeline as uploads do. All reports come out of the
+ * one JVM, so the writer's static styles and glyph-width caches are built once for the whole run.
+ * Each report is written to a hidden temp file and renamed into place, so a file that fails leaves no
+ * partial output and the others carry on. With --rollup the aggregates of every store are merged,
+ * in file-name order, into one more report. The run ends with a files/s and rows/s summary; the exit
+ * status is 1 when any file failed.
+ */
+class BatchRunner {
+    static final int PARALLELISM = Integer.getInteger("inventory.batch.parallelism", Runtime.getRuntime().availableProcessors());
+    static final String REPORT_SUFFIX = "-aging-report.xlsx";
+    static final String ROLLUP_REPORT = "rollup" + REPORT_SUFFIX;
+
+    private final File inputDir;
+    private final File outputDir;
+    private final boolean rollup;
+    private final InventoryAgingReportGenerator.ReportOptions options;
+
+    private BatchRunner(File inputDir, File outputDir, boolean rollup, InventoryAgingReportGenerator.ReportOptions options) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.rollup = rollup;
+        this.options = options;
+    }
+
+    /** Parses the arguments after --batch and runs the batch; returns the process exit status. */
+    static int run(String[] args) {
+        List<String> paths = new ArrayList<>();
+        boolean rollup = false, charts = true, summary = true, recommendations = true;
+        for (String arg : args) {
+            switch (arg) {
+                case "--rollup": rollup = true; break;
+                case "--no-charts": charts = false; break;
+                case "--no-summary": summary = false; break;
+                case "--no-recommendations": recommendations = false; break;
+                default:
+                    if (arg.startsWith("--")) return usage("Unknown option " + arg);
+                    paths.add(arg);
+            }
+        }
+        if (paths.size() != 2) return usage("Expected an input and an output directory");
+        File inputDir = new File(paths.get(0));
+        File outputDir = new File(paths.get(1));
+        if (!inputDir.isDirectory()) return usage("Not a directory: " + inputDir);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) return usage("Cannot create " + outputDir);
+
+        InventoryAgingReportGenerator.ReportOptions options = new InventoryAgingReportGenerator.ReportOptions(charts, summary, recommendations);
+        return new BatchRunner(inputDir, outputDir, rollup, options).run();
+    }
+
+    private static int usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: InventoryAgingReportGenerator --batch <inputDir> <outputDir> "
+                           + "[--rollup] [--no-charts] [--no-summary] [--no-recommendations]");
+        return 2;
+    }
+
+    private int run() {
+        File[] inputs = inputDir.listFiles(f -> f.isFile() && isInventoryFile(f.getName()));
+        if (inputs == null) inputs = new File[0];
+        Arrays.sort(inputs);
+        Map<File, String> reportNames = reportNames(inputs);
+        System.out.printf("Batch: %d files from %s to %s on %d workers%n", inputs.length, inputDir, outputDir, PARALLELISM);
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newWorkStealingPool(PARALLELISM);
+        List<CompletableFuture<Outcome>> outcomes = new ArrayList<>();
+        for (File input : inputs) {
+            String reportName = reportNames.get(input);
+            outcomes.add(CompletableFuture.supplyAsync(() -> process(input, reportName), pool)
+                .handle((outcome, failure) -> {
+                    Outcome result = failure == null ? outcome : Outcome.failed(input, failure);
+                    result.print();
+                    return result;
+                }));
+        }
+
+        int failed = 0;
+        long rows = 0, bytes = 0;
+        InventoryAgingReportGenerator.AnalysisAccumulator totals = new InventoryAgingReportGenerator.AnalysisAccumulator();
+        for (CompletableFuture<Outcome> future : outcomes) {
+            Outcome outcome = future.join();
+            bytes += outcome.input.length();
+            if (outcome.failure != null) {
+                failed++;
+                continue;
+            }
+            rows += outcome.rows;
+            totals.combine(outcome.aggregates);
+        }
+        pool.shutdown();
+
+        if (rollup) {
+            File output = new File(outputDir, ROLLUP_REPORT);
+            try {
+                InventoryAgingReportGenerator.InventoryAnalysis analysis =
+                    new InventoryAgingReportGenerator.InventoryAnalysis(new ItemTable(), totals);
+                writeAtomically(output, out -> InventoryAgingReportGenerator.writeReport(analysis, options, out));
+                System.out.printf("Roll-up: %,d items from %d stores -> %s%n", analysis.totalItems, inputs.length - failed, output.getName());
+            } catch (Exception e) {
+                System.err.println("Roll-up failed: " + e);
+                failed++;
+            }
+        }
+
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.out.printf("Done: %d files (%d failed), %,d rows, %.1f MB in %.2f s: %.1f files/s, %,.0f rows/s%n",
+                          inputs.length, failed, rows, bytes / 1e6, seconds, inputs.length / seconds, rows / seconds);
+        return failed == 0 ? 0 : 1;
+    }
+
+    /** Writes one store's report and keeps its aggregates, without the rows, for the roll-up. */
+    private Outcome process(File input, String reportName) {
+        long start = System.nanoTime();
+        InventoryAgingReportGenerator.AnalysisAccumulator[] acc = new InventoryAgingReportGenerator.AnalysisAccumulator[1];
+        File output = new File(outputDir, reportName);
+        try {
+            writeAtomically(output, out -> {
+                if (ReportPipeline.handles(input)) {
+                    acc[0] = ReportPipeline.run(input, options, out);
+                    return;
+                }
+                ItemTable items;
+                try (InputStream in = new BufferedInputStream(new FileInputStream(input))) {
+                    items = InventoryAgingReportGenerator.readItems(in, input.length());
+                }
+                // Sequentially: the pool already keeps every core busy with other files
+                acc[0] = new InventoryAgingReportGenerator.AnalysisAccumulator(items);
+                for (int row = 0; row < items.size(); row++) acc[0].accept(row);
+                InventoryAgingReportGenerator.writeReport(new InventoryAgingReportGenerator.InventoryAnalysis(items, acc[0]), options, out);
+            });
+        } catch (Exception e) {
+            return Outcome.failed(input, e);
+        }
+        InventoryAgingReportGenerator.AnalysisAccumulator aggregates = new InventoryAgingReportGenerator.AnalysisAccumulator();
+        aggregates.combine(acc[0]);
+        return new Outcome(input, output, aggregates, System.nanoTime() - start);
+    }
+
+    private interface ReportBody {
+        void write(OutputStream out) throws Exception;
+    }
+
+    private static void writeAtomically(File output, ReportBody body) throws Exception {
+        File partial = new File(output.getParentFile(), "." + output.getName() + ".part");
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), 1 << 16)) {
+                body.write(out);
+            }
+            Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            partial.delete();
+        }
+    }
+
+    static boolean isInventoryFile(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return !lower.startsWith(".") && !lower.endsWith(REPORT_SUFFIX)
+            && (lower.endsWith(".csv") || lower.endsWith(".xlsx") || lower.endsWith(".xls"));
+    }
+
+    static String reportName(String inputName) {
+        int dot = inputName.lastIndexOf('.');
+        return (dot > 0 ? inputName.substring(0, dot) : inputName) + REPORT_SUFFIX;
+    }
+
+    /**
+     * The report name of each input. Inputs that differ only in extension (store.csv and store.xlsx)
+     * would share a report and its partial file, so those keep the extension in the name:
+     * store-csv-aging-report.xlsx. A name that is still taken, or is the roll-up's, gets a counter.
+     * Names are compared ignoring case, for case-insensitive file systems.
+     */
+    static Map<File, String> reportNames(File[] inputs) {
+        Map<String, Integer> uses = new HashMap<>();
+        for (File input : inputs) uses.merge(reportName(input.getName()).toLowerCase(Locale.ROOT), 1, Integer::sum);
+        Set<String> taken = new HashSet<>(Collections.singleton(ROLLUP_REPORT));
+        Map<File, String> names = new HashMap<>();
+        for (File input : inputs) {
+            String inputName = input.getName();
+            String stem = reportName(inputName);
+            stem = stem.substring(0, stem.length() - REPORT_SUFFIX.length());
+            if (uses.get(reportName(inputName).toLowerCase(Locale.ROOT)) > 1) {
+                stem += "-" + inputName.substring(inputName.lastIndexOf('.') + 1);
+            }
+            String name = stem + REPORT_SUFFIX;
+            for (int n = 2; !taken.add(name.toLowerCase(Locale.ROOT)); n++) name = stem + "-" + n + REPORT_SUFFIX;
+            names.put(input, name);
+        }
+        return names;
+    }
+
+    /** How one file went: its report and aggregates, or what stopped it. */
+    private static class Outcome {
+        final File input;
+        final File output;
+        final InventoryAgingReportGenerator.AnalysisAccumulator aggregates;
+        final long rows;
+        final long nanos;
+        final Throwable failure;
+
+        Outcome(File input, File output, InventoryAgingReportGenerator.AnalysisAccumulator aggregates, long nanos) {
+            this.input = input;
+            this.output = output;
+            this.aggregates = aggregates;
+            this.rows = aggregates.count();
+            this.nanos = nanos;
+            this.failure = null;
+        }
+
+        private Outcome(File input, Throwable failure) {
+            this.input = input;
+            this.output = null;
+            this.aggregates = null;
+            this.rows = 0;
+            this.nanos = 0;
+            this.failure = failure;
+        }
+
+        static Outcome failed(File input, Throwable failure) {
+            return new Outcome(input, failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+        }
+
+        void print() {
+            if (failure == null) {
+                System.out.printf("  ok      %s: %,d rows in %.2f s -> %s%n", input.getName(), rows, nanos / 1e9, output.getName());
+            } else {
+                System.err.printf("  FAILED  %s: %s%n", input.getName(), failure);
+            }
+        }
+    }
+}
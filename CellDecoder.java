@@ -0,0 +1,242 @@
+/**
+ * Exception-free decoding of the quantity and date columns. Dates are scanned digit by digit into an
+ * epoch day, and the layout of text dates (ISO, month-first, day-first or Excel serial) is inferred once
+ * per upload from a sample of rows instead of being rediscovered through parse failures on every cell.
+ *
+ * An instance keeps scratch state from the last scan, so each parsing thread needs its own.
+ */
+class CellDecoder {
+    /** Returned when a cell cannot be decoded. */
+    static final int INVALID = Integer.MIN_VALUE;
+    // Rows read before the date layout is fixed
+    static final int SAMPLE_ROWS = Integer.getInteger("inventory.decodeSampleRows", 200);
+
+    enum DateLayout { ISO, MONTH_FIRST, DAY_FIRST, EXCEL_SERIAL }
+
+    private static final DateLayout[] LAYOUTS = DateLayout.values();
+    private static final int MAX_EXCEL_SERIAL = 2958465; // 9999-12-31
+
+    final DateLayout layout;
+    private final boolean date1904;
+
+    // Result of the last scan(): up to three numbers, their digit counts and the separator between them
+    private final int[] parts = new int[3];
+    private final int[] digits = new int[3];
+    private int partCount;
+    private char separator;
+
+    CellDecoder(DateLayout layout, boolean date1904) {
+        this.layout = layout;
+        this.date1904 = date1904;
+    }
+
+    /** Epoch day of a text date in the inferred layout, falling back to the other unambiguous layouts. */
+    int epochDay(CharSequence text) {
+        int day = epochDay(text, layout);
+        if (day != INVALID) return day;
+        for (DateLayout other : LAYOUTS) {
+            if (other == layout || conflicts(other, layout)) continue;
+            day = epochDay(text, other);
+            if (day != INVALID) return day;
+        }
+        return INVALID;
+    }
+
+    // 03/04/2024 means different days to the two slash layouts; never guess across them
+    private static boolean conflicts(DateLayout a, DateLayout b) {
+        return (a == DateLayout.MONTH_FIRST && b == DateLayout.DAY_FIRST) || (a == DateLayout.DAY_FIRST && b == DateLayout.MONTH_FIRST);
+    }
+
+    int epochDay(CharSequence text, DateLayout layout) {
+        if (layout == DateLayout.EXCEL_SERIAL) {
+            long serial = parseWholeNumber(text);
+            return serial == Long.MIN_VALUE ? INVALID : epochDayFromSerial(serial);
+        }
+        if (!scan(text)) return INVALID;
+        switch (layout) {
+            case ISO:
+                if (separator != '-' || digits[0] != 4 || digits[1] > 2 || digits[2] > 2) return INVALID;
+                return epochDay(parts[0], parts[1], parts[2]);
+            case MONTH_FIRST:
+                if (digits[2] != 4 || digits[0] > 2 || digits[1] > 2) return INVALID;
+                return epochDay(parts[2], parts[0], parts[1]);
+            case DAY_FIRST:
+                if (digits[2] != 4 || digits[0] > 2 || digits[1] > 2) return INVALID;
+                return epochDay(parts[2], parts[1], parts[0]);
+            default:
+                return INVALID;
+        }
+    }
+
+    /** Epoch day of a numeric date cell in the workbook's date system. */
+    int epochDayFromSerial(double serial) {
+        if (Double.isNaN(serial)) return INVALID;
+        return epochDayFromSerial((long) Math.floor(serial));
+    }
+
+    private int epochDayFromSerial(long serial) {
+        if (serial < (date1904 ? 0 : 1) || serial > MAX_EXCEL_SERIAL) return INVALID;
+        if (date1904) return (int) serial - 24107;
+        // Serials up to 60 predate Excel's phantom 1900-02-29
+        return (int) (serial <= 60 ? serial - 25568 : serial - 25569);
+    }
+
+    /**
+     * Integer part of a decimal quantity, saturating like a double-to-int cast. Blank text is 0;
+     * anything that is not a plain decimal number is INVALID.
+     */
+    static int quantity(CharSequence text) {
+        int start = 0, end = text.length();
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+        if (start == end) return 0;
+
+        boolean negative = false;
+        char first = text.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+        }
+        long value = 0;
+        int i = start;
+        for (; i < end; i++) {
+            int d = text.charAt(i) - '0';
+            if (d < 0 || d > 9) break;
+            if (value <= Integer.MAX_VALUE) value = value * 10 + d;
+        }
+        boolean wholeDigits = i > start;
+        if (i < end) {
+            if (text.charAt(i) != '.') return INVALID;
+            int fractionStart = ++i;
+            for (; i < end; i++) {
+                int d = text.charAt(i) - '0';
+                if (d < 0 || d > 9) return INVALID;
+            }
+            if (!wholeDigits && i == fractionStart) return INVALID;
+        } else if (!wholeDigits) {
+            return INVALID;
+        }
+        value = Math.min(value, Integer.MAX_VALUE);
+        return (int) (negative ? Math.max(-value, Integer.MIN_VALUE + 1) : value);
+    }
+
+    /**
+     * Splits a trimmed date into up to three numbers separated by one of '-', '/' or '.'. A 'T' or
+     * space after the third number starts a time of day, which is ignored.
+     */
+    private boolean scan(CharSequence text) {
+        int start = 0, end = text.length();
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+
+        partCount = 0;
+        separator = 0;
+        int value = 0, count = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++count > 4) return false;
+                value = value * 10 + (c - '0');
+            } else if (c == '-' || c == '/' || c == '.') {
+                if (count == 0 || partCount == 2) return false;
+                if (separator == 0) separator = c;
+                else if (c != separator) return false;
+                parts[partCount] = value;
+                digits[partCount++] = count;
+                value = 0;
+                count = 0;
+            } else if ((c == 'T' || c == ' ') && partCount == 2) {
+                break;
+            } else {
+                return false;
+            }
+        }
+        if (count == 0 || partCount != 2) return false;
+        parts[2] = value;
+        digits[2] = count;
+        partCount = 3;
+        return true;
+    }
+
+    /** Whole number with an optional all-digit fraction, or Long.MIN_VALUE. */
+    private static long parseWholeNumber(CharSequence text) {
+        int start = 0, end = text.length();
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+        if (start == end || end - start > 18) return Long.MIN_VALUE;
+        long value = 0;
+        int i = start;
+        for (; i < end; i++) {
+            int d = text.charAt(i) - '0';
+            if (d < 0 || d > 9) break;
+            value = value * 10 + d;
+        }
+        if (i == start) return Long.MIN_VALUE;
+        if (i < end) {
+            if (text.charAt(i) != '.') return Long.MIN_VALUE;
+            for (i++; i < end; i++) {
+                int d = text.charAt(i) - '0';
+                if (d < 0 || d > 9) return Long.MIN_VALUE;
+            }
+        }
+        return value;
+    }
+
+    /** Days since 1970-01-01 for a validated calendar date, or INVALID. */
+    static int epochDay(int year, int month, int day) {
+        if (year < 1 || year > 9999 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            return INVALID;
+        }
+        // Civil-to-days over 400-year eras, with years starting in March
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2: return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4: case 6: case 9: case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    /**
+     * Counts which layouts decode the sampled date cells. The layout that decodes the most samples wins,
+     * ties going to the earlier layout, so an all-ambiguous column such as 03/04/2024 reads month-first.
+     */
+    static class Inference {
+        private final CellDecoder scanner = new CellDecoder(DateLayout.ISO, false);
+        private final int[] hits = new int[LAYOUTS.length];
+        private int samples;
+
+        void sample(CharSequence text) {
+            if (text.length() == 0) return;
+            samples++;
+            for (DateLayout layout : LAYOUTS) {
+                if (scanner.epochDay(text, layout) != INVALID) hits[layout.ordinal()]++;
+            }
+        }
+
+        /** Numeric date cells are serials whatever their text layout. */
+        void sampleSerial() {
+            samples++;
+            hits[DateLayout.EXCEL_SERIAL.ordinal()]++;
+        }
+
+        int samples() {
+            return samples;
+        }
+
+        DateLayout result() {
+            DateLayout best = DateLayout.ISO;
+            for (DateLayout layout : LAYOUTS) {
+                if (hits[layout.ordinal()] > hits[best.ordinal()]) best = layout;
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import org.apache.poi.ss.usermodel.*;
+
+import java.awt.font.FontRenderContext;
+import java.text.Format;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Column widths worked out while rows are written, in place of Sheet.autoSizeColumn. autoSizeColumn
+ * lays out every cell of a column with AWT once the sheet is complete, which costs a TextLayout per
+ * cell, needs the rows to still be in memory and a font stack on the host. Here each row is measured
+ * as it is added by summing per-glyph advances, and only the widest text per column is remembered.
+ *
+ * Widths follow autoSizeColumn's rules: text plus one '0' of padding, in units of the width of '0' in
+ * the workbook's default font, capped at 255 characters. Glyph advances come from AWT the first time
+ * a glyph is seen in a font and are cached for the life of the process. Without a usable font system
+ * a built-in table of Calibri advances is used instead. Rows whose text cannot beat the current
+ * maximum, judged by length alone, are not measured at all.
+ *
+ * Cells can be tracked from a POI Row, or as plain text and numbers by writers that bypass POI.
+ */
+class ColumnWidths {
+    private static final int MAX_WIDTH = 255 * 256;
+    private static final FontRenderContext RENDER_CONTEXT = new FontRenderContext(null, true, true);
+    private static final Map<String, GlyphWidths> FONTS = new ConcurrentHashMap<>();
+
+    private final Workbook workbook;
+    private final DataFormatter formatter = new DataFormatter();
+    private final float defaultCharWidth;
+    // Per cell style index: the glyph table and point size of its font, filled on first use
+    private GlyphWidths[] styleGlyphs = new GlyphWidths[16];
+    private float[] stylePoints = new float[16];
+    // Widest measured text per column in points, and the largest numbers measured so far (-1 for none)
+    private float[] maxWidth = new float[16];
+    private double[] maxPositive = filled(16), maxNegative = filled(16);
+    private boolean[] measured = new boolean[16];
+
+    ColumnWidths(Workbook workbook) {
+        this.workbook = workbook;
+        Font font = workbook.getFontAt(0);
+        this.defaultCharWidth = glyphs(font).advance('0') * font.getFontHeightInPoints();
+    }
+
+    /** For writers without a POI workbook: widths are relative to '0' in the given default font. */
+    ColumnWidths(GlyphWidths defaultFont, float defaultPoints) {
+        this.workbook = null;
+        this.defaultCharWidth = defaultFont.advance('0') * defaultPoints;
+    }
+
+    /** Measures every cell of the row. Leave out rows whose cells sit in merged regions, as autoSizeColumn does. */
+    void track(Row row) {
+        for (Cell cell : row) {
+            track(cell);
+        }
+    }
+
+    void track(Cell cell) {
+        int column = cell.getColumnIndex();
+        CellStyle style = cell.getCellStyle();
+        switch (cell.getCellType()) {
+            case STRING:
+                measure(column, style, cell.getStringCellValue());
+                break;
+            case NUMERIC:
+                double value = cell.getNumericCellValue();
+                if (!widerNumber(column, value)) return;
+                measure(column, style, formatNumber(cell, value, style));
+                break;
+            case BOOLEAN:
+                measure(column, style, cell.getBooleanCellValue() ? "TRUE" : "FALSE");
+                break;
+            default:
+                break;
+        }
+    }
+
+    void text(int column, String text, GlyphWidths glyphs, float points) {
+        ensureColumn(column);
+        measure(column, text, glyphs, points, 0);
+    }
+
+    /** A number shown through format, or as a General integer when format is null. */
+    void number(int column, double value, Format format, GlyphWidths glyphs, float points) {
+        if (!widerNumber(column, value)) return;
+        String text = format == null && value == Math.rint(value) && Math.abs(value) < 1e11
+            ? Long.toString((long) value)
+            : format == null ? Double.toString(value) : format.format(value);
+        measure(column, text, glyphs, points, 0);
+    }
+
+    /** Folds in widths measured over another slice of the same columns. */
+    void merge(ColumnWidths other) {
+        ensureColumn(other.measured.length - 1);
+        for (int column = 0; column < other.measured.length; column++) {
+            maxPositive[column] = Math.max(maxPositive[column], other.maxPositive[column]);
+            maxNegative[column] = Math.max(maxNegative[column], other.maxNegative[column]);
+            if (!other.measured[column]) continue;
+            if (!measured[column] || other.maxWidth[column] > maxWidth[column]) maxWidth[column] = other.maxWidth[column];
+            measured[column] = true;
+        }
+    }
+
+    /** Sets the width of every column that had at least one measured cell; other columns keep their width. */
+    void apply(Sheet sheet) {
+        for (int column = 0; column < measured.length; column++) {
+            if (measured[column]) sheet.setColumnWidth(column, columnWidth(column));
+        }
+    }
+
+    /** Column width in 1/256ths of a character, as Sheet.setColumnWidth takes it, or -1 when nothing was measured. */
+    int columnWidth(int column) {
+        if (column >= measured.length || !measured[column]) return -1;
+        return Math.round(Math.min(maxWidth[column] / defaultCharWidth * 256, MAX_WIDTH));
+    }
+
+    int columns() {
+        return measured.length;
+    }
+
+    // Columns keep one number format, under which a smaller magnitude of the same sign never formats wider
+    private boolean widerNumber(int column, double value) {
+        ensureColumn(column);
+        double[] largest = value < 0 ? maxNegative : maxPositive;
+        double magnitude = Math.abs(value);
+        if (magnitude <= largest[column]) return false;
+        largest[column] = magnitude;
+        return true;
+    }
+
+    private String formatNumber(Cell cell, double value, CellStyle style) {
+        if (style.getDataFormat() == 0 && value == Math.rint(value) && Math.abs(value) < 1e11) {
+            return Long.toString((long) value);
+        }
+        return formatter.formatCellValue(cell);
+    }
+
+    private void measure(int column, CellStyle style, String text) {
+        ensureColumn(column);
+        int index = style.getIndex();
+        if (index >= styleGlyphs.length) {
+            styleGlyphs = Arrays.copyOf(styleGlyphs, Math.max(index + 1, styleGlyphs.length * 2));
+            stylePoints = Arrays.copyOf(stylePoints, styleGlyphs.length);
+        }
+        GlyphWidths glyphs = styleGlyphs[index];
+        if (glyphs == null) {
+            Font font = workbook.getFontAt(style.getFontIndex());
+            glyphs = styleGlyphs[index] = glyphs(font);
+            stylePoints[index] = font.getFontHeightInPoints();
+        }
+        measure(column, text, glyphs, stylePoints[index], style.getIndention() * defaultCharWidth);
+    }
+
+    private void measure(int column, String text, GlyphWidths glyphs, float points, float indent) {
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) end = text.length();
+            // One '0' of padding after the text, as autoSizeColumn measures it
+            if (!measured[column] || (end - start + 1) * glyphs.widest() * points + indent > maxWidth[column]) {
+                float width = (glyphs.advance(text, start, end) + glyphs.advance('0')) * points + indent;
+                if (!measured[column] || width > maxWidth[column]) maxWidth[column] = width;
+                measured[column] = true;
+            }
+            start = end + 1;
+        }
+    }
+
+    private void ensureColumn(int column) {
+        if (column < measured.length) return;
+        int size = Math.max(column + 1, measured.length * 2);
+        maxWidth = Arrays.copyOf(maxWidth, size);
+        maxPositive = Arrays.copyOf(maxPositive, size);
+        maxNegative = Arrays.copyOf(maxNegative, size);
+        Arrays.fill(maxPositive, measured.length, size, -1);
+        Arrays.fill(maxNegative, measured.length, size, -1);
+        measured = Arrays.copyOf(measured, size);
+    }
+
+    private static double[] filled(int size) {
+        double[] values = new double[size];
+        Arrays.fill(values, -1);
+        return values;
+    }
+
+    private static GlyphWidths glyphs(Font font) {
+        return glyphs(font.getFontName(), font.getBold(), font.getItalic());
+    }
+
+    static GlyphWidths glyphs(String fontName, boolean bold, boolean italic) {
+        String key = fontName + (bold ? "|b" : "|") + (italic ? "i" : "");
+        return FONTS.computeIfAbsent(key, k -> new GlyphWidths(fontName, bold, italic));
+    }
+
+    /**
+     * Advance widths of one font face at 1 pt. BMP glyphs are cached in an array filled on first use;
+     * supplementary characters such as emoji go through a map.
+     */
+    static class GlyphWidths {
+        private final java.awt.Font awtFont;
+        private final boolean bold;
+        private final float[] bmp = new float[65536];
+        private final Map<Integer, Float> supplementary = new ConcurrentHashMap<>();
+        // Float bits of an upper bound on the advance of any glyph measured so far, used to skip
+        // measuring short text. Writers on several threads raise it, so it only moves up through a CAS.
+        private final AtomicInteger widestBits = new AtomicInteger();
+
+        GlyphWidths(String name, boolean bold, boolean italic) {
+            this.bold = bold;
+            java.awt.Font font = null;
+            try {
+                int style = (bold ? java.awt.Font.BOLD : 0) | (italic ? java.awt.Font.ITALIC : 0);
+                font = new java.awt.Font(name, style, 1000);
+                font.getStringBounds("0", RENDER_CONTEXT);
+            } catch (UnsatisfiedLinkError | NoClassDefFoundError | InternalError e) {
+                font = null; // headless host without a font system
+            }
+            this.awtFont = font;
+            // Wide glyphs such as CJK and emoji run to about two digit widths
+            widen(2 * advance('0'));
+            for (char c = ' '; c <= '~'; c++) widen(advance(c));
+        }
+
+        float widest() {
+            return Float.intBitsToFloat(widestBits.get());
+        }
+
+        // Advances are positive, and positive floats order the same as their bits
+        private void widen(float width) {
+            widestBits.accumulateAndGet(Float.floatToIntBits(width), Math::max);
+        }
+
+        float advance(CharSequence text, int start, int end) {
+            float total = 0;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    total += advance(Character.toCodePoint(c, text.charAt(++i)));
+                } else {
+                    total += advance(c);
+                }
+            }
+            return total;
+        }
+
+        float advance(int codePoint) {
+            if (codePoint < bmp.length) {
+                float width = bmp[codePoint];
+                if (width == 0) {
+                    width = bmp[codePoint] = measure(codePoint);
+                    widen(width);
+                }
+                return width;
+            }
+            return supplementary.computeIfAbsent(codePoint, cp -> {
+                float width = measure(cp);
+                widen(width);
+                return width;
+            });
+        }
+
+        private float measure(int codePoint) {
+            if (awtFont != null) {
+                // Zero-width glyphs are stored as a tiny positive value so the cache can tell them from unmeasured
+                return Math.max(1e-6f, (float) awtFont.getStringBounds(new String(Character.toChars(codePoint)), RENDER_CONTEXT).getWidth() / 1000);
+            }
+            return CalibriAdvances.advance(codePoint, bold);
+        }
+    }
+
+    /** Calibri advance widths (units of 1/2048 em) for printable ASCII; other characters are estimated by class. */
+    private static class CalibriAdvances {
+        private static final short[] ASCII = {
+            463, 544, 821, 1038, 1038, 1464, 1397, 450, 621, 621, 1038, 1038, 511, 627, 517, 791,   // space .. /
+            1038, 1038, 1038, 1038, 1038, 1038, 1038, 1038, 1038, 1038, 548, 548, 1038, 1038, 1038, 941, // 0 .. ?
+            1823, 1185, 1114, 1092, 1260, 1000, 941, 1292, 1276, 516, 653, 1064, 861, 1751, 1322, 1356, // @ .. O
+            1058, 1378, 1112, 941, 998, 1314, 1162, 1822, 1063, 998, 959, 621, 791, 621, 1038, 1018,   // P .. _
+            596, 981, 1076, 866, 1076, 1019, 625, 964, 1076, 470, 490, 931, 470, 1636, 1076, 1080,     // ` .. o
+            1076, 1076, 714, 801, 686, 1076, 925, 1464, 887, 927, 809, 640, 944, 640, 1038            // p .. ~
+        };
+
+        static float advance(int codePoint, boolean bold) {
+            float units;
+            if (codePoint >= ' ' && codePoint <= '~') {
+                units = ASCII[codePoint - ' '];
+            } else if (isWide(codePoint)) {
+                units = 2 * 1038;
+            } else if (Character.getType(codePoint) == Character.NON_SPACING_MARK || codePoint == 0xFE0F || codePoint == 0x200D) {
+                units = 0.001f;
+            } else {
+                units = 1038;
+            }
+            // Calibri Bold keeps digit widths and sets letters about 4% wider
+            if (bold && !Character.isDigit(codePoint)) units *= 1.04f;
+            return units / 2048;
+        }
+
+        private static boolean isWide(int cp) {
+            return (cp >= 0x1100 && cp <= 0x115F) || (cp >= 0x2E80 && cp <= 0xA4CF) || (cp >= 0xAC00 && cp <= 0xD7A3)
+                || (cp >= 0xF900 && cp <= 0xFAFF) || (cp >= 0xFF00 && cp <= 0xFF60) || (cp >= 0x2600 && cp <= 0x27BF)
+                || (cp >= 0x1F300 && cp <= 0x1FAFF);
+        }
+    }
+}
@@ -0,0 +1,406 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Byte-level CSV reader for uploads in the "Item Name,Category,Quantity,Date Received" layout.
+ * Fields are located by offset in a ByteBuffer; quantities and dates are decoded by CellDecoder
+ * through a CharSequence view of the bytes and repeated categories are resolved through a
+ * byte-keyed cache, so only item names allocate a String per row. Large uploads are spooled to
+ * disk, memory-mapped and parsed in parallel chunks split at record boundaries. The batch variant of
+ * read hands the chunks on one by one instead of merging them, for ReportPipeline.
+ */
+class CsvItemReader {
+    // Uploads at least this large are memory-mapped from a temp file instead of read into a byte[]
+    static final long MMAP_THRESHOLD_BYTES = Long.getLong("inventory.csvMmapThresholdBytes", 8L * 1024 * 1024);
+    // Buffers at least this large are split into chunks parsed on the common fork-join pool
+    static final int PARALLEL_THRESHOLD_BYTES = Integer.getInteger("inventory.csvParallelThresholdBytes", 16 * 1024 * 1024);
+    // Size of the chunks the batch variant of read hands on
+    static final int BATCH_BYTES = Integer.getInteger("inventory.csvBatchBytes", 1024 * 1024);
+
+    private static final int MAX_FIELDS = 4;
+
+    /** True unless the header looks like a zip (xlsx) or OLE2 (xls) container. */
+    static boolean looksLikeCsv(byte[] head, int length) {
+        if (length >= 4 && head[0] == 'P' && head[1] == 'K' && head[2] == 3 && head[3] == 4) return false;
+        if (length >= 4 && (head[0] & 0xFF) == 0xD0 && (head[1] & 0xFF) == 0xCF
+                && (head[2] & 0xFF) == 0x11 && (head[3] & 0xFF) == 0xE0) return false;
+        return true;
+    }
+
+    static ItemTable read(InputStream in, long size) throws IOException {
+        return withBuffer(in, size, CsvItemReader::parse);
+    }
+
+    /** Parses the upload in chunks of about BATCH_BYTES and hands each chunk's rows to sink, in file order. */
+    static void read(InputStream in, long size, Consumer<ItemTable> sink) throws IOException {
+        withBuffer(in, size, data -> {
+            parseBatches(data, sink);
+            return null;
+        });
+    }
+
+    /** Runs parse over the upload's bytes: in memory when small, memory-mapped from a temp file otherwise. */
+    private static <T> T withBuffer(InputStream in, long size, Function<ByteBuffer, T> parse) throws IOException {
+        if (size >= 0 && size < MMAP_THRESHOLD_BYTES) {
+            return parse.apply(ByteBuffer.wrap(in.readAllBytes()));
+        }
+        File tmp = File.createTempFile("inventory-upload-", ".csv");
+        try {
+            Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("CSV uploads are limited to 2 GB, got " + channel.size() + " bytes");
+                }
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return parse.apply(mapped);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /** Parses the whole buffer, skipping a UTF-8 BOM and the header record. */
+    static ItemTable parse(ByteBuffer data) {
+        int limit = data.limit();
+        int start = firstRecord(data);
+        CellDecoder.DateLayout layout = dateLayout(data, start, limit);
+
+        ItemTable items = new ItemTable();
+        if (limit - start < PARALLEL_THRESHOLD_BYTES) {
+            ChunkParser parser = new ChunkParser(data, items, new CellDecoder(layout, false));
+            parser.parse(start, limit);
+            items.rejections.addAll(parser.rejections, 1);
+        } else {
+            int[] bounds = splitAtRecords(data, start, limit, Runtime.getRuntime().availableProcessors() * 4);
+            ItemTable[] parts = new ItemTable[bounds.length - 1];
+            ChunkParser[] parsers = new ChunkParser[parts.length];
+            IntStream.range(0, parts.length).parallel().forEach(k -> {
+                parts[k] = new ItemTable();
+                parsers[k] = new ChunkParser(data, parts[k], new CellDecoder(layout, false));
+                parsers[k].parse(bounds[k], bounds[k + 1]);
+            });
+            long recordsBefore = 1; // header
+            for (int k = 0; k < parts.length; k++) {
+                items.addAll(parts[k]);
+                items.rejections.addAll(parsers[k].rejections, recordsBefore);
+                recordsBefore += parsers[k].records;
+            }
+        }
+        items.trimToSize();
+        return items;
+    }
+
+    /**
+     * Parses the buffer in record-aligned chunks on the common fork-join pool and hands each chunk's
+     * table to sink in file order, with its rejected rows numbered for the whole file. At most a
+     * window of chunks is parsed ahead of the one sink is waiting on, so a sink that blocks holds
+     * back the parsing too.
+     */
+    static void parseBatches(ByteBuffer data, Consumer<ItemTable> sink) {
+        int limit = data.limit();
+        int start = firstRecord(data);
+        CellDecoder.DateLayout layout = dateLayout(data, start, limit);
+
+        int[] bounds = splitAtRecords(data, start, limit, (int) Math.max(1, ((long) limit - start + BATCH_BYTES - 1) / BATCH_BYTES));
+        int window = Math.max(2, ForkJoinPool.getCommonPoolParallelism());
+        ArrayDeque<CompletableFuture<ChunkParser>> pending = new ArrayDeque<>();
+        long recordsBefore = 1; // header
+        for (int k = 0; k + 1 < bounds.length; k++) {
+            int from = bounds[k], to = bounds[k + 1];
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                ChunkParser parser = new ChunkParser(data, new ItemTable(), new CellDecoder(layout, false));
+                parser.parse(from, to);
+                return parser;
+            }));
+            if (pending.size() >= window) recordsBefore = handOn(pending.poll().join(), recordsBefore, sink);
+        }
+        while (!pending.isEmpty()) recordsBefore = handOn(pending.poll().join(), recordsBefore, sink);
+    }
+
+    private static long handOn(ChunkParser parser, long recordsBefore, Consumer<ItemTable> sink) {
+        parser.items.trimToSize();
+        parser.items.rejections.addAll(parser.rejections, recordsBefore);
+        sink.accept(parser.items);
+        return recordsBefore + parser.records;
+    }
+
+    /** Offset of the first data record: past a UTF-8 BOM and the header record. */
+    private static int firstRecord(ByteBuffer data) {
+        int limit = data.limit();
+        int start = 0;
+        if (limit >= 3 && (data.get(0) & 0xFF) == 0xEF && (data.get(1) & 0xFF) == 0xBB && (data.get(2) & 0xFF) == 0xBF) {
+            start = 3;
+        }
+        return nextRecord(data, start, limit);
+    }
+
+    // The date layout is fixed from the leading records before any chunk is decoded
+    private static CellDecoder.DateLayout dateLayout(ByteBuffer data, int start, int limit) {
+        CellDecoder.Inference inference = new CellDecoder.Inference();
+        new ChunkParser(data, null, null).sample(start, limit, inference);
+        return inference.result();
+    }
+
+    /** Offset just past the record that starts at pos, honoring quoted line breaks. */
+    private static int nextRecord(ByteBuffer data, int pos, int limit) {
+        boolean quoted = false;
+        while (pos < limit) {
+            byte b = data.get(pos++);
+            if (b == '"') quoted = !quoted;
+            else if (b == '\n' && !quoted) break;
+        }
+        return pos;
+    }
+
+    /**
+     * Cuts [start, limit) into roughly equal chunks that each begin on a record boundary.
+     * Quote counts per segment are gathered in parallel first; a newline only ends a record
+     * when the number of quotes before it is even, which holds for RFC 4180 quoting.
+     */
+    static int[] splitAtRecords(ByteBuffer data, int start, int limit, int chunks) {
+        int segment = Math.max(1, (limit - start + chunks - 1) / chunks);
+        int segments = (limit - start + segment - 1) / segment;
+        int[] quoteCounts = new int[segments];
+        IntStream.range(0, segments).parallel().forEach(k -> {
+            int from = start + k * segment, to = Math.min(limit, from + segment), count = 0;
+            for (int i = from; i < to; i++) if (data.get(i) == '"') count++;
+            quoteCounts[k] = count;
+        });
+
+        int[] bounds = new int[segments + 1];
+        bounds[0] = start;
+        bounds[segments] = limit;
+        int quotesBefore = 0;
+        for (int k = 1; k < segments; k++) {
+            quotesBefore += quoteCounts[k - 1];
+            int pos = start + k * segment;
+            boolean quoted = (quotesBefore & 1) == 1;
+            while (pos < limit) {
+                byte b = data.get(pos++);
+                if (b == '"') quoted = !quoted;
+                else if (b == '\n' && !quoted) break;
+            }
+            bounds[k] = Math.max(pos, bounds[k - 1]);
+        }
+        return bounds;
+    }
+
+    /**
+     * Single-threaded parser over one chunk; reuses its field offsets, byte view and scratch buffer
+     * across rows. Rejected rows are numbered by record within the chunk.
+     */
+    private static class ChunkParser {
+        private final ByteBuffer data;
+        private final ItemTable items;
+        private final CellDecoder decoder;
+        private final RejectionReport rejections = new RejectionReport();
+        private final int[] fieldStart = new int[MAX_FIELDS];
+        private final int[] fieldEnd = new int[MAX_FIELDS];
+        private final boolean[] fieldQuoted = new boolean[MAX_FIELDS];
+        private final ByteStringCache categories = new ByteStringCache();
+        private final ByteSlice slice;
+        private byte[] scratch = new byte[256];
+        private CellDecoder.Inference inference;
+        private long records;
+
+        ChunkParser(ByteBuffer data, ItemTable items, CellDecoder decoder) {
+            this.data = data;
+            this.items = items;
+            this.decoder = decoder;
+            this.slice = new ByteSlice(data);
+        }
+
+        /** Feeds the date field of up to SAMPLE_ROWS leading records to the inference instead of decoding them. */
+        void sample(int pos, int limit, CellDecoder.Inference inference) {
+            this.inference = inference;
+            parse(pos, limit);
+        }
+
+        void parse(int pos, int limit) {
+            while (pos < limit) {
+                if (inference != null && inference.samples() >= CellDecoder.SAMPLE_ROWS) return;
+                int fields = 0;
+                boolean endOfRecord = false;
+                while (!endOfRecord) {
+                    boolean quoted = pos < limit && data.get(pos) == '"';
+                    int start = quoted ? pos + 1 : pos;
+                    int end;
+                    if (quoted) {
+                        pos = start;
+                        while (pos < limit) {
+                            if (data.get(pos) == '"') {
+                                if (pos + 1 < limit && data.get(pos + 1) == '"') pos += 2;
+                                else break;
+                            } else {
+                                pos++;
+                            }
+                        }
+                        end = pos;
+                        if (pos < limit) pos++; // closing quote
+                        while (pos < limit && data.get(pos) != ',' && data.get(pos) != '\n') pos++;
+                    } else {
+                        while (pos < limit && data.get(pos) != ',' && data.get(pos) != '\n') pos++;
+                        end = pos;
+                    }
+                    if (pos >= limit || data.get(pos) == '\n') endOfRecord = true;
+                    if (end > start && data.get(end - 1) == '\r' && endOfRecord && !quoted) end--;
+                    if (fields < MAX_FIELDS) {
+                        fieldStart[fields] = start;
+                        fieldEnd[fields] = end;
+                        fieldQuoted[fields] = quoted;
+                    }
+                    fields++;
+                    pos++; // separator or newline
+                }
+                if (fields < MAX_FIELDS) {
+                    for (int f = fields; f < MAX_FIELDS; f++) {
+                        fieldStart[f] = fieldEnd[f] = 0;
+                        fieldQuoted[f] = false;
+                    }
+                }
+                addRecord();
+            }
+        }
+
+        private void addRecord() {
+            records++;
+            if (isBlank(0)) return;
+            if (inference != null) {
+                inference.sample(slice.of(fieldStart[3], fieldEnd[3]));
+                return;
+            }
+
+            int quantity = CellDecoder.quantity(slice.of(fieldStart[2], fieldEnd[2]));
+            if (quantity == CellDecoder.INVALID) {
+                rejections.reject(records, "Quantity", RejectionReport.BAD_QUANTITY, decode(2));
+                return;
+            }
+            int day = decoder.epochDay(slice.of(fieldStart[3], fieldEnd[3]));
+            if (day == CellDecoder.INVALID) {
+                rejections.reject(records, "Date Received",
+                                  isBlank(3) ? RejectionReport.MISSING_DATE : RejectionReport.BAD_DATE, decode(3));
+                return;
+            }
+            String name = decode(0);
+            String category = fieldQuoted[1] ? decode(1) : categories.get(data, fieldStart[1], fieldEnd[1], this);
+            items.add(name, category, quantity, day);
+        }
+
+        private boolean isBlank(int field) {
+            for (int i = fieldStart[field]; i < fieldEnd[field]; i++) {
+                if ((data.get(i) & 0xFF) > ' ') return false; // unsigned: UTF-8 text bytes are 0x80 and up
+            }
+            return true;
+        }
+
+        /** Decodes a field as UTF-8, collapsing doubled quotes inside quoted fields. */
+        String decode(int field) {
+            return decode(fieldStart[field], fieldEnd[field], fieldQuoted[field]);
+        }
+
+        String decode(int start, int end, boolean quoted) {
+            int len = end - start;
+            if (!quoted && data.hasArray()) {
+                return new String(data.array(), data.arrayOffset() + start, len, StandardCharsets.UTF_8);
+            }
+            if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                byte b = data.get(i);
+                scratch[n++] = b;
+                if (quoted && b == '"' && i + 1 < end && data.get(i + 1) == '"') i++;
+            }
+            return new String(scratch, 0, n, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Reusable ASCII view of a byte range, so the decoder can scan fields without copying them. */
+    private static class ByteSlice implements CharSequence {
+        private final ByteBuffer data;
+        private int start, length;
+
+        ByteSlice(ByteBuffer data) {
+            this.data = data;
+        }
+
+        ByteSlice of(int start, int end) {
+            this.start = start;
+            this.length = end - start;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (data.get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) bytes[i] = data.get(start + i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Open-addressing cache from raw field bytes to the decoded String, so a category seen before
+     * resolves without allocating. Sized for low-cardinality columns; stops caching once full.
+     */
+    private static class ByteStringCache {
+        private static final int CAPACITY = 1024;
+        private final String[] values = new String[CAPACITY];
+        private final byte[][] keys = new byte[CAPACITY][];
+        private int size;
+
+        String get(ByteBuffer data, int start, int end, ChunkParser parser) {
+            int hash = 1;
+            for (int i = start; i < end; i++) hash = 31 * hash + data.get(i);
+            int slot = (hash ^ (hash >>> 16)) & (CAPACITY - 1);
+            for (int probe = 0; probe < CAPACITY; probe++) {
+                byte[] key = keys[slot];
+                if (key == null) {
+                    String value = parser.decode(start, end, false);
+                    if (size < CAPACITY / 2) {
+                        byte[] copy = new byte[end - start];
+                        for (int i = 0; i < copy.length; i++) copy[i] = data.get(start + i);
+                        keys[slot] = copy;
+                        values[slot] = value;
+                        size++;
+                    }
+                    return value;
+                }
+                if (matches(key, data, start, end)) return values[slot];
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            return parser.decode(start, end, false);
+        }
+
+        private static boolean matches(byte[] key, ByteBuffer data, int start, int end) {
+            if (key.length != end - start) return false;
+            for (int i = 0; i < key.length; i++) if (key[i] != data.get(start + i)) return false;
+            return true;
+        }
+    }
+}
@@ -1,20 +1,84 @@
 import static spark.Spark.*;
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+import com.google.gson.Gson;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.xssf.usermodel.*;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
 import org.apache.poi.util.IOUtils;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbookPr;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.WorkbookDocument;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.text.DecimalFormat;
 
 public class InventoryAgingReportGenerator {
 
+    // Uploads larger than this are parsed with the streaming SAX reader instead of a full XSSFWorkbook
+    static final long STREAMING_THRESHOLD_BYTES = Long.getLong("inventory.streamingThresholdBytes", 5L * 1024 * 1024);
+    // Reports with at least this many items are rendered through SXSSF straight into the response
+    static final int STREAMING_REPORT_ROWS = Integer.getInteger("inventory.streamingReportRows", 20_000);
+    // Rows kept in memory per sheet by SXSSF before flushing to its temp file
+    static final int SXSSF_WINDOW = Integer.getInteger("inventory.sxssfWindow", 500);
+    // "single-pass" (default), "legacy" for the original multi-pass analysis, or "compare" to run both and log differences
+    static final String ANALYSIS_MODE = System.getProperty("inventory.analysisMode", "single-pass");
+    // Item lists at least this long are accumulated in parallel on the common fork-join pool
+    static final int PARALLEL_ANALYSIS_THRESHOLD = Integer.getInteger("inventory.parallelAnalysisThreshold", 100_000);
+
+    static final String XLSX_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+    // "direct" (default) writes reports with OoxmlReportWriter, "poi" builds them through a POI workbook
+    static final String REPORT_WRITER = System.getProperty("inventory.reportWriter", "direct");
+    // Uploads at least this large overlap parsing, analysis and rendering in ReportPipeline (direct writer, single-pass analysis)
+    static final long PIPELINE_THRESHOLD_BYTES = Long.getLong("inventory.pipelineThresholdBytes", 2L * 1024 * 1024);
+    // Rows per batch the streaming workbook reader hands to ReportPipeline
+    static final int PIPELINE_BATCH_ROWS = Integer.getInteger("inventory.pipelineBatchRows", 32_768);
+
+    // Sheet names, titles and headers shared by the POI and direct report writers
+    static final String SUMMARY_SHEET = "📈 Executive Summary";
+    static final String SUMMARY_TITLE = "🚀 Smart Inventory Aging Report - Executive Summary";
+    // Under the KPIs when categoryMaxAges moves bucket limits, which the Risk Level column does not follow
+    static final String KPI_NOTE = AgingScheme.PRIMARY.hasCategoryLimits()
+        ? "Bucket figures use each category's own age limits; Risk Level uses the default limits for every category."
+        : null;
+    static final String DETAIL_SHEET = "📅 Detailed Aging Analysis";
+    static final String[] DETAIL_HEADERS = {"Aging Bucket", "Item Name", "Category", "Quantity", "Unit Cost", "Total Value", "Date Received", "Days Old", "Risk Level", "Supplier", "Location"};
+    static final String CATEGORY_SHEET = "📋 Category Analysis";
+    static final String CATEGORY_TITLE = "Category Value Analysis";
+    static final String[] CATEGORY_HEADERS = {"Category", "Total Value", "Percentage"};
+    static final String RECOMMENDATIONS_SHEET = "💡 AI Recommendations";
+    static final String RECOMMENDATIONS_TITLE = "🤖 AI-Powered Inventory Recommendations";
+    static final String REJECTED_SHEET = "⚠️ Rejected Rows";
+    static final String REJECTED_TITLE = "Rows left out of the analysis";
+    static final String[] REJECTED_HEADERS = {"Row", "Column", "Reason", "Value"};
+
+    static final ReportCache REPORT_CACHE = new ReportCache();
+
     public static void main(String[] args) {
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            System.exit(BatchRunner.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
         port(8080);
         
         // Enable CORS
@@ -37,27 +101,119 @@ public class InventoryAgingReportGenerator {
         });
 
         post("/upload", (req, res) -> {
-            try (InputStream is = req.raw().getPart("file").getInputStream()) {
+            enableMultipart(req.raw());
+            Part filePart = req.raw().getPart("file");
+            File upload = File.createTempFile("inventory-upload-", ".upload");
+            try (Metrics.Trace trace = Metrics.start("/upload", filePart.getSize())) {
+                String uploadHash;
+                try (InputStream is = filePart.getInputStream()) {
+                    uploadHash = ReportCache.spool(is, upload);
+                }
                 // Get options from form data
-                boolean includeCharts = "true".equals(req.raw().getParameter("includeCharts"));
-                boolean includeSummary = "true".equals(req.raw().getParameter("includeSummary"));
-                boolean includeRecommendations = "true".equals(req.raw().getParameter("includeRecommendations"));
-                
-                List<Item> items = readItemsFromExcel(is);
-                InventoryAnalysis analysis = analyzeInventory(items);
-                ByteArrayOutputStream out = generateSmartReport(analysis, includeCharts, includeSummary, includeRecommendations);
+                ReportOptions options = ReportOptions.from(req.raw());
 
-                res.type("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+                res.type(XLSX_CONTENT_TYPE);
                 res.header("Content-Disposition", "attachment; filename=smart-inventory-aging-report.xlsx");
-                res.raw().getOutputStream().write(out.toByteArray());
-                res.raw().getOutputStream().flush();
+                // No Content-Length: Jetty sends the zip chunked as it is produced
+                CountingOutputStream body = new CountingOutputStream(res.raw().getOutputStream());
+                writeReportCached(uploadHash, upload, options, body);
+                body.flush();
+                trace.bytesOut = body.count;
                 return res.raw();
+            } finally {
+                upload.delete();
             }
         });
+
+        post("/analyze", (req, res) -> {
+            enableMultipart(req.raw());
+            Part filePart = req.raw().getPart("file");
+            File upload = File.createTempFile("inventory-upload-", ".upload");
+            try (Metrics.Trace trace = Metrics.start("/analyze", filePart.getSize())) {
+                String uploadHash;
+                try (InputStream is = filePart.getInputStream()) {
+                    uploadHash = ReportCache.spool(is, upload);
+                }
+                InventoryAnalysis analysis = REPORT_CACHE.getAnalysis(uploadHash);
+                if (analysis == null) analysis = analyzeAndCache(uploadHash, upload);
+
+                // format=ndjson, or an Accept header asking for it, adds the item feed
+                String accept = req.headers("Accept");
+                boolean ndjson = "ndjson".equals(req.queryParams("format"))
+                    || (accept != null && accept.contains(AnalysisJson.NDJSON_CONTENT_TYPE));
+                res.type(ndjson ? AnalysisJson.NDJSON_CONTENT_TYPE : AnalysisJson.JSON_CONTENT_TYPE);
+                CountingOutputStream body = new CountingOutputStream(res.raw().getOutputStream());
+                Writer json = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), 1 << 16);
+                Metrics.begin(Metrics.Stage.WRITE);
+                if (ndjson) AnalysisJson.writeNdjson(analysis, json);
+                else AnalysisJson.writeAggregates(analysis, json);
+                json.flush();
+                Metrics.end(Metrics.Stage.WRITE);
+                trace.bytesOut = body.count;
+                return res.raw();
+            } finally {
+                upload.delete();
+            }
+        });
+
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.scrape();
+        });
+
+        get("/cache/stats", (req, res) -> {
+            res.type("application/json");
+            return new Gson().toJson(REPORT_CACHE.stats());
+        });
+
+        new ReportJobs().registerRoutes();
+        new SnapshotStore().registerRoutes();
         
         System.out.println("🚀 Smart Inventory Analytics Server started at http://localhost:8080");
     }
 
+    /** Jetty only parses multipart bodies when the request carries a multipart config; parts over 1 MB spill to disk. */
+    static void enableMultipart(HttpServletRequest request) {
+        request.setAttribute("org.eclipse.jetty.multipartConfig",
+            new MultipartConfigElement(System.getProperty("java.io.tmpdir"), -1, -1, 1024 * 1024));
+    }
+
+    /** The report sections selected in the upload form. */
+    static class ReportOptions {
+        final boolean includeCharts, includeSummary, includeRecommendations;
+
+        ReportOptions(boolean includeCharts, boolean includeSummary, boolean includeRecommendations) {
+            this.includeCharts = includeCharts;
+            this.includeSummary = includeSummary;
+            this.includeRecommendations = includeRecommendations;
+        }
+
+        static ReportOptions from(HttpServletRequest request) {
+            return new ReportOptions("true".equals(request.getParameter("includeCharts")),
+                                     "true".equals(request.getParameter("includeSummary")),
+                                     "true".equals(request.getParameter("includeRecommendations")));
+        }
+    }
+
+    /** Told which step writeReportCached has reached, for callers that show progress. */
+    interface ReportProgress {
+        ReportProgress NONE = new ReportProgress() {
+        };
+
+        default void parsing() {
+        }
+
+        default void analyzing() {
+        }
+
+        /** The item and rejected row counts, once known; a cached report skips this. */
+        default void analyzed(int items, long rejectedRows) {
+        }
+
+        default void rendering() {
+        }
+    }
+
     static class Item {
         String name, category, supplier, location;
         int quantity;
@@ -72,34 +228,112 @@ public class InventoryAgingReportGenerator {
             this.quantity = quantity;
             this.dateReceived = dateReceived;
             this.agingDays = ChronoUnit.DAYS.between(dateReceived, LocalDate.now());
-            this.unitCost = 10 + Math.random() * 100; // Mock data
+            this.unitCost = mockUnitCost();
             this.totalValue = quantity * unitCost;
-            this.supplier = "Supplier-" + (int)(Math.random() * 10 + 1);
-            this.location = "Warehouse-" + (char)('A' + (int)(Math.random() * 5));
+            this.supplier = mockSupplier();
+            this.location = mockLocation();
             this.riskLevel = calculateRiskLevel();
         }
+
+        Item(String name, String category, int quantity, LocalDate dateReceived, long agingDays,
+             double unitCost, String supplier, String location) {
+            this.name = name;
+            this.category = category;
+            this.quantity = quantity;
+            this.dateReceived = dateReceived;
+            this.agingDays = agingDays;
+            this.unitCost = unitCost;
+            this.totalValue = quantity * unitCost;
+            this.supplier = supplier;
+            this.location = location;
+            this.riskLevel = calculateRiskLevel();
+        }
+
+        // Mock data until the upload format carries cost, supplier and location. Set inventory.mockSeed,
+        // or call seedMockData, to get the same values on every run of a sequential parse.
+        private static volatile Random mockRandom = newMockRandom(Long.getLong("inventory.mockSeed"));
+
+        static void seedMockData(long seed) {
+            mockRandom = newMockRandom(seed);
+        }
+
+        private static Random newMockRandom(Long seed) {
+            return seed != null ? new Random(seed) : new Random();
+        }
+
+        static double mockUnitCost() {
+            return 10 + mockRandom.nextDouble() * 100;
+        }
+
+        static String mockSupplier() {
+            return "Supplier-" + (int)(mockRandom.nextDouble() * 10 + 1);
+        }
+
+        static String mockLocation() {
+            return "Warehouse-" + (char)('A' + (int)(mockRandom.nextDouble() * 5));
+        }
         
         private String calculateRiskLevel() {
-            if (agingDays > 90) return "Critical";
-            if (agingDays > 60) return "High";
-            if (agingDays > 30) return "Medium";
-            return "Low";
+            return ItemTable.RISK_LEVELS[ItemTable.riskLevelFor(agingDays)];
         }
     }
     
     static class InventoryAnalysis {
-        List<Item> items;
-        Map<String, List<Item>> agingGroups;
+        ItemTable items;
+        Map<String, int[]> agingGroups; // bucket label -> rows of items, in table order
         Map<String, Double> categoryValues;
         Map<String, Integer> supplierCounts;
         double totalValue;
         int totalItems;
         List<String> recommendations;
         Map<String, Object> kpis;
+        // Bucket totals and recommendations under each AgingScheme after the first, by name
+        Map<String, AgingScheme.Result> schemes = Collections.emptyMap();
         
-        InventoryAnalysis(List<Item> items) {
+        InventoryAnalysis(ItemTable items) {
             this.items = items;
-            this.agingGroups = groupByAging(items);
+            if ("legacy".equals(ANALYSIS_MODE)) {
+                computeMultiPass(items);
+                return;
+            }
+
+            IntStream rows = IntStream.range(0, items.size());
+            if (items.size() >= PARALLEL_ANALYSIS_THRESHOLD) rows = rows.parallel();
+            AnalysisAccumulator acc = rows.collect(() -> new AnalysisAccumulator(items),
+                                                   AnalysisAccumulator::accept, AnalysisAccumulator::combine);
+            acc.finish(this);
+
+            if ("compare".equals(ANALYSIS_MODE)) {
+                InventoryAnalysis legacy = new InventoryAnalysis();
+                legacy.computeMultiPass(items);
+                List<String> diffs = diff(legacy);
+                if (diffs.isEmpty()) {
+                    System.out.println("Analysis compare: single-pass matches legacy for " + items.size() + " items");
+                } else {
+                    diffs.forEach(d -> System.err.println("Analysis compare mismatch: " + d));
+                }
+            }
+        }
+
+        /** Aggregates gathered elsewhere, such as batch by batch in ReportPipeline; items may hold only the rejections. */
+        InventoryAnalysis(ItemTable items, AnalysisAccumulator acc) {
+            this.items = items;
+            acc.finish(this);
+        }
+
+        private InventoryAnalysis() {
+        }
+
+        /** The original one-walk-per-aggregate path over Item objects, kept for the "legacy" and "compare" modes. */
+        private void computeMultiPass(ItemTable table) {
+            List<Item> items = table.toItems();
+            Map<Item, Integer> rowOf = new IdentityHashMap<>();
+            for (int i = 0; i < items.size(); i++) rowOf.put(items.get(i), i);
+
+            this.items = table;
+            this.agingGroups = new LinkedHashMap<>();
+            groupByAging(items).forEach((bucket, group) ->
+                agingGroups.put(bucket, group.stream().mapToInt(rowOf::get).toArray()));
             this.categoryValues = calculateCategoryValues(items);
             this.supplierCounts = calculateSupplierCounts(items);
             this.totalValue = items.stream().mapToDouble(i -> i.totalValue).sum();
@@ -107,34 +341,422 @@ public class InventoryAgingReportGenerator {
             this.recommendations = generateRecommendations(items);
             this.kpis = calculateKPIs(items);
         }
+
+        private List<String> diff(InventoryAnalysis other) {
+            List<String> diffs = new ArrayList<>();
+            if (!agingGroups.keySet().equals(other.agingGroups.keySet())) diffs.add("agingGroups " + agingGroups.keySet());
+            agingGroups.forEach((k, v) -> {
+                if (!Arrays.equals(v, other.agingGroups.get(k))) diffs.add("agingGroups[" + k + "]");
+            });
+            if (!new ArrayList<>(categoryValues.keySet()).equals(new ArrayList<>(other.categoryValues.keySet()))) {
+                diffs.add("categoryValues order " + categoryValues.keySet() + " vs " + other.categoryValues.keySet());
+            }
+            categoryValues.forEach((k, v) -> {
+                if (!sameValue(v, other.categoryValues.get(k))) diffs.add("categoryValues[" + k + "] " + v + " vs " + other.categoryValues.get(k));
+            });
+            if (!new ArrayList<>(supplierCounts.entrySet()).equals(new ArrayList<>(other.supplierCounts.entrySet()))) {
+                diffs.add("supplierCounts " + supplierCounts + " vs " + other.supplierCounts);
+            }
+            if (!sameValue(totalValue, other.totalValue)) diffs.add("totalValue " + totalValue + " vs " + other.totalValue);
+            if (totalItems != other.totalItems) diffs.add("totalItems " + totalItems + " vs " + other.totalItems);
+            if (!recommendations.equals(other.recommendations)) diffs.add("recommendations " + recommendations + " vs " + other.recommendations);
+            kpis.forEach((k, v) -> {
+                Object o = other.kpis.get(k);
+                boolean same = v instanceof Double && o instanceof Double ? sameValue((Double) v, (Double) o) : Objects.equals(v, o);
+                if (!same) diffs.add("kpis[" + k + "] " + v + " vs " + o);
+            });
+            return diffs;
+        }
+
+        // Parallel accumulation regroups the compensated sums, so allow for rounding in the last bits
+        private static boolean sameValue(Double a, Double b) {
+            if (a == null || b == null) return a == b;
+            return a.equals(b) || Math.abs(a - b) <= 1e-9 * Math.max(Math.abs(a), Math.abs(b));
+        }
     }
 
-    private static List<Item> readItemsFromExcel(InputStream is) throws Exception {
-        List<Item> items = new ArrayList<>();
-        Workbook wb = new XSSFWorkbook(is);
+    /**
+     * Mergeable accumulator that gathers every aggregate InventoryAnalysis needs in one walk over the table rows.
+     * Key maps keep first-encounter order and sums use the same compensated summation as the stream
+     * collectors, so a sequential run reproduces the multi-pass results exactly. combine() appends the
+     * right-hand side, which keeps encounter order when a parallel stream splits the list.
+     *
+     * An accumulator made without a table keeps the aggregates only: it takes no rows itself, and
+     * combining into it drops the other side's bucket rows, which belong to a different table.
+     */
+    static class AnalysisAccumulator {
+        private final ItemTable table;
+        private final RowList[] buckets = new RowList[AgingScheme.PRIMARY.buckets.length];
+        // One per AgingScheme.SCHEMES, the primary scheme first
+        private final AgingScheme.Accumulator[] schemes = new AgingScheme.Accumulator[AgingScheme.SCHEMES.size()];
+        private final Map<String, DoubleSummaryStatistics> categoryValues = new LinkedHashMap<>();
+        private final Map<String, int[]> supplierQuantities = new LinkedHashMap<>();
+        private final DoubleSummaryStatistics totalValue = new DoubleSummaryStatistics();
+        private long ageSum;
+        private int count;
+
+        AnalysisAccumulator(ItemTable table) {
+            this.table = table;
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new RowList();
+            for (int i = 0; i < schemes.length; i++) schemes[i] = AgingScheme.SCHEMES.get(i).new Accumulator(table);
+        }
+
+        AnalysisAccumulator() {
+            this(null);
+        }
+
+        void accept(int row) {
+            long age = table.agingDays(row);
+            double value = table.totalValue(row);
+            buckets[schemes[0].accept(row, age, value)].add(row);
+            for (int i = 1; i < schemes.length; i++) schemes[i].accept(row, age, value);
+
+            categoryValues.computeIfAbsent(table.category(row), k -> new DoubleSummaryStatistics()).accept(value);
+            supplierQuantities.computeIfAbsent(table.supplier(row), k -> new int[1])[0] += table.quantity(row);
+            totalValue.accept(value);
+            ageSum += age;
+            count++;
+        }
+
+        void combine(AnalysisAccumulator other) {
+            if (table != null) {
+                for (int i = 0; i < buckets.length; i++) buckets[i].addAll(other.buckets[i]);
+            }
+            for (int i = 0; i < schemes.length; i++) schemes[i].combine(other.schemes[i]);
+            other.categoryValues.forEach((k, v) -> categoryValues.computeIfAbsent(k, x -> new DoubleSummaryStatistics()).combine(v));
+            other.supplierQuantities.forEach((k, v) -> supplierQuantities.computeIfAbsent(k, x -> new int[1])[0] += v[0]);
+            totalValue.combine(other.totalValue);
+            ageSum += other.ageSum;
+            count += other.count;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /** The rows of each bucket, in AgingScheme.PRIMARY order. */
+        int[][] bucketRows() {
+            int[][] rows = new int[buckets.length][];
+            for (int i = 0; i < buckets.length; i++) rows[i] = buckets[i].toArray();
+            return rows;
+        }
+
+        void finish(InventoryAnalysis analysis) {
+            String[] labels = AgingScheme.PRIMARY.buckets;
+            analysis.agingGroups = new LinkedHashMap<>();
+            for (int i = 0; i < labels.length; i++) analysis.agingGroups.put(labels[i], buckets[i].toArray());
+
+            // groupingBy() fills a HashMap with computeIfAbsent in encounter order; doing the same
+            // reproduces its bin layout and therefore its iteration order
+            analysis.categoryValues = new HashMap<>();
+            categoryValues.forEach((k, v) -> analysis.categoryValues.computeIfAbsent(k, x -> v.getSum()));
+            analysis.supplierCounts = new HashMap<>();
+            supplierQuantities.forEach((k, v) -> analysis.supplierCounts.computeIfAbsent(k, x -> v[0]));
+
+            double total = totalValue.getSum();
+            int critical = AgingScheme.PRIMARY.lastBucket();
+            analysis.totalValue = total;
+            analysis.totalItems = count;
+            analysis.recommendations = schemes[0].recommendations(total);
+            analysis.kpis = kpis(count, total, schemes[0].count(critical), schemes[0].value(critical), ageSum);
+            analysis.schemes = new LinkedHashMap<>();
+            for (int i = 1; i < schemes.length; i++) analysis.schemes.put(schemes[i].scheme().name, schemes[i].result(total));
+        }
+
+        static Map<String, Object> kpis(int count, double total, long criticalCount, double critical, long ageSum) {
+            Map<String, Object> kpis = new HashMap<>();
+            kpis.put("totalItems", count);
+            kpis.put("totalValue", total);
+            kpis.put("criticalItems", criticalCount);
+            kpis.put("criticalValue", critical);
+            kpis.put("criticalPercentage", (critical / total) * 100);
+            kpis.put("averageAge", count == 0 ? 0.0 : (double) ageSum / count);
+            return kpis;
+        }
+    }
+
+    /** Growable int list for row numbers, so bucket membership doesn't box every row. */
+    static class RowList {
+        private int[] rows = new int[16];
+        private int size;
+
+        void add(int row) {
+            if (size == rows.length) rows = Arrays.copyOf(rows, size + (size >> 1));
+            rows[size++] = row;
+        }
+
+        void addAll(RowList other) {
+            if (size + other.size > rows.length) rows = Arrays.copyOf(rows, Math.max(size + other.size, size + (size >> 1)));
+            System.arraycopy(other.rows, 0, rows, size, other.size);
+            size += other.size;
+        }
+
+        int size() { return size; }
+
+        int[] toArray() { return Arrays.copyOf(rows, size); }
+    }
+
+    /**
+     * Sniffs the upload and picks a reader: anything that isn't a zip or OLE2 container is parsed as CSV.
+     * Workbooks go through the XSSFWorkbook DOM when small, and are spooled to a temp file and
+     * streamed row by row when large.
+     */
+    static ItemTable readItems(InputStream upload, long size) throws Exception {
+        Metrics.begin(Metrics.Stage.PARSE);
+        try {
+            ItemTable items = readItemsUntimed(upload, size);
+            Metrics.rows(items.size());
+            return items;
+        } finally {
+            Metrics.end(Metrics.Stage.PARSE);
+        }
+    }
+
+    private static ItemTable readItemsUntimed(InputStream upload, long size) throws Exception {
+        BufferedInputStream is = new BufferedInputStream(upload);
+        if (isCsv(is)) {
+            return CsvItemReader.read(is, size);
+        }
+
+        if (size >= 0 && size < STREAMING_THRESHOLD_BYTES) {
+            return readItemsFromExcel(is);
+        }
+        File tmp = File.createTempFile("inventory-upload-", ".xlsx");
+        try {
+            Files.copy(is, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            ItemTable[] items = new ItemTable[1];
+            readItemsFromExcelStreaming(tmp, Integer.MAX_VALUE, table -> items[0] = table);
+            return items[0];
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads the upload like readItems, but hands the rows to sink a batch at a time, in upload order,
+     * as they are parsed; each batch carries the rejections found in its rows. Small workbooks arrive
+     * as one batch. Not timed: the caller's stages overlap.
+     */
+    static void readItemBatches(InputStream upload, long size, Consumer<ItemTable> sink) throws Exception {
+        BufferedInputStream is = new BufferedInputStream(upload);
+        if (isCsv(is)) {
+            CsvItemReader.read(is, size, sink);
+            return;
+        }
+
+        if (size >= 0 && size < STREAMING_THRESHOLD_BYTES) {
+            sink.accept(readItemsFromExcel(is));
+            return;
+        }
+        File tmp = File.createTempFile("inventory-upload-", ".xlsx");
+        try {
+            Files.copy(is, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            readItemsFromExcelStreaming(tmp, PIPELINE_BATCH_ROWS, sink);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static boolean isCsv(BufferedInputStream is) throws IOException {
+        is.mark(8);
+        byte[] head = new byte[8];
+        int headLength = is.readNBytes(head, 0, head.length);
+        is.reset();
+        return CsvItemReader.looksLikeCsv(head, headLength);
+    }
+
+    private static ItemTable readItemsFromExcel(InputStream is) throws Exception {
+        ItemTable items = new ItemTable();
+        XSSFWorkbook wb = new XSSFWorkbook(is);
         Sheet sheet = wb.getSheetAt(0);
+
+        // Fix the text date layout from the first rows before decoding any of them
+        CellDecoder.Inference inference = new CellDecoder.Inference();
+        for (int i = 1; i <= sheet.getLastRowNum() && inference.samples() < CellDecoder.SAMPLE_ROWS; i++) {
+            Row row = sheet.getRow(i);
+            Cell dateCell = row == null ? null : row.getCell(3);
+            if (dateCell == null) continue;
+            if (dateCell.getCellType() == CellType.NUMERIC) inference.sampleSerial();
+            else if (dateCell.getCellType() == CellType.STRING) inference.sample(dateCell.getStringCellValue());
+        }
+        CellDecoder decoder = new CellDecoder(inference.result(), wb.isDate1904());
         
         for (int i = 1; i <= sheet.getLastRowNum(); i++) {
             Row row = sheet.getRow(i);
             if (row == null) continue;
-            
-            try {
-                String name = getCellValueAsString(row.getCell(0));
-                String category = getCellValueAsString(row.getCell(1));
-                int quantity = (int) getCellValueAsNumber(row.getCell(2));
-                LocalDate date = parseDate(getCellValueAsString(row.getCell(3)));
-                
-                if (name != null && !name.trim().isEmpty()) {
-                    items.add(new Item(name, category, quantity, date));
-                }
-            } catch (Exception e) {
-                System.err.println("Error processing row " + i + ": " + e.getMessage());
+
+            String name = getCellValueAsString(row.getCell(0));
+            if (name.trim().isEmpty()) continue;
+
+            Cell quantityCell = row.getCell(2);
+            int quantity = decodeQuantity(quantityCell);
+            if (quantity == CellDecoder.INVALID) {
+                items.rejections.reject(i + 1, "Quantity", RejectionReport.BAD_QUANTITY, CELL_TEXT.formatCellValue(quantityCell));
+                continue;
+            }
+            Cell dateCell = row.getCell(3);
+            int day = decodeDate(decoder, dateCell);
+            if (day == CellDecoder.INVALID) {
+                String text = CELL_TEXT.formatCellValue(dateCell);
+                items.rejections.reject(i + 1, "Date Received",
+                                        text.trim().isEmpty() ? RejectionReport.MISSING_DATE : RejectionReport.BAD_DATE, text);
+                continue;
             }
+            items.add(name, getCellValueAsString(row.getCell(1)), quantity, day);
         }
         wb.close();
+        items.trimToSize();
         return items;
     }
-    
+
+    // Only used to show the raw text of rejected cells
+    private static final DataFormatter CELL_TEXT = new DataFormatter();
+
+    /**
+     * Streams the first sheet through POI's event API so only the current row is held in memory.
+     * Shared strings and styles are resolved by XSSFSheetXMLHandler; parsed rows are appended to a
+     * table that goes to sink every batchRows rows, and once more, possibly empty, at the end.
+     */
+    private static void readItemsFromExcelStreaming(File file, int batchRows, Consumer<ItemTable> sink) throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ)) {
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            XSSFReader reader = new XSSFReader(pkg);
+            StylesTable styles = reader.getStylesTable();
+            boolean date1904 = isDate1904(reader);
+
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            if (!sheets.hasNext()) {
+                sink.accept(new ItemTable());
+                return;
+            }
+            try (InputStream sheet = sheets.next()) {
+                StreamingRowHandler rows = new StreamingRowHandler(batchRows, date1904, sink);
+                XMLReader parser = XMLHelper.newXMLReader();
+                parser.setContentHandler(new XSSFSheetXMLHandler(
+                    styles, null, strings, rows, new RawCellFormatter(date1904), false));
+                parser.parse(new InputSource(sheet));
+                rows.finish();
+            }
+        }
+    }
+
+    /** workbookPr/@date1904, which XSSFWorkbook.isDate1904 reads on the DOM path. */
+    private static boolean isDate1904(XSSFReader reader) throws Exception {
+        try (InputStream workbook = reader.getWorkbookData()) {
+            CTWorkbookPr properties = WorkbookDocument.Factory.parse(workbook).getWorkbook().getWorkbookPr();
+            return properties != null && properties.getDate1904();
+        }
+    }
+
+    /**
+     * Collects the first four columns of each row and decodes them the same way the DOM path does.
+     * The first SAMPLE_ROWS rows are held back until the date layout has been inferred from them.
+     */
+    private static class StreamingRowHandler implements SheetContentsHandler {
+        private final int batchRows;
+        private final boolean date1904;
+        private final Consumer<ItemTable> sink;
+        private ItemTable items = new ItemTable();
+        private final String[] values = new String[4];
+        private final CellDecoder.Inference inference = new CellDecoder.Inference();
+        private final List<String[]> sampled = new ArrayList<>();
+        private final List<Integer> sampledRows = new ArrayList<>();
+        private CellDecoder decoder;
+        private int rowNum;
+
+        StreamingRowHandler(int batchRows, boolean date1904, Consumer<ItemTable> sink) {
+            this.batchRows = batchRows;
+            this.date1904 = date1904;
+            this.sink = sink;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            this.rowNum = rowNum;
+            Arrays.fill(values, "");
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, org.apache.poi.xssf.usermodel.XSSFComment comment) {
+            int col = new CellReference(cellReference).getCol();
+            if (col < values.length && formattedValue != null) values[col] = formattedValue;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (rowNum == 0) return; // header
+            if (decoder != null) {
+                addRow(rowNum, values);
+                return;
+            }
+            inference.sample(values[3]);
+            sampled.add(values.clone());
+            sampledRows.add(rowNum);
+            if (sampled.size() >= CellDecoder.SAMPLE_ROWS) startDecoding();
+        }
+
+        /** Decodes any rows still held back and hands on the last batch. */
+        void finish() {
+            startDecoding();
+            flush();
+        }
+
+        /** Fixes the layout if the sheet ended inside the sample, then decodes the held-back rows. */
+        private void startDecoding() {
+            if (decoder != null) return;
+            decoder = new CellDecoder(inference.result(), date1904);
+            for (int i = 0; i < sampled.size(); i++) addRow(sampledRows.get(i), sampled.get(i));
+            sampled.clear();
+            sampledRows.clear();
+        }
+
+        private void flush() {
+            ItemTable batch = items;
+            items = new ItemTable();
+            batch.trimToSize();
+            sink.accept(batch);
+        }
+
+        private void addRow(int rowNum, String[] values) {
+            if (values[0].trim().isEmpty()) return;
+            int quantity = CellDecoder.quantity(values[2]);
+            if (quantity == CellDecoder.INVALID) {
+                items.rejections.reject(rowNum + 1, "Quantity", RejectionReport.BAD_QUANTITY, values[2]);
+                return;
+            }
+            int day = decoder.epochDay(values[3]);
+            if (day == CellDecoder.INVALID) {
+                items.rejections.reject(rowNum + 1, "Date Received",
+                                        values[3].trim().isEmpty() ? RejectionReport.MISSING_DATE : RejectionReport.BAD_DATE, values[3]);
+                return;
+            }
+            items.add(values[0], values[1], quantity, day);
+            if (items.size() >= batchRows) flush();
+        }
+    }
+
+    /**
+     * Hands numeric cells to the row handler as raw values instead of display text:
+     * date-formatted cells become ISO dates, everything else is truncated like getCellValueAsString.
+     * XSSFSheetXMLHandler never passes the workbook's date system, so it is fixed per workbook here.
+     */
+    private static class RawCellFormatter extends DataFormatter {
+        private final boolean date1904;
+
+        RawCellFormatter(boolean date1904) {
+            this.date1904 = date1904;
+        }
+
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString, boolean use1904Windowing) {
+            if (DateUtil.isADateFormat(formatIndex, formatString) && DateUtil.isValidExcelDate(value)) {
+                return DateUtil.getLocalDateTime(value, date1904 || use1904Windowing).toLocalDate().toString();
+            }
+            return String.valueOf((int) value);
+        }
+    }
+
+ 
     private static String getCellValueAsString(Cell cell) {
         if (cell == null) return "";
         switch (cell.getCellType()) {
@@ -144,31 +766,32 @@ public class InventoryAgingReportGenerator {
         }
     }
     
-    private static double getCellValueAsNumber(Cell cell) {
+    /** Numeric cells are truncated directly; text goes through the exception-free decoder. */
+    private static int decodeQuantity(Cell cell) {
         if (cell == null) return 0;
         switch (cell.getCellType()) {
-            case NUMERIC: return cell.getNumericCellValue();
-            case STRING: 
-                try { return Double.parseDouble(cell.getStringCellValue()); }
-                catch (NumberFormatException e) { return 0; }
+            case NUMERIC: return (int) cell.getNumericCellValue();
+            case STRING: return CellDecoder.quantity(cell.getStringCellValue());
             default: return 0;
         }
     }
-    
-    private static LocalDate parseDate(String dateStr) {
-        try {
-            return LocalDate.parse(dateStr);
-        } catch (Exception e) {
-            try {
-                return LocalDate.parse(dateStr, DateTimeFormatter.ofPattern("MM/dd/yyyy"));
-            } catch (Exception e2) {
-                return LocalDate.now().minusDays((long)(Math.random() * 365));
-            }
+
+    private static int decodeDate(CellDecoder decoder, Cell cell) {
+        if (cell == null) return CellDecoder.INVALID;
+        switch (cell.getCellType()) {
+            case NUMERIC: return decoder.epochDayFromSerial(cell.getNumericCellValue());
+            case STRING: return decoder.epochDay(cell.getStringCellValue());
+            default: return CellDecoder.INVALID;
         }
     }
 
-    private static InventoryAnalysis analyzeInventory(List<Item> items) {
-        return new InventoryAnalysis(items);
+    static InventoryAnalysis analyzeInventory(ItemTable items) {
+        Metrics.begin(Metrics.Stage.ANALYZE);
+        try {
+            return new InventoryAnalysis(items);
+        } finally {
+            Metrics.end(Metrics.Stage.ANALYZE);
+        }
     }
     
     private static Map<String, List<Item>> groupByAging(List<Item> items) {
@@ -252,29 +875,187 @@ public class InventoryAgingReportGenerator {
                                                            boolean includeCharts, 
                                                            boolean includeSummary, 
                                                            boolean includeRecommendations) throws Exception {
-        XSSFWorkbook workbook = new XSSFWorkbook();
-        
-        // Create styles
-        Map<String, CellStyle> styles = createStyles(workbook);
-        
-        if (includeSummary) {
-            createExecutiveSummarySheet(workbook, analysis, styles);
-        }
-        
-        createDetailedAgingSheet(workbook, analysis, styles);
-        createCategoryAnalysisSheet(workbook, analysis, styles);
-        
-        if (includeRecommendations) {
-            createRecommendationsSheet(workbook, analysis, styles);
-        }
-        
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        workbook.write(out);
-        workbook.close();
+        writeSmartReport(new XSSFWorkbook(), analysis, includeCharts, includeSummary, includeRecommendations, out);
         return out;
     }
+
+    /**
+     * Writes the report for an upload spooled to disk, reusing a cached report for the same bytes and
+     * options, or failing that a cached analysis. Without either, large uploads go through
+     * ReportPipeline, whose analysis holds no items and is not cached. A freshly rendered report is
+     * teed into a temp file that the cache takes over.
+     */
+    static void writeReportCached(String uploadHash, File upload, ReportOptions options, OutputStream out) throws Exception {
+        writeReportCached(uploadHash, upload, options, out, ReportProgress.NONE);
+    }
+
+    static void writeReportCached(String uploadHash, File upload, ReportOptions options, OutputStream out,
+                                  ReportProgress progress) throws Exception {
+        if (REPORT_CACHE.writeReport(uploadHash, options, out)) return;
+
+        InventoryAnalysis analysis = REPORT_CACHE.getAnalysis(uploadHash);
+        boolean pipelined = analysis == null && ReportPipeline.handles(upload);
+        if (analysis == null && !pipelined) {
+            analysis = analyzeAndCache(uploadHash, upload, progress);
+        } else if (analysis != null) {
+            progress.analyzed(analysis.totalItems, analysis.items.rejections.total());
+        }
+
+        File rendered = File.createTempFile("inventory-report-", ".xlsx");
+        try {
+            try (OutputStream copy = new BufferedOutputStream(new FileOutputStream(rendered))) {
+                if (pipelined) {
+                    ReportPipeline.run(upload, options, new TeeOutputStream(out, copy), progress);
+                } else {
+                    progress.rendering();
+                    writeReport(analysis, options, new TeeOutputStream(out, copy));
+                }
+            }
+            REPORT_CACHE.putReport(uploadHash, options, rendered);
+        } finally {
+            rendered.delete();
+        }
+    }
+
+    /** Parses and analyzes a spooled upload and offers the analysis to the cache. */
+    static InventoryAnalysis analyzeAndCache(String uploadHash, File upload) throws Exception {
+        return analyzeAndCache(uploadHash, upload, ReportProgress.NONE);
+    }
+
+    static InventoryAnalysis analyzeAndCache(String uploadHash, File upload, ReportProgress progress) throws Exception {
+        ItemTable table;
+        progress.parsing();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(upload))) {
+            table = readItems(in, upload.length());
+        }
+        progress.analyzing();
+        InventoryAnalysis analysis = analyzeInventory(table);
+        progress.analyzed(analysis.totalItems, analysis.items.rejections.total());
+        REPORT_CACHE.putAnalysis(uploadHash, analysis);
+        return analysis;
+    }
+
+    /** Sends every write to both streams. */
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream first, second;
+
+        TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+
+        // Closing is left to the owners of the two streams
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /** Counts the bytes written through it. */
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Writes the report to out. The direct writer renders the sheets in parallel without a workbook;
+     * the POI path goes through SXSSF once the item count makes a full XSSFWorkbook too large.
+     */
+    static void writeReport(InventoryAnalysis analysis, ReportOptions options, OutputStream out) throws IOException {
+        if ("direct".equals(REPORT_WRITER)) {
+            OoxmlReportWriter.write(analysis, options, out);
+            return;
+        }
+        Workbook workbook = analysis.totalItems >= STREAMING_REPORT_ROWS
+            ? new SXSSFWorkbook(null, SXSSF_WINDOW, true)
+            : new XSSFWorkbook();
+        writeSmartReport(workbook, analysis, options.includeCharts, options.includeSummary, options.includeRecommendations, out);
+    }
+
+    /**
+     * Renders the report into the given workbook and writes it to out. With an SXSSFWorkbook only
+     * the row window stays on heap; its temp files are removed once the zip has been written.
+     */
+    private static void writeSmartReport(Workbook workbook,
+                                         InventoryAnalysis analysis,
+                                         boolean includeCharts,
+                                         boolean includeSummary,
+                                         boolean includeRecommendations,
+                                         OutputStream out) throws IOException {
+        try {
+            Metrics.begin(Metrics.Stage.BUILD);
+            // Create styles
+            Map<String, CellStyle> styles = createStyles(workbook);
+
+            if (includeSummary) {
+                createExecutiveSummarySheet(workbook, analysis, styles);
+            }
+
+            createDetailedAgingSheet(workbook, analysis, styles);
+            createCategoryAnalysisSheet(workbook, analysis, styles);
+
+            if (includeRecommendations) {
+                createRecommendationsSheet(workbook, analysis, styles);
+            }
+
+            if (analysis.items.rejections.total() > 0) {
+                createRejectedRowsSheet(workbook, analysis, styles);
+            }
+            Metrics.end(Metrics.Stage.BUILD);
+
+            Metrics.begin(Metrics.Stage.WRITE);
+            workbook.write(out);
+            Metrics.end(Metrics.Stage.WRITE);
+        } finally {
+            if (workbook instanceof SXSSFWorkbook) {
+                ((SXSSFWorkbook) workbook).dispose();
+            }
+            workbook.close();
+        }
+    }
+
+    /** Sets the widths measured while the sheet's rows were written. */
+    private static void sizeColumns(Sheet sheet, ColumnWidths widths) {
+        Metrics.begin(Metrics.Stage.AUTOSIZE);
+        widths.apply(sheet);
+        Metrics.end(Metrics.Stage.AUTOSIZE);
+    }
     
-    private static Map<String, CellStyle> createStyles(XSSFWorkbook workbook) {
+    private static Map<String, CellStyle> createStyles(Workbook workbook) {
         Map<String, CellStyle> styles = new HashMap<>();
         
         // Header style
@@ -313,108 +1094,118 @@ public class InventoryAgingReportGenerator {
         return styles;
     }
     
-    private static void createExecutiveSummarySheet(XSSFWorkbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
-        Sheet sheet = workbook.createSheet("📈 Executive Summary");
+    private static void createExecutiveSummarySheet(Workbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
+        Sheet sheet = workbook.createSheet(SUMMARY_SHEET);
+        ColumnWidths widths = new ColumnWidths(workbook);
         int rowNum = 0;
         
         // Title
         Row titleRow = sheet.createRow(rowNum++);
         Cell titleCell = titleRow.createCell(0);
-        titleCell.setCellValue("🚀 Smart Inventory Aging Report - Executive Summary");
+        titleCell.setCellValue(SUMMARY_TITLE);
         titleCell.setCellStyle(styles.get("title"));
         sheet.addMergedRegion(new CellRangeAddress(0, 0, 0, 5));
         
         rowNum += 2;
         
         // KPIs
-        String[][] kpiData = {
-            {"Total Items", String.valueOf(analysis.kpis.get("totalItems"))},
-            {"Total Value", String.format("$%.2f", (Double)analysis.kpis.get("totalValue"))},
-            {"Critical Items (>90 days)", String.valueOf(analysis.kpis.get("criticalItems"))},
-            {"Critical Value", String.format("$%.2f", (Double)analysis.kpis.get("criticalValue"))},
-            {"Critical Percentage", String.format("%.1f%%", (Double)analysis.kpis.get("criticalPercentage"))},
-            {"Average Age (days)", String.format("%.0f", (Double)analysis.kpis.get("averageAge"))}
-        };
-        
-        for (String[] kpi : kpiData) {
+        for (String[] kpi : kpiRows(analysis)) {
             Row row = sheet.createRow(rowNum++);
             row.createCell(0).setCellValue(kpi[0]);
             row.createCell(1).setCellValue(kpi[1]);
+            widths.track(row);
         }
+        // Left out of the column widths so the note doesn't stretch the label column
+        if (KPI_NOTE != null) sheet.createRow(rowNum + 1).createCell(0).setCellValue(KPI_NOTE);
         
-        // Auto-size columns
-        for (int i = 0; i < 6; i++) {
-            sheet.autoSizeColumn(i);
-        }
+        sizeColumns(sheet, widths);
     }
     
-    private static void createDetailedAgingSheet(XSSFWorkbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
-        Sheet sheet = workbook.createSheet("📅 Detailed Aging Analysis");
+    /** Label and formatted value of each KPI on the executive summary. */
+    static String[][] kpiRows(InventoryAnalysis analysis) {
+        String critical = AgingScheme.PRIMARY.buckets[AgingScheme.PRIMARY.lastBucket()];
+        return new String[][] {
+            {"Total Items", String.valueOf(analysis.kpis.get("totalItems"))},
+            {"Total Value", String.format("$%.2f", (Double)analysis.kpis.get("totalValue"))},
+            {"Items in " + critical, String.valueOf(analysis.kpis.get("criticalItems"))},
+            {"Value in " + critical, String.format("$%.2f", (Double)analysis.kpis.get("criticalValue"))},
+            {"Value Share in " + critical, String.format("%.1f%%", (Double)analysis.kpis.get("criticalPercentage"))},
+            {"Average Age (days)", String.format("%.0f", (Double)analysis.kpis.get("averageAge"))}
+        };
+    }
+    
+    private static void createDetailedAgingSheet(Workbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
+        Sheet sheet = workbook.createSheet(DETAIL_SHEET);
+        ColumnWidths widths = new ColumnWidths(workbook);
         int rowNum = 0;
         
         // Headers
         Row headerRow = sheet.createRow(rowNum++);
-        String[] headers = {"Aging Bucket", "Item Name", "Category", "Quantity", "Unit Cost", "Total Value", "Date Received", "Days Old", "Risk Level", "Supplier", "Location"};
+        String[] headers = DETAIL_HEADERS;
         for (int i = 0; i < headers.length; i++) {
             Cell cell = headerRow.createCell(i);
             cell.setCellValue(headers[i]);
             cell.setCellStyle(styles.get("header"));
         }
+        widths.track(headerRow);
         
         // Data rows
+        ItemTable items = analysis.items;
         for (String bucket : analysis.agingGroups.keySet()) {
-            for (Item item : analysis.agingGroups.get(bucket)) {
+            for (int item : analysis.agingGroups.get(bucket)) {
                 Row row = sheet.createRow(rowNum++);
                 row.createCell(0).setCellValue(bucket);
-                row.createCell(1).setCellValue(item.name);
-                row.createCell(2).setCellValue(item.category);
-                row.createCell(3).setCellValue(item.quantity);
+                row.createCell(1).setCellValue(items.name(item));
+                row.createCell(2).setCellValue(items.category(item));
+                row.createCell(3).setCellValue(items.quantity(item));
                 
                 Cell costCell = row.createCell(4);
-                costCell.setCellValue(item.unitCost);
+                costCell.setCellValue(items.unitCost(item));
                 costCell.setCellStyle(styles.get("currency"));
                 
                 Cell valueCell = row.createCell(5);
-                valueCell.setCellValue(item.totalValue);
+                valueCell.setCellValue(items.totalValue(item));
                 valueCell.setCellStyle(styles.get("currency"));
                 
-                row.createCell(6).setCellValue(item.dateReceived.toString());
-                row.createCell(7).setCellValue(item.agingDays);
+                row.createCell(6).setCellValue(items.dateReceived(item).toString());
+                row.createCell(7).setCellValue(items.agingDays(item));
                 
                 Cell riskCell = row.createCell(8);
-                riskCell.setCellValue(item.riskLevel);
-                if ("Critical".equals(item.riskLevel)) {
+                String riskLevel = items.riskLevel(item);
+                riskCell.setCellValue(riskLevel);
+                if ("Critical".equals(riskLevel)) {
                     riskCell.setCellStyle(styles.get("critical"));
                 }
                 
-                row.createCell(9).setCellValue(item.supplier);
-                row.createCell(10).setCellValue(item.location);
+                row.createCell(9).setCellValue(items.supplier(item));
+                row.createCell(10).setCellValue(items.location(item));
+                widths.track(row);
             }
         }
         
-        // Auto-size columns
-        for (int i = 0; i < headers.length; i++) {
-            sheet.autoSizeColumn(i);
-        }
+        sizeColumns(sheet, widths);
     }
     
-    private static void createCategoryAnalysisSheet(XSSFWorkbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
-        Sheet sheet = workbook.createSheet("📋 Category Analysis");
+    private static void createCategoryAnalysisSheet(Workbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
+        Sheet sheet = workbook.createSheet(CATEGORY_SHEET);
+        ColumnWidths widths = new ColumnWidths(workbook);
         int rowNum = 0;
         
         // Title
         Row titleRow = sheet.createRow(rowNum++);
         Cell titleCell = titleRow.createCell(0);
-        titleCell.setCellValue("Category Value Analysis");
+        titleCell.setCellValue(CATEGORY_TITLE);
         titleCell.setCellStyle(styles.get("title"));
+        widths.track(titleRow);
         
         rowNum++;
         
         // Headers
         Row headerRow = sheet.createRow(rowNum++);
-        headerRow.createCell(0).setCellValue("Category");
-        headerRow.createCell(1).setCellValue("Total Value");
-        headerRow.createCell(2).setCellValue("Percentage");
+        for (int i = 0; i < CATEGORY_HEADERS.length; i++) {
+            headerRow.createCell(i).setCellValue(CATEGORY_HEADERS[i]);
+        }
+        widths.track(headerRow);
         
         // Data
         double totalValue = analysis.categoryValues.values().stream().mapToDouble(Double::doubleValue).sum();
@@ -426,23 +1217,25 @@ public class InventoryAgingReportGenerator {
             valueCell.setCellValue(entry.getValue());
             valueCell.setCellStyle(styles.get("currency"));
             
-            row.createCell(2).setCellValue(String.format("%.1f%%", (entry.getValue() / totalValue) * 100));
+            row.createCell(2).setCellValue(percentage(entry.getValue(), totalValue));
+            widths.track(row);
         }
         
-        // Auto-size columns
-        for (int i = 0; i < 3; i++) {
-            sheet.autoSizeColumn(i);
-        }
+        sizeColumns(sheet, widths);
+    }
+    
+    static String percentage(double value, double total) {
+        return String.format("%.1f%%", (value / total) * 100);
     }
     
-    private static void createRecommendationsSheet(XSSFWorkbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
-        Sheet sheet = workbook.createSheet("💡 AI Recommendations");
+    private static void createRecommendationsSheet(Workbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
+        Sheet sheet = workbook.createSheet(RECOMMENDATIONS_SHEET);
         int rowNum = 0;
         
         // Title
         Row titleRow = sheet.createRow(rowNum++);
         Cell titleCell = titleRow.createCell(0);
-        titleCell.setCellValue("🤖 AI-Powered Inventory Recommendations");
+        titleCell.setCellValue(RECOMMENDATIONS_TITLE);
         titleCell.setCellStyle(styles.get("title"));
         sheet.addMergedRegion(new CellRangeAddress(0, 0, 0, 3));
         
@@ -456,10 +1249,66 @@ public class InventoryAgingReportGenerator {
             sheet.addMergedRegion(new CellRangeAddress(rowNum-1, rowNum-1, 0, 3));
             rowNum++; // Add spacing
         }
-        
-        // Auto-size columns
-        for (int i = 0; i < 4; i++) {
-            sheet.autoSizeColumn(i);
+        // Every cell sits in a merged region, which column sizing skips; the columns keep their default width
+    }
+
+    private static void createRejectedRowsSheet(Workbook workbook, InventoryAnalysis analysis, Map<String, CellStyle> styles) {
+        RejectionReport rejections = analysis.items.rejections;
+        Sheet sheet = workbook.createSheet(REJECTED_SHEET);
+        ColumnWidths widths = new ColumnWidths(workbook);
+        int rowNum = 0;
+
+        // Title
+        Row titleRow = sheet.createRow(rowNum++);
+        Cell titleCell = titleRow.createCell(0);
+        titleCell.setCellValue(REJECTED_TITLE);
+        titleCell.setCellStyle(styles.get("title"));
+        widths.track(titleRow);
+
+        rowNum++;
+
+        // Counts per reason
+        for (Map.Entry<String, Long> entry : rejections.countsByReason().entrySet()) {
+            Row row = sheet.createRow(rowNum++);
+            row.createCell(0).setCellValue(entry.getKey());
+            row.createCell(1).setCellValue(entry.getValue());
+            widths.track(row);
+        }
+        String note = truncationNote(rejections);
+        if (note != null) {
+            Row row = sheet.createRow(rowNum++);
+            row.createCell(0).setCellValue(note);
+            widths.track(row);
+        }
+
+        rowNum++;
+
+        // Headers
+        Row headerRow = sheet.createRow(rowNum++);
+        String[] headers = REJECTED_HEADERS;
+        for (int i = 0; i < headers.length; i++) {
+            Cell cell = headerRow.createCell(i);
+            cell.setCellValue(headers[i]);
+            cell.setCellStyle(styles.get("header"));
         }
+        widths.track(headerRow);
+
+        // Data
+        for (RejectionReport.Rejection rejection : rejections.details()) {
+            Row row = sheet.createRow(rowNum++);
+            row.createCell(0).setCellValue(rejection.row);
+            row.createCell(1).setCellValue(rejection.column);
+            row.createCell(2).setCellValue(rejection.reason);
+            row.createCell(3).setCellValue(rejection.value);
+            widths.track(row);
+        }
+
+        sizeColumns(sheet, widths);
+    }
+
+    /** Says how many rejected rows the sheet leaves out, or null when it lists them all. */
+    static String truncationNote(RejectionReport rejections) {
+        if (rejections.total() <= rejections.details().size()) return null;
+        return "Showing the first " + rejections.details().size() + " of " + rejections.total() + " rejected rows";
     }
 }
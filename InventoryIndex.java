@@ -0,0 +1,357 @@
+import spark.Request;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Read-side indexes over a snapshot's lots, for GET /inventory/:id/query.
+ *
+ * The age index lists the rows youngest first, ordered by date received. Every other index is kept
+ * in terms of positions in that list: for each category, supplier and location id, the ascending
+ * positions of its rows. A posting list is therefore age-ordered too, and an age range narrows it to
+ * a slice with two binary searches. Risk level is a function of age at the query's as-of date, so it
+ * has no list of its own; it narrows the age range instead.
+ *
+ * A query intersects its filters' slices, shortest first, with sequential merges. With at most one
+ * filter nothing is scanned: top-N by age reads the ends of the slice, and the agingDays percentiles
+ * are exact order statistics read by position. Sorting by value costs one pass over the matches.
+ *
+ * An index is built for one state of the table and never changes; SnapshotStore drops it when a
+ * delta arrives and builds a new one on the next query.
+ */
+class InventoryIndex {
+    static final int DEFAULT_LIMIT = 50;
+    static final int MAX_LIMIT = Integer.getInteger("inventory.query.maxLimit", 10_000);
+
+    // Ages beyond this many days either way are clamped, which keeps the day arithmetic in range
+    private static final long AGE_BOUND = 1L << 40;
+
+    private final ItemTable items;
+    private final int[] byAge;     // rows, youngest first
+    private final int[] dayAt;     // date received of byAge[p], descending
+    private final double[] valueAt; // total value of byAge[p], so value scans read memory in order
+    private final int[][] categoryPositions, supplierPositions, locationPositions;
+
+    InventoryIndex(ItemTable items) {
+        this.items = items;
+        int n = items.size();
+        long[] keys = new long[n];
+        for (int row = 0; row < n; row++) keys[row] = ((long) -items.receivedDay(row) << 32) | row;
+        Arrays.sort(keys);
+        byAge = new int[n];
+        dayAt = new int[n];
+        valueAt = new double[n];
+        for (int p = 0; p < n; p++) {
+            byAge[p] = (int) keys[p];
+            dayAt[p] = items.receivedDay(byAge[p]);
+            valueAt[p] = items.totalValue(byAge[p]);
+        }
+        categoryPositions = postings(items.categories.size(), items::categoryId);
+        supplierPositions = postings(items.suppliers.size(), items::supplierId);
+        locationPositions = postings(items.locations.size(), items::locationId);
+    }
+
+    private int[][] postings(int ids, IntUnaryOperator idOf) {
+        int[] counts = new int[ids];
+        for (int row : byAge) counts[idOf.applyAsInt(row)]++;
+        int[][] postings = new int[ids][];
+        for (int id = 0; id < ids; id++) postings[id] = new int[counts[id]];
+        Arrays.fill(counts, 0);
+        for (int p = 0; p < byAge.length; p++) {
+            int id = idOf.applyAsInt(byAge[p]);
+            postings[id][counts[id]++] = p;
+        }
+        return postings;
+    }
+
+    Result query(Query query) {
+        int asOfDay = query.asOfDay;
+        long minAge = query.minAge;
+        long maxAge = query.maxAge;
+        if (query.risk >= 0) {
+            // A level no bucket has starts at Long.MAX_VALUE; one below the first bucket's has no ages at all
+            long[] floors = AgingScheme.PRIMARY.riskMinAges;
+            minAge = Math.max(minAge, floors[query.risk]);
+            if (query.risk + 1 < floors.length) {
+                maxAge = floors[query.risk + 1] == Long.MIN_VALUE ? Long.MIN_VALUE : Math.min(maxAge, floors[query.risk + 1] - 1);
+            }
+        }
+        minAge = Math.min(Math.max(minAge, -AGE_BOUND), AGE_BOUND);
+        maxAge = Math.min(Math.max(maxAge, -AGE_BOUND - 1), AGE_BOUND);
+        // Youngest first means date received descending: [from, to) holds the dates in range
+        int from = firstBefore(asOfDay - minAge + 1);
+        int to = Math.max(from, firstBefore(asOfDay - maxAge));
+
+        List<Filter> filters = new ArrayList<>();
+        if (!filter(filters, query.category, items.categories, categoryPositions)
+                || !filter(filters, query.supplier, items.suppliers, supplierPositions)
+                || !filter(filters, query.location, items.locations, locationPositions)) {
+            return new Result(query, new ItemTable(LocalDate.ofEpochDay(asOfDay)), 0, 0, null);
+        }
+
+        // With no filters the age range itself is the answer; otherwise intersect the filters' slices,
+        // shortest first
+        Positions matched = new Range(from, to);
+        int scanned = 0;
+        List<Slice> slices = new ArrayList<>();
+        for (Filter filter : filters) slices.add(filter.slice(from, to));
+        slices.sort(Comparator.comparingInt(Slice::size));
+        if (!slices.isEmpty()) matched = slices.get(0);
+        for (int i = 1; i < slices.size(); i++) {
+            scanned += matched.size() + slices.get(i).size();
+            matched = intersect((Slice) matched, slices.get(i));
+        }
+
+        int limit = Math.min(query.limit, matched.size());
+        int[] hits = new int[limit];
+        if (query.byValue) {
+            scanned = Math.max(scanned, matched.size());
+            hits = topByValue(matched, limit, query.ascending);
+        } else {
+            // Oldest first unless ascending was asked for
+            for (int i = 0; i < limit; i++) hits[i] = matched.get(query.ascending ? i : matched.size() - 1 - i);
+        }
+
+        ItemTable table = new ItemTable(LocalDate.ofEpochDay(asOfDay));
+        for (int p : hits) {
+            int row = byAge[p];
+            table.add(items.name(row), items.category(row), items.quantity(row), items.receivedDay(row),
+                      items.unitCost(row), items.supplier(row), items.location(row));
+        }
+
+        long[] percentiles = null;
+        if (matched.size() > 0) {
+            percentiles = new long[query.percentiles.length];
+            for (int i = 0; i < percentiles.length; i++) {
+                // Nearest rank over ages in ascending order
+                int rank = (int) Math.ceil(query.percentiles[i] / 100 * matched.size());
+                percentiles[i] = asOfDay - dayAt[matched.get(Math.max(0, rank - 1))];
+            }
+        }
+        return new Result(query, table, matched.size(), scanned, percentiles);
+    }
+
+    /** Adds the filter for a named dictionary value; false when no row has the value, so nothing can match. */
+    private static boolean filter(List<Filter> filters, String value, ItemTable.Dictionary dictionary, int[][] positions) {
+        if (value == null) return true;
+        int id = dictionary.find(value);
+        if (id < 0) return false;
+        filters.add(new Filter(positions[id]));
+        return true;
+    }
+
+    /** Positions in both slices, by a merge of the two ascending lists. */
+    private static Slice intersect(Slice a, Slice b) {
+        int[] both = new int[Math.min(a.size(), b.size())];
+        int size = 0;
+        for (int i = a.from, j = b.from; i < a.to && j < b.to; ) {
+            int x = a.positions[i], y = b.positions[j];
+            if (x < y) i++;
+            else if (x > y) j++;
+            else {
+                both[size++] = x;
+                i++;
+                j++;
+            }
+        }
+        return new Slice(both, 0, size);
+    }
+
+    /** First position whose date received is before day, or the size when there is none. */
+    private int firstBefore(long day) {
+        int low = 0, high = dayAt.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (dayAt[mid] >= day) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /** The limit highest-value positions, highest first, or the lowest when ascending; a min-heap on primitives. */
+    private int[] topByValue(Positions matched, int limit, boolean ascending) {
+        if (limit == 0) return new int[0];
+        int[] heap = new int[limit];
+        double[] keys = new double[limit];
+        int size = 0;
+        for (int i = 0; i < matched.size(); i++) {
+            int p = matched.get(i);
+            double key = valueAt[p];
+            if (ascending) key = -key;
+            if (size < limit) {
+                // Sift up
+                int child = size++;
+                while (child > 0 && keys[(child - 1) >>> 1] > key) {
+                    int parent = (child - 1) >>> 1;
+                    heap[child] = heap[parent];
+                    keys[child] = keys[parent];
+                    child = parent;
+                }
+                heap[child] = p;
+                keys[child] = key;
+            } else if (key > keys[0]) {
+                siftDown(heap, keys, size, p, key);
+            }
+        }
+        // Pop the weakest off the top into the back of the result
+        int[] hits = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            hits[i] = heap[0];
+            int last = --size;
+            if (last > 0) siftDown(heap, keys, last, heap[last], keys[last]);
+        }
+        return hits;
+    }
+
+    /** Replaces the heap's head with (p, key) and restores the heap order over its first size entries. */
+    private static void siftDown(int[] heap, double[] keys, int size, int p, double key) {
+        int parent = 0;
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= size) break;
+            if (child + 1 < size && keys[child + 1] < keys[child]) child++;
+            if (keys[child] >= key) break;
+            heap[parent] = heap[child];
+            keys[parent] = keys[child];
+            parent = child;
+        }
+        heap[parent] = p;
+        keys[parent] = key;
+    }
+
+    /** Parsed query parameters. */
+    static class Query {
+        int asOfDay;
+        String category, supplier, location;
+        int risk = -1;
+        long minAge = Long.MIN_VALUE, maxAge = Long.MAX_VALUE;
+        boolean byValue, ascending;
+        int limit = DEFAULT_LIMIT;
+        double[] percentiles = {50, 90, 99};
+
+        /**
+         * category, supplier, location and risk filter on exact values; minAge and maxAge bound agingDays;
+         * sort is "age" (default) or "value", order "desc" (default) or "asc"; limit caps the items
+         * returned; percentiles is a comma-separated list; asOf defaults to today.
+         */
+        static Query from(Request req) {
+            Query query = new Query();
+            query.asOfDay = (int) SnapshotStore.asOf(req).toEpochDay();
+            query.category = req.queryParams("category");
+            query.supplier = req.queryParams("supplier");
+            query.location = req.queryParams("location");
+            String risk = req.queryParams("risk");
+            if (risk != null) {
+                for (int i = 0; i < ItemTable.RISK_LEVELS.length; i++) {
+                    if (ItemTable.RISK_LEVELS[i].equalsIgnoreCase(risk)) query.risk = i;
+                }
+                if (query.risk < 0) throw new SnapshotStore.BadRequest("risk must be one of " + String.join(", ", ItemTable.RISK_LEVELS));
+            }
+            if (req.queryParams("minAge") != null) query.minAge = number(req, "minAge");
+            if (req.queryParams("maxAge") != null) query.maxAge = number(req, "maxAge");
+            String sort = req.queryParamOrDefault("sort", "age");
+            if (!sort.equals("age") && !sort.equals("value")) throw new SnapshotStore.BadRequest("sort must be age or value");
+            query.byValue = sort.equals("value");
+            String order = req.queryParamOrDefault("order", "desc");
+            if (!order.equals("asc") && !order.equals("desc")) throw new SnapshotStore.BadRequest("order must be asc or desc");
+            query.ascending = order.equals("asc");
+            if (req.queryParams("limit") != null) {
+                long limit = number(req, "limit");
+                if (limit < 0 || limit > MAX_LIMIT) throw new SnapshotStore.BadRequest("limit must be between 0 and " + MAX_LIMIT);
+                query.limit = (int) limit;
+            }
+            String percentiles = req.queryParams("percentiles");
+            if (percentiles != null) {
+                try {
+                    query.percentiles = percentiles.isEmpty() ? new double[0]
+                        : Arrays.stream(percentiles.split(",")).mapToDouble(p -> Double.parseDouble(p.trim())).toArray();
+                } catch (NumberFormatException e) {
+                    throw new SnapshotStore.BadRequest("percentiles must be numbers, got " + percentiles);
+                }
+                for (double p : query.percentiles) {
+                    if (!(p >= 0 && p <= 100)) throw new SnapshotStore.BadRequest("percentiles must be between 0 and 100");
+                }
+            }
+            return query;
+        }
+
+        private static long number(Request req, String name) {
+            try {
+                return Long.parseLong(req.queryParams(name));
+            } catch (NumberFormatException e) {
+                throw new SnapshotStore.BadRequest(name + " must be a whole number, got " + req.queryParams(name));
+            }
+        }
+    }
+
+    /** A query's answer, copied out of the index so it stays valid once the snapshot changes. */
+    static class Result {
+        final Query query;
+        final ItemTable hits;      // aged as of the query's date
+        final int matched, scanned;
+        final long[] percentiles;  // agingDays at each requested percentile, or null when nothing matched
+
+        Result(Query query, ItemTable hits, int matched, int scanned, long[] percentiles) {
+            this.query = query;
+            this.hits = hits;
+            this.matched = matched;
+            this.scanned = scanned;
+            this.percentiles = percentiles;
+        }
+    }
+
+    private interface Positions {
+        int size();
+        int get(int i);
+    }
+
+    private static class Range implements Positions {
+        final int from, to;
+
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public int size() { return to - from; }
+        public int get(int i) { return from + i; }
+    }
+
+    private static class Slice implements Positions {
+        final int[] positions;
+        final int from, to;
+
+        Slice(int[] positions, int from, int to) {
+            this.positions = positions;
+            this.from = from;
+            this.to = to;
+        }
+
+        public int size() { return to - from; }
+        public int get(int i) { return positions[from + i]; }
+    }
+
+    private static class Filter {
+        final int[] positions;
+
+        Filter(int[] positions) {
+            this.positions = positions;
+        }
+
+        /** The part of this filter's posting list within [from, to). */
+        Slice slice(int from, int to) {
+            return new Slice(positions, lowerBound(positions, from), lowerBound(positions, to));
+        }
+
+        private static int lowerBound(int[] sorted, int key) {
+            int low = 0, high = sorted.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted[mid] < key) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+    }
+}
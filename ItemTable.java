@@ -0,0 +1,262 @@
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Column-oriented store for inventory rows. Each field lives in its own primitive array and the
+ * low-cardinality text columns (category, supplier, location, risk level) are dictionary-encoded,
+ * so a row costs a few dozen bytes instead of an Item object graph. totalValue and agingDays are
+ * derived from the stored columns and the table's as-of date.
+ */
+class ItemTable {
+    static final String[] RISK_LEVELS = {"Low", "Medium", "High", "Critical"};
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    final int asOfDay;
+    final Dictionary categories = new Dictionary();
+    final Dictionary suppliers = new Dictionary();
+    final Dictionary locations = new Dictionary();
+    // Rows the reader dropped while filling this table
+    final RejectionReport rejections = new RejectionReport();
+
+    private int size;
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] quantities = new int[INITIAL_CAPACITY];
+    private double[] unitCosts = new double[INITIAL_CAPACITY];
+    private int[] receivedDays = new int[INITIAL_CAPACITY];
+    private int[] categoryIds = new int[INITIAL_CAPACITY];
+    private int[] supplierIds = new int[INITIAL_CAPACITY];
+    private int[] locationIds = new int[INITIAL_CAPACITY];
+    private byte[] riskIds = new byte[INITIAL_CAPACITY];
+
+    ItemTable() {
+        this(LocalDate.now());
+    }
+
+    ItemTable(LocalDate asOf) {
+        this.asOfDay = (int) asOf.toEpochDay();
+    }
+
+    /** Appends a parsed row, filling unit cost, supplier and location with the same mock data as Item. */
+    int add(String name, String category, int quantity, LocalDate dateReceived) {
+        return add(name, category, quantity, (int) dateReceived.toEpochDay());
+    }
+
+    int add(String name, String category, int quantity, int receivedDay) {
+        double unitCost = InventoryAgingReportGenerator.Item.mockUnitCost();
+        String supplier = InventoryAgingReportGenerator.Item.mockSupplier();
+        String location = InventoryAgingReportGenerator.Item.mockLocation();
+        return add(name, category, quantity, receivedDay, unitCost, supplier, location);
+    }
+
+    int add(String name, String category, int quantity, int receivedDay, double unitCost, String supplier, String location) {
+        if (size == names.length) grow();
+        int row = size++;
+        names[row] = name;
+        quantities[row] = quantity;
+        unitCosts[row] = unitCost;
+        receivedDays[row] = receivedDay;
+        categoryIds[row] = categories.id(category);
+        supplierIds[row] = suppliers.id(supplier);
+        locationIds[row] = locations.id(location);
+        riskIds[row] = (byte) riskLevelFor(asOfDay - receivedDay);
+        return row;
+    }
+
+    /** Appends a row whose text columns are already ids in this table's dictionaries, as SnapshotStore loads them. */
+    int add(String name, int categoryId, int supplierId, int locationId, int quantity, int receivedDay, double unitCost) {
+        if (size == names.length) grow();
+        int row = size++;
+        names[row] = name;
+        quantities[row] = quantity;
+        unitCosts[row] = unitCost;
+        receivedDays[row] = receivedDay;
+        categoryIds[row] = categoryId;
+        supplierIds[row] = supplierId;
+        locationIds[row] = locationId;
+        riskIds[row] = (byte) riskLevelFor(asOfDay - receivedDay);
+        return row;
+    }
+
+    /** Overwrites a row's columns other than its name and date received. */
+    void set(int row, String category, int quantity, double unitCost, String supplier, String location) {
+        quantities[row] = quantity;
+        unitCosts[row] = unitCost;
+        categoryIds[row] = categories.id(category);
+        supplierIds[row] = suppliers.id(supplier);
+        locationIds[row] = locations.id(location);
+    }
+
+    /**
+     * Removes a row by moving the last row into its place, so apart from the last row every row
+     * keeps its number. Dictionary entries stay, even once no row uses them.
+     */
+    void remove(int row) {
+        int last = --size;
+        names[row] = names[last];
+        quantities[row] = quantities[last];
+        unitCosts[row] = unitCosts[last];
+        receivedDays[row] = receivedDays[last];
+        categoryIds[row] = categoryIds[last];
+        supplierIds[row] = supplierIds[last];
+        locationIds[row] = locationIds[last];
+        riskIds[row] = riskIds[last];
+        names[last] = null;
+    }
+
+    /** Appends every row of other, translating its dictionary ids into this table's. */
+    void addAll(ItemTable other) {
+        int[] categoryMap = remap(other.categories, categories);
+        int[] supplierMap = remap(other.suppliers, suppliers);
+        int[] locationMap = remap(other.locations, locations);
+        for (int i = 0; i < other.size; i++) {
+            if (size == names.length) grow();
+            int row = size++;
+            names[row] = other.names[i];
+            quantities[row] = other.quantities[i];
+            unitCosts[row] = other.unitCosts[i];
+            receivedDays[row] = other.receivedDays[i];
+            categoryIds[row] = categoryMap[other.categoryIds[i]];
+            supplierIds[row] = supplierMap[other.supplierIds[i]];
+            locationIds[row] = locationMap[other.locationIds[i]];
+            riskIds[row] = (byte) riskLevelFor(asOfDay - receivedDays[row]);
+        }
+    }
+
+    private static int[] remap(Dictionary from, Dictionary to) {
+        int[] ids = new int[from.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = to.id(from.value(i));
+        return ids;
+    }
+
+    int size() { return size; }
+
+    String name(int row) { return names[row]; }
+    int quantity(int row) { return quantities[row]; }
+    double unitCost(int row) { return unitCosts[row]; }
+    double totalValue(int row) { return quantities[row] * unitCosts[row]; }
+    int receivedDay(int row) { return receivedDays[row]; }
+    LocalDate dateReceived(int row) { return LocalDate.ofEpochDay(receivedDays[row]); }
+    long agingDays(int row) { return asOfDay - receivedDays[row]; }
+
+    int categoryId(int row) { return categoryIds[row]; }
+    int supplierId(int row) { return supplierIds[row]; }
+    int locationId(int row) { return locationIds[row]; }
+    int riskLevelId(int row) { return riskIds[row]; }
+
+    String category(int row) { return categories.value(categoryIds[row]); }
+    String supplier(int row) { return suppliers.value(supplierIds[row]); }
+    String location(int row) { return locations.value(locationIds[row]); }
+    String riskLevel(int row) { return RISK_LEVELS[riskIds[row]]; }
+
+    static int riskLevelFor(long agingDays) {
+        return AgingScheme.PRIMARY.riskLevel(agingDays);
+    }
+
+    /** Materializes a row as an Item, for code that still works on objects. */
+    InventoryAgingReportGenerator.Item item(int row) {
+        return new InventoryAgingReportGenerator.Item(name(row), category(row), quantity(row), dateReceived(row),
+                                                      agingDays(row), unitCost(row), supplier(row), location(row));
+    }
+
+    List<InventoryAgingReportGenerator.Item> toItems() {
+        List<InventoryAgingReportGenerator.Item> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) items.add(item(i));
+        return items;
+    }
+
+    /** Rough retained size: the column arrays plus the item-name strings. */
+    long estimatedBytes() {
+        long bytes = (long) names.length * (4 + 4 + 8 + 4 + 4 + 4 + 4 + 1);
+        for (int i = 0; i < size; i++) bytes += 40 + names[i].length();
+        return bytes;
+    }
+
+    /** Drops the spare capacity left over from growing, once loading is finished. */
+    void trimToSize() {
+        if (size == names.length) return;
+        resize(size);
+    }
+
+    private void grow() {
+        resize(Math.max(16, names.length + (names.length >> 1)));
+    }
+
+    private void resize(int capacity) {
+        names = Arrays.copyOf(names, capacity);
+        quantities = Arrays.copyOf(quantities, capacity);
+        unitCosts = Arrays.copyOf(unitCosts, capacity);
+        receivedDays = Arrays.copyOf(receivedDays, capacity);
+        categoryIds = Arrays.copyOf(categoryIds, capacity);
+        supplierIds = Arrays.copyOf(supplierIds, capacity);
+        locationIds = Arrays.copyOf(locationIds, capacity);
+        riskIds = Arrays.copyOf(riskIds, capacity);
+    }
+
+    /** Assigns dense int ids to distinct strings in first-seen order. */
+    static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int id(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                ids.put(value, id);
+                values.add(value);
+            }
+            return id;
+        }
+
+        /** The value's id, or -1 when it has none; unlike id() this never adds it. */
+        int find(String value) {
+            Integer id = ids.get(value);
+            return id != null ? id : -1;
+        }
+
+        String value(int id) { return values.get(id); }
+
+        int size() { return values.size(); }
+
+        List<String> values() { return Collections.unmodifiableList(values); }
+    }
+
+    /**
+     * Measures retained heap per row for List&lt;Item&gt; versus ItemTable on synthetic rows.
+     * Usage: java ItemTable [rows]
+     */
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        LocalDate today = LocalDate.now();
+        Random random = new Random(42);
+        String[] categories = {"Electronics", "Furniture", "Supplies", "Apparel", "Tools", "Grocery"};
+
+        long base = usedHeap();
+        List<InventoryAgingReportGenerator.Item> items = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            items.add(new InventoryAgingReportGenerator.Item("SKU-" + i, new String(categories[random.nextInt(categories.length)]),
+                                                             random.nextInt(500), today.minusDays(random.nextInt(365))));
+        }
+        long itemBytes = usedHeap() - base;
+        System.out.printf("List<Item>: %,d bytes total, %.1f bytes/row%n", itemBytes, (double) itemBytes / rows);
+        items = null;
+
+        random = new Random(42);
+        base = usedHeap();
+        ItemTable table = new ItemTable(today);
+        for (int i = 0; i < rows; i++) {
+            table.add("SKU-" + i, new String(categories[random.nextInt(categories.length)]),
+                      random.nextInt(500), today.minusDays(random.nextInt(365)));
+        }
+        table.trimToSize();
+        long tableBytes = usedHeap() - base;
+        System.out.printf("ItemTable:  %,d bytes total, %.1f bytes/row%n", tableBytes, (double) tableBytes / rows);
+        System.out.printf("Ratio: %.2fx (%d rows retained)%n", (double) itemBytes / tableBytes, table.size());
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
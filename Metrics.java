@@ -0,0 +1,267 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-request stage timings, exported as Prometheus text on GET /metrics.
+ *
+ * A request handler opens a Trace for its thread; the pipeline marks PARSE, ANALYZE, BUILD, AUTOSIZE
+ * and WRITE through the static begin/end calls, which do nothing on threads without a trace. Uploads
+ * that go through ReportPipeline report one PIPELINE stage in place of PARSE and ANALYZE, since those
+ * overlap with each other and with rendering the detail rows. Closing the trace feeds the histograms
+ * and logs a per-stage breakdown when the request was slow.
+ *
+ * Recording costs two clock reads and two allocation-counter reads per stage plus a few LongAdder
+ * increments per request. Allocated bytes are those of the request thread only; work the parallel
+ * CSV parser or analysis hands to the common pool is not included.
+ *
+ * The scrape ends with JVM heap and garbage collector gauges, read from the platform MXBeans at scrape
+ * time, so a load test can see what the server's heap did without a JMX connection.
+ */
+class Metrics {
+    static final long SLOW_REQUEST_MS = Long.getLong("inventory.metrics.slowRequestMs", 5000);
+
+    enum Stage {
+        PARSE(null), ANALYZE(null), PIPELINE(null), BUILD(null), AUTOSIZE(BUILD), WRITE(null);
+
+        // A nested stage's time is reported on its own and left out of its parent's
+        final Stage parent;
+
+        Stage(Stage parent) {
+            this.parent = parent;
+        }
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final double[] SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+    private static final double[] BYTES = powers(1024, 4, 12);       // 1 KiB .. 4 GiB
+    private static final double[] ROWS = powers(10, 10, 8);          // 10 .. 10M
+
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, String> help = new LinkedHashMap<>();
+
+    static {
+        help.put("inventory_stage_duration_seconds", "Time spent in each report pipeline stage");
+        help.put("inventory_stage_allocated_bytes", "Heap allocated by the request thread in each stage");
+        help.put("inventory_request_duration_seconds", "End-to-end request time");
+        help.put("inventory_request_rows", "Inventory rows parsed per request");
+        help.put("inventory_request_bytes_in", "Upload size per request");
+        help.put("inventory_request_bytes_out", "Response size per request");
+        help.put("inventory_request_allocated_bytes", "Heap allocated by the request thread per request");
+    }
+
+    private Metrics() {
+    }
+
+    /** Starts tracing the current thread's request; close the returned trace when the response is done. */
+    static Trace start(String route, long bytesIn) {
+        Trace trace = new Trace(route, bytesIn);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    static void begin(Stage stage) {
+        Trace trace = CURRENT.get();
+        if (trace != null) trace.begin(stage);
+    }
+
+    static void end(Stage stage) {
+        Trace trace = CURRENT.get();
+        if (trace != null) trace.end(stage);
+    }
+
+    static void rows(long rows) {
+        Trace trace = CURRENT.get();
+        if (trace != null) trace.rows = rows;
+    }
+
+    /** Prometheus text exposition format, version 0.0.4. */
+    static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        Map<String, List<Map.Entry<String, Histogram>>> byName = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            String name = e.getKey().substring(0, e.getKey().indexOf('{'));
+            byName.computeIfAbsent(name, k -> new ArrayList<>()).add(e);
+        }
+        for (Map.Entry<String, List<Map.Entry<String, Histogram>>> metric : byName.entrySet()) {
+            String name = metric.getKey();
+            out.append("# HELP ").append(name).append(' ').append(help.get(name)).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            metric.getValue().sort(Map.Entry.comparingByKey());
+            for (Map.Entry<String, Histogram> series : metric.getValue()) {
+                String key = series.getKey();
+                series.getValue().appendTo(out, name, key.substring(name.length() + 1, key.length() - 1));
+            }
+        }
+        appendJvm(out);
+        return out.toString();
+    }
+
+    private static void appendJvm(StringBuilder out) {
+        java.lang.management.MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        out.append("# HELP jvm_memory_heap_bytes Heap used, committed and maximum size\n");
+        out.append("# TYPE jvm_memory_heap_bytes gauge\n");
+        out.append("jvm_memory_heap_bytes{area=\"used\"} ").append(heap.getUsed()).append('\n');
+        out.append("jvm_memory_heap_bytes{area=\"committed\"} ").append(heap.getCommitted()).append('\n');
+        out.append("jvm_memory_heap_bytes{area=\"max\"} ").append(heap.getMax()).append('\n');
+
+        List<java.lang.management.GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        out.append("# HELP jvm_gc_collections_total Collections run by each garbage collector\n");
+        out.append("# TYPE jvm_gc_collections_total counter\n");
+        for (java.lang.management.GarbageCollectorMXBean gc : collectors) {
+            out.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ")
+                .append(Math.max(gc.getCollectionCount(), 0)).append('\n');
+        }
+        out.append("# HELP jvm_gc_collection_seconds_total Time spent in each garbage collector\n");
+        out.append("# TYPE jvm_gc_collection_seconds_total counter\n");
+        for (java.lang.management.GarbageCollectorMXBean gc : collectors) {
+            out.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ")
+                .append(Math.max(gc.getCollectionTime(), 0) / 1e3).append('\n');
+        }
+    }
+
+    private static void observe(String name, String labels, double[] bounds, double value) {
+        histograms.computeIfAbsent(name + "{" + labels + "}", k -> new Histogram(bounds)).observe(value);
+    }
+
+    private static long allocatedBytes() {
+        return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static double[] powers(double first, double factor, int count) {
+        double[] bounds = new double[count];
+        for (int i = 0; i < count; i++) bounds[i] = first * Math.pow(factor, i);
+        return bounds;
+    }
+
+    /** One request's stage totals; owned by the thread that handles the request. */
+    static class Trace implements AutoCloseable {
+        private final String route;
+        private final long startNanos = System.nanoTime();
+        private final long startAllocated = allocatedBytes();
+        private final long[] stageNanos = new long[Stage.values().length];
+        private final long[] stageAllocated = new long[Stage.values().length];
+        private final long[] openNanos = new long[Stage.values().length];
+        private final long[] openAllocated = new long[Stage.values().length];
+        private final boolean[] seen = new boolean[Stage.values().length];
+        long bytesIn, bytesOut, rows;
+
+        private Trace(String route, long bytesIn) {
+            this.route = route;
+            this.bytesIn = bytesIn;
+        }
+
+        void begin(Stage stage) {
+            openNanos[stage.ordinal()] = System.nanoTime();
+            openAllocated[stage.ordinal()] = allocatedBytes();
+        }
+
+        void end(Stage stage) {
+            int s = stage.ordinal();
+            long nanos = System.nanoTime() - openNanos[s];
+            long allocated = allocatedBytes() - openAllocated[s];
+            stageNanos[s] += nanos;
+            stageAllocated[s] += allocated;
+            seen[s] = true;
+            if (stage.parent != null) {
+                stageNanos[stage.parent.ordinal()] -= nanos;
+                stageAllocated[stage.parent.ordinal()] -= allocated;
+            }
+        }
+
+        @Override
+        public void close() {
+            CURRENT.remove();
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = allocatedBytes() - startAllocated;
+            String routeLabel = "route=\"" + route + "\"";
+            for (Stage stage : Stage.values()) {
+                if (!seen[stage.ordinal()]) continue;
+                String labels = routeLabel + ",stage=\"" + stage.label() + "\"";
+                observe("inventory_stage_duration_seconds", labels, SECONDS, stageNanos[stage.ordinal()] / 1e9);
+                observe("inventory_stage_allocated_bytes", labels, BYTES, stageAllocated[stage.ordinal()]);
+            }
+            observe("inventory_request_duration_seconds", routeLabel, SECONDS, nanos / 1e9);
+            observe("inventory_request_rows", routeLabel, ROWS, rows);
+            observe("inventory_request_bytes_in", routeLabel, BYTES, bytesIn);
+            observe("inventory_request_bytes_out", routeLabel, BYTES, bytesOut);
+            observe("inventory_request_allocated_bytes", routeLabel, BYTES, allocated);
+
+            if (nanos / 1_000_000 >= SLOW_REQUEST_MS) {
+                System.out.println("Slow request " + route + ": " + breakdown(nanos, allocated));
+            }
+        }
+
+        private String breakdown(long nanos, long allocated) {
+            StringBuilder line = new StringBuilder();
+            line.append(nanos / 1_000_000).append(" ms, ").append(mib(allocated)).append(" allocated; ");
+            for (Stage stage : Stage.values()) {
+                if (!seen[stage.ordinal()]) continue;
+                line.append(stage.label()).append(' ').append(stageNanos[stage.ordinal()] / 1_000_000).append(" ms/")
+                    .append(mib(stageAllocated[stage.ordinal()])).append(", ");
+            }
+            return line.append(rows).append(" rows, ").append(mib(bytesIn)).append(" in, ")
+                .append(mib(bytesOut)).append(" out").toString();
+        }
+
+        private static String mib(long bytes) {
+            return bytes < 1024 * 1024 ? (bytes / 1024) + " KB" : String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+    }
+
+    /** Fixed-bucket histogram; observations only touch adders, so concurrent requests don't contend on a lock. */
+    private static class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void observe(double value) {
+            int i = Arrays.binarySearch(bounds, value);
+            if (i < 0) i = -i - 1;
+            if (i < buckets.length) buckets[i].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        void appendTo(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(",le=\"").append(format(bounds[i]))
+                    .append("\"} ").append(cumulative).append('\n');
+            }
+            long total = Math.max(count.sum(), cumulative);
+            out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(total).append('\n');
+            out.append(name).append("_sum{").append(labels).append("} ").append(sum.sum()).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(total).append('\n');
+        }
+
+        private static String format(double bound) {
+            return bound == Math.rint(bound) && bound < 1e15 ? Long.toString((long) bound) : Double.toString(bound);
+        }
+    }
+}
@@ -0,0 +1,776 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.stream.IntStream;
+
+/**
+ * Writes the report xlsx as SpreadsheetML directly, without a POI workbook. Each sheet's XML is
+ * rendered and deflated on the common fork-join pool while the zip is assembled; the detailed aging
+ * sheet, which holds one row per item, is split into row chunks that render in parallel and are
+ * streamed into the zip in order, so only a window of chunks is ever on heap. SegmentedZipWriter
+ * then only has to concatenate the deflated pieces.
+ *
+ * The sheets carry the same cells, styles, merged regions and column widths as the POI builders in
+ * InventoryAgingReportGenerator. Strings are written inline rather than through a shared string table,
+ * and styles.xml is a fixed table whose cellXfs follow the order createStyles creates its styles in.
+ *
+ * Column widths go in the <cols> element ahead of the rows, so the detailed sheet is measured in a
+ * parallel pass of its own before it is rendered. StreamedDetailSheet is the exception: ReportPipeline
+ * fills it batch by batch while the upload is still being parsed, measuring as it renders.
+ */
+class OoxmlReportWriter {
+    // Item rows per render task of the detailed sheet
+    static final int CHUNK_ROWS = Integer.getInteger("inventory.ooxml.chunkRows", 8192);
+    // Deflate level of the zip parts; each chunk is deflated by the task that rendered it
+    static final int DEFLATE_LEVEL = Integer.getInteger("inventory.ooxml.deflateLevel", Deflater.DEFAULT_COMPRESSION);
+
+    // Rows in a worksheet
+    private static final int MAX_ROWS = 1 << 20;
+    // Rendered XML is handed to the deflater in pieces of about this size
+    private static final int FLUSH_BYTES = 1 << 16;
+
+    // cellXfs indexes in STYLES_XML
+    static final int DEFAULT = 0, HEADER = 1, TITLE = 2, CRITICAL = 3, CURRENCY = 4;
+
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private static final String STYLES_XML = XML_DECLARATION
+        + "<styleSheet xmlns=\"" + MAIN_NS + "\">"
+        + "<numFmts count=\"1\"><numFmt numFmtId=\"164\" formatCode=\"$#,##0.00\"/></numFmts>"
+        + "<fonts count=\"3\">"
+        + "<font><sz val=\"11\"/><color indexed=\"8\"/><name val=\"Calibri\"/><family val=\"2\"/><scheme val=\"minor\"/></font>"
+        + "<font><b/><sz val=\"11\"/><color indexed=\"9\"/><name val=\"Calibri\"/><family val=\"2\"/></font>"
+        + "<font><b/><sz val=\"16\"/><name val=\"Calibri\"/><family val=\"2\"/></font>"
+        + "</fonts>"
+        + "<fills count=\"4\">"
+        + "<fill><patternFill patternType=\"none\"/></fill>"
+        + "<fill><patternFill patternType=\"gray125\"/></fill>"
+        + "<fill><patternFill patternType=\"solid\"><fgColor indexed=\"18\"/><bgColor indexed=\"64\"/></patternFill></fill>"
+        + "<fill><patternFill patternType=\"solid\"><fgColor indexed=\"10\"/><bgColor indexed=\"64\"/></patternFill></fill>"
+        + "</fills>"
+        + "<borders count=\"2\">"
+        + "<border><left/><right/><top/><bottom/><diagonal/></border>"
+        + "<border><left style=\"thin\"/><right style=\"thin\"/><top style=\"thin\"/><bottom style=\"thin\"/><diagonal/></border>"
+        + "</borders>"
+        + "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>"
+        + "<cellXfs count=\"5\">"
+        + "<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>"
+        + "<xf numFmtId=\"0\" fontId=\"1\" fillId=\"2\" borderId=\"1\" xfId=\"0\" applyFont=\"1\" applyFill=\"1\" applyBorder=\"1\"/>"
+        + "<xf numFmtId=\"0\" fontId=\"2\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyFont=\"1\"/>"
+        + "<xf numFmtId=\"0\" fontId=\"0\" fillId=\"3\" borderId=\"0\" xfId=\"0\" applyFill=\"1\"/>"
+        + "<xf numFmtId=\"164\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyNumberFormat=\"1\"/>"
+        + "</cellXfs>"
+        + "<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>"
+        + "</styleSheet>";
+
+    // Font of each cellXf, for column widths
+    private static final ColumnWidths.GlyphWidths REGULAR = ColumnWidths.glyphs("Calibri", false, false);
+    private static final ColumnWidths.GlyphWidths BOLD = ColumnWidths.glyphs("Calibri", true, false);
+    private static final ColumnWidths.GlyphWidths[] STYLE_GLYPHS = {REGULAR, BOLD, BOLD, REGULAR, REGULAR};
+    private static final float[] STYLE_POINTS = {11, 11, 16, 11, 11};
+
+    private static final String[] COLUMN_LETTERS = new String[26];
+
+    static {
+        for (int i = 0; i < COLUMN_LETTERS.length; i++) COLUMN_LETTERS[i] = String.valueOf((char) ('A' + i));
+    }
+
+    private OoxmlReportWriter() {
+    }
+
+    /** Writes the report for the given sections to out; out is left open. */
+    static void write(InventoryAgingReportGenerator.InventoryAnalysis analysis,
+                      InventoryAgingReportGenerator.ReportOptions options, OutputStream out) throws IOException {
+        write(analysis, options, new DetailSheet(analysis), out);
+    }
+
+    /** Writes the report with the detailed aging sheet taken from detail instead of analysis.agingGroups. */
+    static void write(InventoryAgingReportGenerator.InventoryAnalysis analysis,
+                      InventoryAgingReportGenerator.ReportOptions options, DetailPart detail, OutputStream out) throws IOException {
+        Metrics.begin(Metrics.Stage.BUILD);
+        List<String> names = new ArrayList<>();
+        List<CompletableFuture<SegmentedZipWriter.Segment>> parts = new ArrayList<>();
+        int detailIndex;
+        if (options.includeSummary) {
+            names.add(InventoryAgingReportGenerator.SUMMARY_SHEET);
+            parts.add(CompletableFuture.supplyAsync(() -> summarySheet(analysis, true).deflate()));
+        }
+        names.add(InventoryAgingReportGenerator.DETAIL_SHEET);
+        detailIndex = parts.size();
+        parts.add(null); // streamed below
+        names.add(InventoryAgingReportGenerator.CATEGORY_SHEET);
+        parts.add(CompletableFuture.supplyAsync(() -> categorySheet(analysis).deflate()));
+        if (options.includeRecommendations) {
+            names.add(InventoryAgingReportGenerator.RECOMMENDATIONS_SHEET);
+            parts.add(CompletableFuture.supplyAsync(() -> recommendationsSheet(analysis).deflate()));
+        }
+        if (analysis.items.rejections.total() > 0) {
+            names.add(InventoryAgingReportGenerator.REJECTED_SHEET);
+            parts.add(CompletableFuture.supplyAsync(() -> rejectedRowsSheet(analysis).deflate()));
+        }
+        detail.prepare();
+        Metrics.end(Metrics.Stage.BUILD);
+
+        Metrics.begin(Metrics.Stage.WRITE);
+        try (SegmentedZipWriter zip = new SegmentedZipWriter(out)) {
+            writePart(zip, "[Content_Types].xml", contentTypes(names.size()));
+            writePart(zip, "_rels/.rels", rootRelationships());
+            writePart(zip, "docProps/app.xml", XML_DECLARATION
+                + "<Properties xmlns=\"http://schemas.openxmlformats.org/officeDocument/2006/extended-properties\">"
+                + "<Application>Smart Inventory Aging</Application></Properties>");
+            writePart(zip, "docProps/core.xml", coreProperties());
+            writePart(zip, "xl/workbook.xml", workbook(names));
+            writePart(zip, "xl/_rels/workbook.xml.rels", workbookRelationships(names.size()));
+            writePart(zip, "xl/styles.xml", STYLES_XML);
+            for (int i = 0; i < parts.size(); i++) {
+                zip.putNextEntry("xl/worksheets/sheet" + (i + 1) + ".xml");
+                if (i == detailIndex) {
+                    detail.writeTo(zip, detailIndex == 0);
+                } else {
+                    zip.write(join(parts.get(i)));
+                }
+                zip.closeEntry();
+            }
+        }
+        Metrics.end(Metrics.Stage.WRITE);
+    }
+
+    private static SheetXml summarySheet(InventoryAgingReportGenerator.InventoryAnalysis analysis, boolean selected) {
+        SheetXml sheet = new SheetXml(selected);
+        sheet.startRow(0);
+        sheet.text(0, InventoryAgingReportGenerator.SUMMARY_TITLE, TITLE, false);
+        sheet.endRow();
+        sheet.merge("A1:F1");
+        int row = 3;
+        for (String[] kpi : InventoryAgingReportGenerator.kpiRows(analysis)) {
+            sheet.startRow(row++);
+            sheet.text(0, kpi[0], DEFAULT, true);
+            sheet.text(1, kpi[1], DEFAULT, true);
+            sheet.endRow();
+        }
+        if (InventoryAgingReportGenerator.KPI_NOTE != null) {
+            sheet.startRow(row + 1);
+            sheet.text(0, InventoryAgingReportGenerator.KPI_NOTE, DEFAULT, false);
+            sheet.endRow();
+        }
+        return sheet;
+    }
+
+    private static SheetXml categorySheet(InventoryAgingReportGenerator.InventoryAnalysis analysis) {
+        SheetXml sheet = new SheetXml(false);
+        sheet.startRow(0);
+        sheet.text(0, InventoryAgingReportGenerator.CATEGORY_TITLE, TITLE, true);
+        sheet.endRow();
+        sheet.startRow(2);
+        String[] headers = InventoryAgingReportGenerator.CATEGORY_HEADERS;
+        for (int i = 0; i < headers.length; i++) sheet.text(i, headers[i], DEFAULT, true);
+        sheet.endRow();
+        double totalValue = analysis.categoryValues.values().stream().mapToDouble(Double::doubleValue).sum();
+        int row = 3;
+        for (Map.Entry<String, Double> entry : analysis.categoryValues.entrySet()) {
+            sheet.startRow(row++);
+            sheet.text(0, entry.getKey(), DEFAULT, true);
+            sheet.number(1, entry.getValue(), CURRENCY, true);
+            sheet.text(2, InventoryAgingReportGenerator.percentage(entry.getValue(), totalValue), DEFAULT, true);
+            sheet.endRow();
+        }
+        return sheet;
+    }
+
+    private static SheetXml recommendationsSheet(InventoryAgingReportGenerator.InventoryAnalysis analysis) {
+        // Every cell is merged across A:D, which column sizing skips
+        SheetXml sheet = new SheetXml(false);
+        sheet.startRow(0);
+        sheet.text(0, InventoryAgingReportGenerator.RECOMMENDATIONS_TITLE, TITLE, false);
+        sheet.endRow();
+        sheet.merge("A1:D1");
+        int row = 3;
+        for (String recommendation : analysis.recommendations) {
+            sheet.startRow(row);
+            sheet.text(0, recommendation, DEFAULT, false);
+            sheet.endRow();
+            sheet.merge("A" + (row + 1) + ":D" + (row + 1));
+            row += 2;
+        }
+        return sheet;
+    }
+
+    private static SheetXml rejectedRowsSheet(InventoryAgingReportGenerator.InventoryAnalysis analysis) {
+        RejectionReport rejections = analysis.items.rejections;
+        SheetXml sheet = new SheetXml(false);
+        sheet.startRow(0);
+        sheet.text(0, InventoryAgingReportGenerator.REJECTED_TITLE, TITLE, true);
+        sheet.endRow();
+        int row = 2;
+        for (Map.Entry<String, Long> entry : rejections.countsByReason().entrySet()) {
+            sheet.startRow(row++);
+            sheet.text(0, entry.getKey(), DEFAULT, true);
+            sheet.number(1, entry.getValue(), DEFAULT, true);
+            sheet.endRow();
+        }
+        String note = InventoryAgingReportGenerator.truncationNote(rejections);
+        if (note != null) {
+            sheet.startRow(row++);
+            sheet.text(0, note, DEFAULT, true);
+            sheet.endRow();
+        }
+        row++;
+        sheet.startRow(row++);
+        String[] headers = InventoryAgingReportGenerator.REJECTED_HEADERS;
+        for (int i = 0; i < headers.length; i++) sheet.text(i, headers[i], HEADER, true);
+        sheet.endRow();
+        for (RejectionReport.Rejection rejection : rejections.details()) {
+            sheet.startRow(row++);
+            sheet.number(0, rejection.row, DEFAULT, true);
+            sheet.text(1, rejection.column, DEFAULT, true);
+            sheet.text(2, rejection.reason, DEFAULT, true);
+            sheet.text(3, rejection.value, DEFAULT, true);
+            sheet.endRow();
+        }
+        return sheet;
+    }
+
+    /** Where the detailed aging sheet comes from: rendered from an analysis, or fed in batches by ReportPipeline. */
+    interface DetailPart {
+        /** Work to finish before the zip is written, timed as part of the build. */
+        void prepare();
+
+        void writeTo(SegmentedZipWriter zip, boolean selected) throws IOException;
+    }
+
+    /** The detailed aging sheet: a header row, then every item in bucket order. */
+    private static class DetailSheet implements DetailPart {
+        private final InventoryAgingReportGenerator.InventoryAnalysis analysis;
+        private final String[] buckets;
+        private final int[][] bucketRows;
+        private final long[] bucketStarts; // index of each bucket's first item in sheet order
+        private final int itemCount;
+        private ColumnWidths widths;
+
+        DetailSheet(InventoryAgingReportGenerator.InventoryAnalysis analysis) {
+            this.analysis = analysis;
+            this.buckets = analysis.agingGroups.keySet().toArray(new String[0]);
+            this.bucketRows = new int[buckets.length][];
+            this.bucketStarts = new long[buckets.length + 1];
+            for (int b = 0; b < buckets.length; b++) {
+                bucketRows[b] = analysis.agingGroups.get(buckets[b]);
+                bucketStarts[b + 1] = bucketStarts[b] + bucketRows[b].length;
+            }
+            this.itemCount = (int) bucketStarts[buckets.length];
+        }
+
+        private int chunks() {
+            return (itemCount + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        }
+
+        /** Column widths over the header and every item, measured chunk by chunk in parallel. */
+        @Override
+        public void prepare() {
+            Metrics.begin(Metrics.Stage.AUTOSIZE);
+            widths = headerWidths();
+            IntStream chunkIndexes = IntStream.range(0, chunks());
+            if (itemCount >= CHUNK_ROWS * 2) chunkIndexes = chunkIndexes.parallel();
+            chunkIndexes.mapToObj(this::measureChunk).forEachOrdered(widths::merge);
+            Metrics.end(Metrics.Stage.AUTOSIZE);
+        }
+
+        private ColumnWidths measureChunk(int chunk) {
+            ColumnWidths widths = newWidths();
+            DecimalFormat currency = currencyFormat();
+            forEachItem(chunk, (bucket, item) -> measureItem(widths, currency, analysis.items, item, bucket));
+            return widths;
+        }
+
+        /** Streams the sheet into the zip, keeping at most a window of rendered chunks in flight. */
+        @Override
+        public void writeTo(SegmentedZipWriter zip, boolean selected) throws IOException {
+            zip.write(detailHead(selected, itemCount, widths).deflate());
+
+            int window = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+            ArrayDeque<CompletableFuture<SegmentedZipWriter.Segment>> pending = new ArrayDeque<>();
+            for (int chunk = 0; chunk < chunks(); chunk++) {
+                int c = chunk;
+                pending.add(CompletableFuture.supplyAsync(() -> renderChunk(c)));
+                if (pending.size() >= window) zip.write(join(pending.poll()));
+            }
+            while (!pending.isEmpty()) zip.write(join(pending.poll()));
+
+            zip.write(detailTail().deflate());
+        }
+
+        private SegmentedZipWriter.Segment renderChunk(int chunk) {
+            XmlBuffer xml = new XmlBuffer(FLUSH_BYTES + 4096);
+            SegmentedZipWriter.SegmentDeflater deflater = new SegmentedZipWriter.SegmentDeflater(DEFLATE_LEVEL);
+            int[] rowNumber = {chunk * CHUNK_ROWS + 1}; // the header is row 0
+            forEachItem(chunk, (bucket, item) -> {
+                renderItem(xml, analysis.items, item, bucket, rowNumber[0]++);
+                if (xml.size() >= FLUSH_BYTES) xml.drainTo(deflater);
+            });
+            xml.drainTo(deflater);
+            return deflater.finish();
+        }
+
+        private void forEachItem(int chunk, ItemVisitor visitor) {
+            long from = (long) chunk * CHUNK_ROWS;
+            long to = Math.min(from + CHUNK_ROWS, itemCount);
+            int b = 0;
+            while (bucketStarts[b + 1] <= from) b++;
+            for (long i = from; i < to; i++) {
+                while (i >= bucketStarts[b + 1]) b++;
+                visitor.visit(buckets[b], bucketRows[b][(int) (i - bucketStarts[b])]);
+            }
+        }
+    }
+
+    /**
+     * The detailed aging sheet assembled from batches of an upload that is still being parsed. Each
+     * batch is rendered and deflated per aging bucket as it arrives; writeTo then lays the pieces out
+     * bucket by bucket, in batch order within a bucket. A row's final position depends on how many
+     * rows of earlier buckets later batches bring, so item rows carry no r attribute and readers
+     * number them in order, as the format allows.
+     *
+     * render() is safe on any thread; add() and writeTo() belong to the thread that owns the sheet.
+     */
+    static class StreamedDetailSheet implements DetailPart {
+        private final String[] buckets;
+        private final List<List<SegmentedZipWriter.Segment>> segments = new ArrayList<>();
+        private final ColumnWidths widths = headerWidths();
+        private long itemCount;
+
+        StreamedDetailSheet(String[] buckets) {
+            this.buckets = buckets.clone();
+            for (int b = 0; b < buckets.length; b++) segments.add(new ArrayList<>());
+        }
+
+        /** Renders and measures one batch; bucketRows holds the batch's rows of each bucket, in bucket order. */
+        Batch render(ItemTable items, int[][] bucketRows) {
+            Batch batch = new Batch(buckets.length);
+            DecimalFormat currency = currencyFormat();
+            XmlBuffer xml = new XmlBuffer(FLUSH_BYTES + 4096);
+            for (int b = 0; b < buckets.length; b++) {
+                if (bucketRows[b].length == 0) continue;
+                SegmentedZipWriter.SegmentDeflater deflater = new SegmentedZipWriter.SegmentDeflater(DEFLATE_LEVEL);
+                for (int item : bucketRows[b]) {
+                    renderItem(xml, items, item, buckets[b], -1);
+                    measureItem(batch.widths, currency, items, item, buckets[b]);
+                    if (xml.size() >= FLUSH_BYTES) xml.drainTo(deflater);
+                }
+                xml.drainTo(deflater);
+                batch.buckets[b] = deflater.finish();
+                batch.rows += bucketRows[b].length;
+            }
+            return batch;
+        }
+
+        void add(Batch batch) {
+            for (int b = 0; b < buckets.length; b++) {
+                if (batch.buckets[b] != null) segments.get(b).add(batch.buckets[b]);
+            }
+            widths.merge(batch.widths);
+            itemCount += batch.rows;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void writeTo(SegmentedZipWriter zip, boolean selected) throws IOException {
+            zip.write(detailHead(selected, itemCount, widths).deflate());
+            for (List<SegmentedZipWriter.Segment> bucket : segments) {
+                for (SegmentedZipWriter.Segment segment : bucket) zip.write(segment);
+            }
+            zip.write(detailTail().deflate());
+        }
+
+        /** One batch's rows of each bucket, deflated, with the widths they measured. */
+        static class Batch {
+            private final SegmentedZipWriter.Segment[] buckets;
+            private final ColumnWidths widths = newWidths();
+            private int rows;
+
+            private Batch(int buckets) {
+                this.buckets = new SegmentedZipWriter.Segment[buckets];
+            }
+        }
+    }
+
+    private interface ItemVisitor {
+        void visit(String bucket, int item);
+    }
+
+    private static ColumnWidths headerWidths() {
+        ColumnWidths widths = newWidths();
+        String[] headers = InventoryAgingReportGenerator.DETAIL_HEADERS;
+        for (int i = 0; i < headers.length; i++) widths.text(i, headers[i], STYLE_GLYPHS[HEADER], STYLE_POINTS[HEADER]);
+        return widths;
+    }
+
+    private static void measureItem(ColumnWidths widths, DecimalFormat currency, ItemTable items, int item, String bucket) {
+        widths.text(0, bucket, REGULAR, 11);
+        widths.text(1, items.name(item), REGULAR, 11);
+        widths.text(2, items.category(item), REGULAR, 11);
+        widths.number(3, items.quantity(item), null, REGULAR, 11);
+        widths.number(4, items.unitCost(item), currency, REGULAR, 11);
+        widths.number(5, items.totalValue(item), currency, REGULAR, 11);
+        widths.text(6, items.dateReceived(item).toString(), REGULAR, 11);
+        widths.number(7, items.agingDays(item), null, REGULAR, 11);
+        widths.text(8, items.riskLevel(item), REGULAR, 11);
+        widths.text(9, items.supplier(item), REGULAR, 11);
+        widths.text(10, items.location(item), REGULAR, 11);
+    }
+
+    /** One detail row; a negative row leaves out the row and cell references. */
+    private static void renderItem(XmlBuffer xml, ItemTable items, int item, String bucket, int row) {
+        xml.startRow(row);
+        xml.inlineString(0, row, bucket, DEFAULT);
+        xml.inlineString(1, row, items.name(item), DEFAULT);
+        xml.inlineString(2, row, items.category(item), DEFAULT);
+        xml.number(3, row, items.quantity(item), DEFAULT);
+        xml.number(4, row, items.unitCost(item), CURRENCY);
+        xml.number(5, row, items.totalValue(item), CURRENCY);
+        xml.inlineString(6, row, items.dateReceived(item).toString(), DEFAULT);
+        xml.number(7, row, items.agingDays(item), DEFAULT);
+        String riskLevel = items.riskLevel(item);
+        xml.inlineString(8, row, riskLevel, "Critical".equals(riskLevel) ? CRITICAL : DEFAULT);
+        xml.inlineString(9, row, items.supplier(item), DEFAULT);
+        xml.inlineString(10, row, items.location(item), DEFAULT);
+        xml.ascii("</row>");
+    }
+
+    /** Everything of the detailed sheet up to and including its header row. */
+    private static XmlBuffer detailHead(boolean selected, long itemCount, ColumnWidths widths) throws IOException {
+        if (itemCount >= MAX_ROWS) {
+            throw new IOException(itemCount + " items do not fit one worksheet (max " + (MAX_ROWS - 1) + ")");
+        }
+        XmlBuffer head = new XmlBuffer(4096);
+        sheetStart(head, selected, 0, InventoryAgingReportGenerator.DETAIL_HEADERS.length - 1, (int) itemCount, widths);
+        head.ascii("<sheetData>");
+        head.startRow(0);
+        String[] headers = InventoryAgingReportGenerator.DETAIL_HEADERS;
+        for (int i = 0; i < headers.length; i++) head.inlineString(i, 0, headers[i], HEADER);
+        head.ascii("</row>");
+        return head;
+    }
+
+    private static XmlBuffer detailTail() {
+        XmlBuffer tail = new XmlBuffer(256);
+        tail.ascii("</sheetData>");
+        sheetEnd(tail, Collections.emptyList());
+        return tail;
+    }
+
+    /** A small sheet built in memory: rows first, then wrapped with the column widths they produced. */
+    private static class SheetXml {
+        private final boolean selected;
+        private final XmlBuffer rows = new XmlBuffer(4096);
+        private final ColumnWidths widths = newWidths();
+        private final List<String> merges = new ArrayList<>();
+        private final DecimalFormat currency = currencyFormat();
+        private int row = -1, lastRow, lastColumn;
+
+        SheetXml(boolean selected) {
+            this.selected = selected;
+        }
+
+        void startRow(int row) {
+            this.row = row;
+            lastRow = Math.max(lastRow, row);
+            rows.startRow(row);
+        }
+
+        void endRow() {
+            rows.ascii("</row>");
+        }
+
+        void text(int column, String value, int style, boolean measure) {
+            if (value == null) return; // a blank cell, as POI makes of a null string
+            lastColumn = Math.max(lastColumn, column);
+            rows.inlineString(column, row, value, style);
+            if (measure) widths.text(column, value, STYLE_GLYPHS[style], STYLE_POINTS[style]);
+        }
+
+        void number(int column, double value, int style, boolean measure) {
+            lastColumn = Math.max(lastColumn, column);
+            rows.number(column, row, value, style);
+            if (measure) widths.number(column, value, style == CURRENCY ? currency : null, STYLE_GLYPHS[style], STYLE_POINTS[style]);
+        }
+
+        void merge(String range) {
+            merges.add(range);
+        }
+
+        SegmentedZipWriter.Segment deflate() {
+            XmlBuffer xml = new XmlBuffer(rows.size() + 1024);
+            sheetStart(xml, selected, 0, lastColumn, lastRow, widths);
+            xml.ascii("<sheetData>");
+            xml.append(rows);
+            xml.ascii("</sheetData>");
+            sheetEnd(xml, merges);
+            return xml.deflate();
+        }
+    }
+
+    private static void sheetStart(XmlBuffer xml, boolean selected, int firstRow, int lastColumn, int lastRow, ColumnWidths widths) {
+        xml.ascii(XML_DECLARATION).ascii("<worksheet xmlns=\"").ascii(MAIN_NS).ascii("\" xmlns:r=\"").ascii(REL_NS).ascii("\">");
+        xml.ascii("<dimension ref=\"").cellRef(0, firstRow).ascii(":").cellRef(lastColumn, lastRow).ascii("\"/>");
+        xml.ascii(selected ? "<sheetViews><sheetView tabSelected=\"1\" workbookViewId=\"0\"/></sheetViews>"
+                           : "<sheetViews><sheetView workbookViewId=\"0\"/></sheetViews>");
+        xml.ascii("<sheetFormatPr defaultRowHeight=\"15\"/>");
+        boolean any = false;
+        for (int column = 0; column < widths.columns(); column++) {
+            int width = widths.columnWidth(column);
+            if (width < 0) continue;
+            if (!any) xml.ascii("<cols>");
+            any = true;
+            xml.ascii("<col min=\"").integer(column + 1).ascii("\" max=\"").integer(column + 1)
+               .ascii("\" width=\"").ascii(Double.toString(width / 256.0)).ascii("\" customWidth=\"1\"/>");
+        }
+        if (any) xml.ascii("</cols>");
+    }
+
+    private static void sheetEnd(XmlBuffer xml, List<String> merges) {
+        if (!merges.isEmpty()) {
+            xml.ascii("<mergeCells count=\"").integer(merges.size()).ascii("\">");
+            for (String range : merges) xml.ascii("<mergeCell ref=\"").ascii(range).ascii("\"/>");
+            xml.ascii("</mergeCells>");
+        }
+        xml.ascii("<pageMargins left=\"0.7\" right=\"0.7\" top=\"0.75\" bottom=\"0.75\" header=\"0.3\" footer=\"0.3\"/>");
+        xml.ascii("</worksheet>");
+    }
+
+    private static ColumnWidths newWidths() {
+        return new ColumnWidths(REGULAR, STYLE_POINTS[DEFAULT]);
+    }
+
+    // Mirrors DataFormatter's rendering of $#,##0.00; DecimalFormat is not thread-safe, so one per task
+    private static DecimalFormat currencyFormat() {
+        DecimalFormat format = new DecimalFormat("$#,##0.00", DecimalFormatSymbols.getInstance(Locale.US));
+        format.setRoundingMode(RoundingMode.HALF_UP);
+        return format;
+    }
+
+    private static String contentTypes(int sheets) {
+        StringBuilder xml = new StringBuilder(XML_DECLARATION)
+            .append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">")
+            .append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>")
+            .append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>")
+            .append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>")
+            .append("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>")
+            .append("<Override PartName=\"/docProps/core.xml\" ContentType=\"application/vnd.openxmlformats-package.core-properties+xml\"/>")
+            .append("<Override PartName=\"/docProps/app.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.extended-properties+xml\"/>");
+        for (int i = 1; i <= sheets; i++) {
+            xml.append("<Override PartName=\"/xl/worksheets/sheet").append(i)
+               .append(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+        }
+        return xml.append("</Types>").toString();
+    }
+
+    private static String rootRelationships() {
+        return XML_DECLARATION
+            + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+            + "<Relationship Id=\"rId1\" Type=\"" + REL_NS + "/officeDocument\" Target=\"xl/workbook.xml\"/>"
+            + "<Relationship Id=\"rId2\" Type=\"http://schemas.openxmlformats.org/package/2006/relationships/metadata/core-properties\" Target=\"docProps/core.xml\"/>"
+            + "<Relationship Id=\"rId3\" Type=\"" + REL_NS + "/extended-properties\" Target=\"docProps/app.xml\"/>"
+            + "</Relationships>";
+    }
+
+    private static String coreProperties() {
+        return XML_DECLARATION
+            + "<cp:coreProperties xmlns:cp=\"http://schemas.openxmlformats.org/package/2006/metadata/core-properties\""
+            + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:dcterms=\"http://purl.org/dc/terms/\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+            + "<dcterms:created xsi:type=\"dcterms:W3CDTF\">" + Instant.now().truncatedTo(ChronoUnit.SECONDS) + "</dcterms:created>"
+            + "<dc:creator>Smart Inventory Aging</dc:creator></cp:coreProperties>";
+    }
+
+    private static String workbook(List<String> names) {
+        XmlBuffer xml = new XmlBuffer(1024);
+        xml.ascii(XML_DECLARATION).ascii("<workbook xmlns=\"").ascii(MAIN_NS).ascii("\" xmlns:r=\"").ascii(REL_NS).ascii("\">");
+        xml.ascii("<bookViews><workbookView activeTab=\"0\"/></bookViews><sheets>");
+        for (int i = 0; i < names.size(); i++) {
+            xml.ascii("<sheet name=\"").escaped(names.get(i)).ascii("\" sheetId=\"").integer(i + 1)
+               .ascii("\" r:id=\"rId").integer(i + 1).ascii("\"/>");
+        }
+        xml.ascii("</sheets></workbook>");
+        return new String(xml.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String workbookRelationships(int sheets) {
+        StringBuilder xml = new StringBuilder(XML_DECLARATION)
+            .append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        for (int i = 1; i <= sheets; i++) {
+            xml.append("<Relationship Id=\"rId").append(i).append("\" Type=\"").append(REL_NS)
+               .append("/worksheet\" Target=\"worksheets/sheet").append(i).append(".xml\"/>");
+        }
+        xml.append("<Relationship Id=\"rId").append(sheets + 1).append("\" Type=\"").append(REL_NS)
+           .append("/styles\" Target=\"styles.xml\"/>");
+        return xml.append("</Relationships>").toString();
+    }
+
+    private static void writePart(SegmentedZipWriter zip, String name, String content) throws IOException {
+        zip.putNextEntry(name);
+        zip.write(SegmentedZipWriter.deflate(content, DEFLATE_LEVEL));
+        zip.closeEntry();
+    }
+
+    private static <T> T join(CompletableFuture<T> part) throws IOException {
+        try {
+            return part.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** Growable UTF-8 byte buffer with the few SpreadsheetML constructs the sheets need. */
+    private static class XmlBuffer {
+        private byte[] bytes;
+        private int size;
+
+        XmlBuffer(int capacity) {
+            bytes = new byte[Math.max(capacity, 64)];
+        }
+
+        int size() {
+            return size;
+        }
+
+        XmlBuffer ascii(String text) {
+            int length = text.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) bytes[size++] = (byte) text.charAt(i);
+            return this;
+        }
+
+        XmlBuffer integer(long value) {
+            return ascii(Long.toString(value));
+        }
+
+        XmlBuffer cellRef(int column, int row) {
+            if (column >= 26) ascii(COLUMN_LETTERS[column / 26 - 1]);
+            return ascii(COLUMN_LETTERS[column % 26]).integer(row + 1);
+        }
+
+        // A negative row writes rows and cells without references; readers place them one after another
+        void startRow(int row) {
+            if (row < 0) ascii("<row>");
+            else ascii("<row r=\"").integer(row + 1).ascii("\">");
+        }
+
+        void inlineString(int column, int row, String value, int style) {
+            startCell(column, row, style);
+            boolean preserve = !value.isEmpty() && (value.charAt(0) <= ' ' || value.charAt(value.length() - 1) <= ' ');
+            ascii(preserve ? " t=\"inlineStr\"><is><t xml:space=\"preserve\">" : " t=\"inlineStr\"><is><t>");
+            escaped(value);
+            ascii("</t></is></c>");
+        }
+
+        void number(int column, int row, double value, int style) {
+            startCell(column, row, style);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                ascii(" t=\"e\"><v>#NUM!</v></c>");
+                return;
+            }
+            ascii("><v>");
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) integer((long) value);
+            else ascii(Double.toString(value));
+            ascii("</v></c>");
+        }
+
+        /**
+         * UTF-8 with XML escapes. Control characters XML cannot carry are written as _xHHHH_, and a
+         * literal "_x" is escaped the same way so Excel does not decode it.
+         */
+        XmlBuffer escaped(String text) {
+            int length = text.length();
+            ensure(length * 3);
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    switch (c) {
+                        case '<': ascii("&lt;"); continue;
+                        case '>': ascii("&gt;"); continue;
+                        case '&': ascii("&amp;"); continue;
+                        case '"': ascii("&quot;"); continue;
+                        case '_':
+                            if (i + 1 < length && text.charAt(i + 1) == 'x') {
+                                ascii("_x005F_");
+                                continue;
+                            }
+                            break;
+                        default:
+                            if (c < ' ' && c != '\t' && c != '\n' && c != '\r') {
+                                ascii(String.format("_x%04X_", (int) c));
+                                ensure((length - i) * 3);
+                                continue;
+                            }
+                    }
+                    ensure(1);
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    ensure(2);
+                    bytes[size++] = (byte) (0xC0 | (c >> 6));
+                    bytes[size++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    ensure(4);
+                    bytes[size++] = (byte) (0xF0 | (cp >> 18));
+                    bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    if (Character.isSurrogate(c) || c == 0xFFFE || c == 0xFFFF) c = '�'; // not allowed in XML
+                    ensure(3);
+                    bytes[size++] = (byte) (0xE0 | (c >> 12));
+                    bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return this;
+        }
+
+        void append(XmlBuffer other) {
+            ensure(other.size);
+            System.arraycopy(other.bytes, 0, bytes, size, other.size);
+            size += other.size;
+        }
+
+        private void startCell(int column, int row, int style) {
+            ascii("<c");
+            if (row >= 0) ascii(" r=\"").cellRef(column, row).ascii("\"");
+            if (style != DEFAULT) ascii(" s=\"").integer(style).ascii("\"");
+        }
+
+        SegmentedZipWriter.Segment deflate() {
+            return SegmentedZipWriter.deflate(bytes, 0, size, DEFLATE_LEVEL);
+        }
+
+        /** Hands the buffered bytes to deflater and empties the buffer for reuse. */
+        void drainTo(SegmentedZipWriter.SegmentDeflater deflater) {
+            deflater.write(bytes, 0, size);
+            size = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+        }
+    }
+}
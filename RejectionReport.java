@@ -0,0 +1,52 @@
+import java.util.*;
+
+/**
+ * Rows dropped during ingest and why. Every rejection is counted per reason; the first
+ * MAX_DETAILS are kept with their sheet row number and raw value for the report.
+ */
+class RejectionReport {
+    static final int MAX_DETAILS = Integer.getInteger("inventory.maxRejectionDetails", 1000);
+
+    static final String BAD_QUANTITY = "Quantity is not a number";
+    static final String MISSING_DATE = "Date received is missing";
+    static final String BAD_DATE = "Date received is not a recognized date";
+
+    private final List<Rejection> details = new ArrayList<>();
+    private final Map<String, Long> countsByReason = new LinkedHashMap<>();
+    private long total;
+
+    /** @param row 1-based row number as shown in a spreadsheet, header included */
+    void reject(long row, String column, String reason, String value) {
+        total++;
+        countsByReason.merge(reason, 1L, Long::sum);
+        if (details.size() < MAX_DETAILS) details.add(new Rejection(row, column, reason, value));
+    }
+
+    /** Appends rejections collected by a parser that numbered rows from zero; rowOffset shifts them into place. */
+    void addAll(RejectionReport other, long rowOffset) {
+        total += other.total;
+        other.countsByReason.forEach((reason, count) -> countsByReason.merge(reason, count, Long::sum));
+        for (Rejection r : other.details) {
+            if (details.size() >= MAX_DETAILS) break;
+            details.add(new Rejection(r.row + rowOffset, r.column, r.reason, r.value));
+        }
+    }
+
+    long total() { return total; }
+
+    List<Rejection> details() { return details; }
+
+    Map<String, Long> countsByReason() { return countsByReason; }
+
+    static class Rejection {
+        final long row;
+        final String column, reason, value;
+
+        Rejection(long row, String column, String reason, String value) {
+            this.row = row;
+            this.column = column;
+            this.reason = reason;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed cache for repeated uploads. Entries are keyed by the SHA-256 of the uploaded bytes
+ * plus the as-of day, because aging is relative to today. Two tiers:
+ *
+ * - parsed InventoryAnalysis per upload, so a different mix of report options skips parse and analysis;
+ * - rendered report bytes per upload and option mix, LRU within a heap byte budget. Entries pushed out
+ *   of the heap tier, or too large for it, spill to files in a local directory with its own LRU budget.
+ */
+class ReportCache {
+    static final long ANALYSIS_BUDGET_BYTES = Long.getLong("inventory.cache.analysisBytes", 256L * 1024 * 1024);
+    static final long MEMORY_BUDGET_BYTES = Long.getLong("inventory.cache.memoryBytes", 128L * 1024 * 1024);
+    static final long DISK_BUDGET_BYTES = Long.getLong("inventory.cache.diskBytes", 2L * 1024 * 1024 * 1024);
+    static final File DISK_DIR = new File(System.getProperty("inventory.cache.dir",
+        new File(System.getProperty("java.io.tmpdir"), "inventory-report-cache").getPath()));
+
+    private static final String PROCESS_DIR_PREFIX = "pid-";
+
+    private final File diskDir = new File(DISK_DIR, PROCESS_DIR_PREFIX + ProcessHandle.current().pid());
+    private final LinkedHashMap<String, AnalysisEntry> analyses = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long analysisBytes, memoryBytes, diskBytes;
+
+    private final AtomicLong analysisHits = new AtomicLong(), analysisMisses = new AtomicLong();
+    private final AtomicLong memoryHits = new AtomicLong(), diskHits = new AtomicLong(), reportMisses = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong(), evictions = new AtomicLong();
+
+    /**
+     * Each process spills into its own subdirectory of DISK_DIR, so servers, batch runs and benchmarks
+     * sharing the directory never delete each other's entries. Subdirectories of processes that are
+     * gone are unindexed; their entries are removed here, and this process removes its own on exit.
+     */
+    ReportCache() {
+        File[] processDirs = DISK_DIR.listFiles(f -> f.isDirectory() && f.getName().startsWith(PROCESS_DIR_PREFIX));
+        if (processDirs != null) {
+            for (File dir : processDirs) {
+                long pid;
+                try {
+                    pid = Long.parseLong(dir.getName().substring(PROCESS_DIR_PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                // The own pid's directory was left by an earlier process that had the same id
+                if (dir.equals(diskDir) || !ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) deleteEntries(dir);
+            }
+        }
+        diskDir.mkdirs();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteEntries(diskDir), "report-cache-cleanup"));
+    }
+
+    /** Deletes the cache's .xlsx files in dir, then dir itself if nothing else is left in it. */
+    private static void deleteEntries(File dir) {
+        File[] entries = dir.listFiles(f -> f.isFile() && f.getName().endsWith(".xlsx"));
+        if (entries != null) for (File f : entries) f.delete();
+        dir.delete();
+    }
+
+    /** Copies the upload to target and returns the hex SHA-256 of its bytes. */
+    static String spool(InputStream in, File target) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (DigestInputStream hashing = new DigestInputStream(in, digest)) {
+            Files.copy(hashing, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    synchronized InventoryAgingReportGenerator.InventoryAnalysis getAnalysis(String uploadHash) {
+        AnalysisEntry entry = analyses.get(analysisKey(uploadHash));
+        (entry != null ? analysisHits : analysisMisses).incrementAndGet();
+        return entry != null ? entry.analysis : null;
+    }
+
+    synchronized void putAnalysis(String uploadHash, InventoryAgingReportGenerator.InventoryAnalysis analysis) {
+        long bytes = estimateBytes(analysis);
+        if (bytes > ANALYSIS_BUDGET_BYTES) return;
+        AnalysisEntry old = analyses.put(analysisKey(uploadHash), new AnalysisEntry(analysis, bytes));
+        if (old != null) analysisBytes -= old.bytes;
+        analysisBytes += bytes;
+        Iterator<AnalysisEntry> eldest = analyses.values().iterator();
+        while (analysisBytes > ANALYSIS_BUDGET_BYTES && eldest.hasNext()) {
+            analysisBytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /** Writes the cached report for this upload and option mix to out, or returns false on a miss. */
+    boolean writeReport(String uploadHash, InventoryAgingReportGenerator.ReportOptions options, OutputStream out) throws IOException {
+        String key = reportKey(uploadHash, options);
+        byte[] bytes;
+        File file;
+        synchronized (this) {
+            bytes = memory.get(key);
+            DiskEntry entry = bytes == null ? disk.get(key) : null;
+            file = entry != null ? entry.file : null;
+            if (bytes != null) memoryHits.incrementAndGet();
+            else if (file != null) diskHits.incrementAndGet();
+            else reportMisses.incrementAndGet();
+        }
+        if (bytes != null) {
+            out.write(bytes);
+            return true;
+        }
+        if (file != null) {
+            try {
+                Files.copy(file.toPath(), out);
+                return true;
+            } catch (NoSuchFileException e) {
+                return false; // evicted between lookup and read
+            }
+        }
+        return false;
+    }
+
+    /** Takes ownership of a rendered report file: small ones move onto the heap tier, large ones into the disk tier. */
+    void putReport(String uploadHash, InventoryAgingReportGenerator.ReportOptions options, File rendered) throws IOException {
+        String key = reportKey(uploadHash, options);
+        long length = rendered.length();
+        if (length <= MEMORY_BUDGET_BYTES / 4) {
+            byte[] bytes = Files.readAllBytes(rendered.toPath());
+            rendered.delete();
+            synchronized (this) {
+                byte[] old = memory.put(key, bytes);
+                if (old != null) memoryBytes -= old.length;
+                memoryBytes += bytes.length;
+                spillMemory();
+            }
+        } else {
+            synchronized (this) {
+                addToDisk(key, rendered);
+            }
+        }
+    }
+
+    private void spillMemory() {
+        Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > MEMORY_BUDGET_BYTES && eldest.hasNext()) {
+            Map.Entry<String, byte[]> e = eldest.next();
+            eldest.remove();
+            memoryBytes -= e.getValue().length;
+            try {
+                File file = File.createTempFile("report-", ".xlsx", diskDir);
+                Files.write(file.toPath(), e.getValue());
+                addToDisk(e.getKey(), file);
+                spills.incrementAndGet();
+            } catch (IOException ex) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void addToDisk(String key, File file) {
+        File target = new File(diskDir, key.replace(':', '_') + ".xlsx");
+        long length = file.length();
+        DiskEntry old = disk.remove(key);
+        if (old != null) diskBytes -= old.bytes;
+        try {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            file.delete();
+            evictions.incrementAndGet();
+            return;
+        }
+        disk.put(key, new DiskEntry(target, length));
+        diskBytes += length;
+        Iterator<DiskEntry> eldest = disk.values().iterator();
+        while (diskBytes > DISK_BUDGET_BYTES && eldest.hasNext()) {
+            DiskEntry e = eldest.next();
+            diskBytes -= e.bytes;
+            e.file.delete();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("analysisHits", analysisHits.get());
+        stats.put("analysisMisses", analysisMisses.get());
+        stats.put("analysisEntries", analyses.size());
+        stats.put("analysisBytes", analysisBytes);
+        stats.put("reportMemoryHits", memoryHits.get());
+        stats.put("reportDiskHits", diskHits.get());
+        stats.put("reportMisses", reportMisses.get());
+        stats.put("memoryEntries", memory.size());
+        stats.put("memoryBytes", memoryBytes);
+        stats.put("diskEntries", disk.size());
+        stats.put("diskBytes", diskBytes);
+        stats.put("spills", spills.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    private static String analysisKey(String uploadHash) {
+        return uploadHash + ":" + LocalDate.now().toEpochDay();
+    }
+
+    private static String reportKey(String uploadHash, InventoryAgingReportGenerator.ReportOptions options) {
+        return analysisKey(uploadHash) + ":" + (options.includeCharts ? 'c' : '-')
+            + (options.includeSummary ? 's' : '-') + (options.includeRecommendations ? 'r' : '-');
+    }
+
+    private static long estimateBytes(InventoryAgingReportGenerator.InventoryAnalysis analysis) {
+        // Table columns plus the per-bucket row arrays
+        return analysis.items.estimatedBytes() + 4L * analysis.totalItems;
+    }
+
+    private static class DiskEntry {
+        final File file;
+        final long bytes;
+
+        DiskEntry(File file, long bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class AnalysisEntry {
+        final InventoryAgingReportGenerator.InventoryAnalysis analysis;
+        final long bytes;
+
+        AnalysisEntry(InventoryAgingReportGenerator.InventoryAnalysis analysis, long bytes) {
+            this.analysis = analysis;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import static spark.Spark.*;
+import com.google.gson.Gson;
+import javax.servlet.http.Part;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous report jobs. POST /jobs spools the upload to disk and answers with a job id right away;
+ * a bounded worker pool parses, analyzes and renders the report off Jetty's request threads.
+ * GET /jobs/:id reports the current stage and GET /jobs/:id/report streams the finished workbook.
+ * Jobs share writeReportCached with POST /upload, so large uploads go through ReportPipeline; there
+ * ANALYZING covers the overlapped parse, analysis and detail rendering, and RENDERING the final sheets.
+ *
+ * Uploads under the fast-lane size run on their own small pool so they never wait behind big files.
+ * The main lane runs smaller size classes first, FIFO within a class. Once too many jobs or bytes are
+ * waiting, new submissions get 429 instead of piling more uploads onto disk and heap.
+ */
+class ReportJobs {
+    static final int WORKERS = Integer.getInteger("inventory.jobs.workers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    static final int FAST_LANE_WORKERS = Integer.getInteger("inventory.jobs.fastLaneWorkers", 2);
+    static final long FAST_LANE_BYTES = Long.getLong("inventory.jobs.fastLaneBytes", 1024 * 1024);
+    static final int MAX_QUEUED_JOBS = Integer.getInteger("inventory.jobs.maxQueued", 32);
+    static final long MAX_QUEUED_BYTES = Long.getLong("inventory.jobs.maxQueuedBytes", 512L * 1024 * 1024);
+    static final long RETENTION_MS = Long.getLong("inventory.jobs.retentionMs", 30 * 60 * 1000L);
+
+    enum Stage { QUEUED, PARSING, ANALYZING, RENDERING, DONE, FAILED }
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger queuedJobs = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final ThreadPoolExecutor mainLane = new ThreadPoolExecutor(
+        WORKERS, WORKERS, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), daemonThreads("report-job"));
+    private final ThreadPoolExecutor fastLane = new ThreadPoolExecutor(
+        FAST_LANE_WORKERS, FAST_LANE_WORKERS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreads("report-job-fast"));
+    private final Gson gson = new Gson();
+
+    ReportJobs() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(daemonThreads("report-job-sweeper"));
+        sweeper.scheduleWithFixedDelay(this::expireFinishedJobs, 1, 1, TimeUnit.MINUTES);
+    }
+
+    void registerRoutes() {
+        post("/jobs", (req, res) -> {
+            InventoryAgingReportGenerator.enableMultipart(req.raw());
+            Part filePart = req.raw().getPart("file");
+            InventoryAgingReportGenerator.ReportOptions options = InventoryAgingReportGenerator.ReportOptions.from(req.raw());
+            res.type("application/json");
+
+            Job job = submit(filePart, options);
+            if (job == null) {
+                res.status(429);
+                res.header("Retry-After", "5");
+                return gson.toJson(Collections.singletonMap("error", "Too many report jobs queued, retry later"));
+            }
+            res.status(202);
+            res.header("Location", "/jobs/" + job.id);
+            return gson.toJson(job.status());
+        });
+
+        get("/jobs/:id", (req, res) -> {
+            res.type("application/json");
+            Job job = jobs.get(req.params("id"));
+            if (job == null) {
+                res.status(404);
+                return gson.toJson(Collections.singletonMap("error", "Unknown job"));
+            }
+            return gson.toJson(job.status());
+        });
+
+        get("/jobs/:id/report", (req, res) -> {
+            Job job = jobs.get(req.params("id"));
+            if (job == null || job.stage != Stage.DONE) {
+                res.type("application/json");
+                res.status(job == null ? 404 : 409);
+                return gson.toJson(job == null ? Collections.singletonMap("error", "Unknown job") : job.status());
+            }
+            res.type(InventoryAgingReportGenerator.XLSX_CONTENT_TYPE);
+            res.header("Content-Disposition", "attachment; filename=smart-inventory-aging-report.xlsx");
+            res.raw().setContentLengthLong(job.report.length());
+            OutputStream body = res.raw().getOutputStream();
+            Files.copy(job.report.toPath(), body);
+            body.flush();
+            return res.raw();
+        });
+    }
+
+    /** Spools the upload and queues a job, or returns null when the queue is over its job or byte budget. */
+    private Job submit(Part filePart, InventoryAgingReportGenerator.ReportOptions options) throws IOException {
+        long size = filePart.getSize();
+        synchronized (this) {
+            if (queuedJobs.get() >= MAX_QUEUED_JOBS || queuedBytes.get() + size > MAX_QUEUED_BYTES) {
+                return null;
+            }
+            queuedJobs.incrementAndGet();
+            queuedBytes.addAndGet(size);
+        }
+
+        Job job = new Job(UUID.randomUUID().toString(), sequence.incrementAndGet(), size, options);
+        try (InputStream in = filePart.getInputStream()) {
+            job.upload = File.createTempFile("inventory-job-", ".upload");
+            job.uploadHash = ReportCache.spool(in, job.upload);
+        } catch (IOException e) {
+            dequeued(job);
+            if (job.upload != null) job.upload.delete();
+            throw e;
+        }
+        jobs.put(job.id, job);
+        (size < FAST_LANE_BYTES ? fastLane : mainLane).execute(job);
+        return job;
+    }
+
+    private void dequeued(Job job) {
+        queuedJobs.decrementAndGet();
+        queuedBytes.addAndGet(-job.bytes);
+    }
+
+    private void expireFinishedJobs() {
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        jobs.values().removeIf(job -> {
+            if (job.finishedAt == 0 || job.finishedAt > cutoff) return false;
+            if (job.report != null) job.report.delete();
+            return true;
+        });
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** One upload moving through the pipeline; ordered by size class, then submission order. */
+    private class Job implements Runnable, Comparable<Job>, InventoryAgingReportGenerator.ReportProgress {
+        final String id;
+        final long sequence;
+        final long bytes;
+        final int sizeClass;
+        final InventoryAgingReportGenerator.ReportOptions options;
+        final long submittedAt = System.currentTimeMillis();
+        volatile Stage stage = Stage.QUEUED;
+        volatile long startedAt, finishedAt;
+        volatile int items = -1;
+        volatile long rejectedRows;
+        volatile String error;
+        File upload, report;
+        String uploadHash;
+
+        Job(String id, long sequence, long bytes, InventoryAgingReportGenerator.ReportOptions options) {
+            this.id = id;
+            this.sequence = sequence;
+            this.bytes = bytes;
+            this.sizeClass = 64 - Long.numberOfLeadingZeros(Math.max(bytes, 1));
+            this.options = options;
+        }
+
+        @Override
+        public void run() {
+            dequeued(this);
+            startedAt = System.currentTimeMillis();
+            File output = null;
+            try (Metrics.Trace trace = Metrics.start("/jobs", bytes)) {
+                output = File.createTempFile("inventory-report-", ".xlsx");
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+                    InventoryAgingReportGenerator.writeReportCached(uploadHash, upload, options, out, this);
+                }
+                trace.bytesOut = output.length();
+                report = output;
+                stage = Stage.DONE;
+            } catch (Exception e) {
+                System.err.println("Report job " + id + " failed: " + e);
+                error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                if (output != null) output.delete();
+                stage = Stage.FAILED;
+            } finally {
+                upload.delete();
+                finishedAt = System.currentTimeMillis();
+            }
+        }
+
+        @Override
+        public void parsing() {
+            stage = Stage.PARSING;
+        }
+
+        @Override
+        public void analyzing() {
+            stage = Stage.ANALYZING;
+        }
+
+        @Override
+        public void analyzed(int items, long rejectedRows) {
+            this.items = items;
+            this.rejectedRows = rejectedRows;
+        }
+
+        @Override
+        public void rendering() {
+            stage = Stage.RENDERING;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (sizeClass != other.sizeClass) return Integer.compare(sizeClass, other.sizeClass);
+            return Long.compare(sequence, other.sequence);
+        }
+
+        Map<String, Object> status() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("id", id);
+            status.put("stage", stage.name());
+            status.put("bytes", bytes);
+            if (items >= 0) status.put("items", items);
+            if (rejectedRows > 0) status.put("rejectedRows", rejectedRows);
+            status.put("queuedMs", (startedAt == 0 ? System.currentTimeMillis() : startedAt) - submittedAt);
+            if (startedAt != 0) status.put("runningMs", (finishedAt == 0 ? System.currentTimeMillis() : finishedAt) - startedAt);
+            if (error != null) status.put("error", error);
+            if (stage == Stage.DONE) status.put("report", "/jobs/" + id + "/report");
+            return status;
+        }
+    }
+}
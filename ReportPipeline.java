@@ -0,0 +1,168 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs parse, analyze and render for one upload at the same time instead of one after another.
+ *
+ * A parser thread reads the upload into ItemTable batches and puts them on a bounded queue. The
+ * request thread takes each batch and hands it to the common fork-join pool, where it is accumulated
+ * into its own AnalysisAccumulator and its detail rows are rendered and deflated. Up to a window of
+ * batches is in flight. Finished batches are folded in upload order into the running totals and the
+ * StreamedDetailSheet, and their rows are dropped. Only the sheets built from final aggregates
+ * (summary, category analysis, recommendations, rejected rows) wait for the last batch.
+ *
+ * When the queue or the window is full the stage feeding it blocks, so the heap holds a bounded
+ * number of batches plus the deflated detail rows instead of the whole item table. Because of that
+ * the analysis this produces has aggregates and rejections but no item rows, and it is not cached
+ * for other report options.
+ */
+class ReportPipeline {
+    // Parsed batches waiting for analysis; the parser blocks while the queue is full
+    static final int QUEUE_BATCHES = Integer.getInteger("inventory.pipeline.queueBatches", 4);
+    // Batches analyzed and rendered at the same time
+    static final int WINDOW_BATCHES = Integer.getInteger("inventory.pipeline.windowBatches",
+                                                         Math.max(2, ForkJoinPool.getCommonPoolParallelism()));
+
+    private static final ExecutorService PARSERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "report-pipeline-parse-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final Parsed END = new Parsed(null, null);
+
+    private ReportPipeline() {
+    }
+
+    /** True when run() can serve this upload; otherwise go through readItems, analyzeInventory and writeReport. */
+    static boolean handles(File upload) {
+        return "direct".equals(InventoryAgingReportGenerator.REPORT_WRITER)
+            && "single-pass".equals(InventoryAgingReportGenerator.ANALYSIS_MODE)
+            && upload.length() >= InventoryAgingReportGenerator.PIPELINE_THRESHOLD_BYTES;
+    }
+
+    /** Parses the spooled upload and writes its report to out; returns the aggregates, without item rows. */
+    static InventoryAgingReportGenerator.AnalysisAccumulator run(File upload, InventoryAgingReportGenerator.ReportOptions options, OutputStream out) throws Exception {
+        return run(upload, options, out, InventoryAgingReportGenerator.ReportProgress.NONE);
+    }
+
+    /**
+     * As above, telling progress when parsing starts, when the first batch is analyzed and when the
+     * last one is folded in and only the sheets built from final aggregates are left to render.
+     */
+    static InventoryAgingReportGenerator.AnalysisAccumulator run(File upload, InventoryAgingReportGenerator.ReportOptions options, OutputStream out,
+                                                                 InventoryAgingReportGenerator.ReportProgress progress) throws Exception {
+        Metrics.begin(Metrics.Stage.PIPELINE);
+        progress.parsing();
+        BlockingQueue<Parsed> parsed = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        Future<?> parser = PARSERS.submit(() -> parse(upload, parsed));
+
+        InventoryAgingReportGenerator.AnalysisAccumulator totals = new InventoryAgingReportGenerator.AnalysisAccumulator();
+        ItemTable rejected = new ItemTable(); // only its rejections are filled
+        OoxmlReportWriter.StreamedDetailSheet detail =
+            new OoxmlReportWriter.StreamedDetailSheet(AgingScheme.PRIMARY.buckets);
+        ArrayDeque<CompletableFuture<Processed>> window = new ArrayDeque<>();
+        int batches = 0;
+        try {
+            for (Parsed next = parsed.take(); next != END; next = parsed.take()) {
+                if (next.failure != null) throw rethrow(next.failure);
+                ItemTable batch = next.batch;
+                if (batches++ == 0) progress.analyzing();
+                window.add(CompletableFuture.supplyAsync(() -> process(batch, detail)));
+                if (window.size() >= WINDOW_BATCHES) fold(join(window.poll()), totals, rejected, detail);
+            }
+            while (!window.isEmpty()) fold(join(window.poll()), totals, rejected, detail);
+        } finally {
+            parser.cancel(true); // stops a parser still blocked on the queue after a failure
+        }
+
+        InventoryAgingReportGenerator.InventoryAnalysis analysis = new InventoryAgingReportGenerator.InventoryAnalysis(rejected, totals);
+        Metrics.rows(analysis.totalItems);
+        Metrics.end(Metrics.Stage.PIPELINE);
+        progress.analyzed(analysis.totalItems, rejected.rejections.total());
+
+        progress.rendering();
+        OoxmlReportWriter.write(analysis, options, detail, out);
+        return totals;
+    }
+
+    /** The parser thread: every batch, then END or the failure that stopped it. */
+    private static void parse(File upload, BlockingQueue<Parsed> parsed) {
+        Parsed last = END;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(upload))) {
+            InventoryAgingReportGenerator.readItemBatches(in, upload.length(), batch -> put(parsed, new Parsed(batch, null)));
+        } catch (CancellationException e) {
+            return; // the consumer has gone
+        } catch (Throwable t) {
+            last = new Parsed(null, t);
+        }
+        put(parsed, last);
+    }
+
+    private static void put(BlockingQueue<Parsed> queue, Parsed parsed) {
+        try {
+            queue.put(parsed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Report pipeline closed");
+        }
+    }
+
+    /** Runs on the pool: the batch's aggregates and its detail rows, rendered. */
+    private static Processed process(ItemTable batch, OoxmlReportWriter.StreamedDetailSheet detail) {
+        InventoryAgingReportGenerator.AnalysisAccumulator acc = new InventoryAgingReportGenerator.AnalysisAccumulator(batch);
+        for (int row = 0; row < batch.size(); row++) acc.accept(row);
+        return new Processed(acc, batch.rejections, detail.render(batch, acc.bucketRows()));
+    }
+
+    private static void fold(Processed processed, InventoryAgingReportGenerator.AnalysisAccumulator totals,
+                             ItemTable rejected, OoxmlReportWriter.StreamedDetailSheet detail) {
+        totals.combine(processed.analysis);
+        rejected.rejections.addAll(processed.rejections, 0);
+        detail.add(processed.rows);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private static Exception rethrow(Throwable t) {
+        if (t instanceof Error) throw (Error) t;
+        return t instanceof Exception ? (Exception) t : new ExecutionException(t);
+    }
+
+    /** A parsed batch, or the failure that ended parsing. */
+    private static class Parsed {
+        final ItemTable batch;
+        final Throwable failure;
+
+        Parsed(ItemTable batch, Throwable failure) {
+            this.batch = batch;
+            this.failure = failure;
+        }
+    }
+
+    private static class Processed {
+        final InventoryAgingReportGenerator.AnalysisAccumulator analysis;
+        final RejectionReport rejections;
+        final OoxmlReportWriter.StreamedDetailSheet.Batch rows;
+
+        Processed(InventoryAgingReportGenerator.AnalysisAccumulator analysis, RejectionReport rejections,
+                  OoxmlReportWriter.StreamedDetailSheet.Batch rows) {
+            this.analysis = analysis;
+            this.rejections = rejections;
+            this.rows = rows;
+        }
+    }
+}
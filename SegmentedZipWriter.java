@@ -0,0 +1,234 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Zip writer for entries whose data arrives as separately deflated segments. ZipOutputStream
+ * deflates every entry itself on the calling thread; here each segment is compressed wherever it was
+ * produced, typically a pool thread, and the writer only concatenates bytes.
+ *
+ * A segment is raw deflate data ending in a sync flush, so it stops on a byte boundary without a
+ * final block, and segments compressed independently can follow each other in one stream. The writer
+ * closes the stream with an empty final block and works out the entry's CRC-32 from the segments'
+ * own CRCs and lengths. Entries use data descriptors, so nothing has to be known up front.
+ *
+ * No Zip64: an entry, or the archive, over 4 GB fails with an IOException.
+ */
+class SegmentedZipWriter implements Closeable {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int FLAGS = 0x0808; // sizes in a data descriptor, UTF-8 names
+    private static final int DEFLATED = 8;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    // An empty fixed-Huffman block with BFINAL set
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    private final OutputStream out;
+    private final int dosTime, dosDate;
+    private final List<Entry> entries = new ArrayList<>();
+    private final ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+    private Entry open;
+    private long position;
+
+    /** Writes to out, which is flushed but left open by close(). */
+    SegmentedZipWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        LocalDateTime now = LocalDateTime.now();
+        this.dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        this.dosDate = ((now.getYear() - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+    }
+
+    /** Deflated form of bytes [offset, offset + length), ready to be placed anywhere in an entry. */
+    static Segment deflate(byte[] bytes, int offset, int length, int level) {
+        SegmentDeflater deflater = new SegmentDeflater(level);
+        deflater.write(bytes, offset, length);
+        return deflater.finish();
+    }
+
+    static Segment deflate(String text, int level) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return deflate(bytes, 0, bytes.length, level);
+    }
+
+    /** Starts an entry; its segments follow through write() until closeEntry(). */
+    void putNextEntry(String name) throws IOException {
+        if (open != null) closeEntry();
+        open = new Entry(name.getBytes(StandardCharsets.UTF_8), position);
+        header.clear();
+        header.putInt(LOCAL_HEADER).putShort((short) VERSION).putShort((short) FLAGS).putShort((short) DEFLATED)
+              .putShort((short) dosTime).putShort((short) dosDate)
+              .putInt(0).putInt(0).putInt(0) // CRC and sizes follow in the data descriptor
+              .putShort((short) open.name.length).putShort((short) 0);
+        writeHeader();
+        writeBytes(open.name, open.name.length);
+    }
+
+    void write(Segment segment) throws IOException {
+        writeBytes(segment.deflated, segment.deflated.length);
+        open.crc = crc32Combine(open.crc, segment.crc & 0xFFFFFFFFL, segment.length);
+        open.compressedSize += segment.deflated.length;
+        open.size += segment.length;
+    }
+
+    void closeEntry() throws IOException {
+        writeBytes(FINAL_BLOCK, FINAL_BLOCK.length);
+        open.compressedSize += FINAL_BLOCK.length;
+        if (open.size > MAX_SIZE || open.compressedSize > MAX_SIZE) {
+            throw new IOException("Zip entry " + new String(open.name, StandardCharsets.UTF_8) + " is over 4 GB");
+        }
+        header.clear();
+        header.putInt(DATA_DESCRIPTOR).putInt((int) open.crc).putInt((int) open.compressedSize).putInt((int) open.size);
+        writeHeader();
+        entries.add(open);
+        open = null;
+    }
+
+    /** Writes the central directory and flushes; the underlying stream stays open. */
+    @Override
+    public void close() throws IOException {
+        if (open != null) closeEntry();
+        long directoryStart = position;
+        for (Entry entry : entries) {
+            if (entry.offset > MAX_SIZE) throw new IOException("Zip archive is over 4 GB");
+            header.clear();
+            header.putInt(CENTRAL_HEADER).putShort((short) VERSION).putShort((short) VERSION)
+                  .putShort((short) FLAGS).putShort((short) DEFLATED).putShort((short) dosTime).putShort((short) dosDate)
+                  .putInt((int) entry.crc).putInt((int) entry.compressedSize).putInt((int) entry.size)
+                  .putShort((short) entry.name.length).putShort((short) 0).putShort((short) 0)
+                  .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) entry.offset);
+            writeHeader();
+            writeBytes(entry.name, entry.name.length);
+        }
+        header.clear();
+        header.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0)
+              .putShort((short) entries.size()).putShort((short) entries.size())
+              .putInt((int) (position - directoryStart)).putInt((int) directoryStart).putShort((short) 0);
+        writeHeader();
+        out.flush();
+    }
+
+    private void writeHeader() throws IOException {
+        writeBytes(header.array(), header.position());
+    }
+
+    private void writeBytes(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        position += length;
+    }
+
+    /**
+     * CRC-32 of two byte runs back to back, from the CRC of each and the length of the second; the
+     * GF(2) matrix method of zlib's crc32_combine.
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) return crc1;
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = 0xEDB88320L; // CRC-32 polynomial, reflected
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd); // two zero bits
+        gf2MatrixSquare(odd, even); // four zero bits
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+            length2 >>= 1;
+            if (length2 == 0) break;
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) square[n] = gf2MatrixTimes(matrix, matrix[n]);
+    }
+
+    /**
+     * Builds one segment from bytes handed over in pieces, so a producer can reuse a small buffer
+     * instead of holding the segment's whole uncompressed text. finish() must be called, once.
+     */
+    static class SegmentDeflater {
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private byte[] deflated = new byte[8192];
+        private int size;
+        private long length;
+
+        SegmentDeflater(int level) {
+            deflater = new Deflater(level, true);
+        }
+
+        /** Takes the bytes in; the array can be reused once this returns. */
+        void write(byte[] bytes, int offset, int length) {
+            crc.update(bytes, offset, length);
+            this.length += length;
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) deflate(Deflater.NO_FLUSH);
+        }
+
+        Segment finish() {
+            try {
+                while (deflate(Deflater.SYNC_FLUSH)) {
+                    // output space ran out; flush again into the grown buffer
+                }
+                return new Segment(Arrays.copyOf(deflated, size), (int) crc.getValue(), length);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /** Returns true when the output buffer filled up, so there may be more to come. */
+        private boolean deflate(int flush) {
+            if (size == deflated.length) deflated = Arrays.copyOf(deflated, size * 2);
+            int space = deflated.length - size;
+            int written = deflater.deflate(deflated, size, space, flush);
+            size += written;
+            return written == space;
+        }
+    }
+
+    /** A run of an entry's bytes, deflated on its own. */
+    static class Segment {
+        final byte[] deflated;
+        final int crc;
+        final long length;
+
+        Segment(byte[] deflated, int crc, long length) {
+            this.deflated = deflated;
+            this.crc = crc;
+            this.length = length;
+        }
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final long offset;
+        long crc, compressedSize, size;
+
+        Entry(byte[] name, long offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+    }
+}
@@ -1,51 +1,969 @@
+import com.google.gson.Gson;
+
 import java.io.*;
-import java.net.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Lightweight front end for single-container deployments: serves the web files (index.html,
+ * script.js, style.css, ...) and the endpoints the page calls (POST /upload, POST /analyze) plus
+ * GET /metrics from one JVM, without nginx. Report jobs, inventory snapshots and GET /cache/stats
+ * are only routed by the Spark server, so deployments that use them still run that.
+ *
+ * A selector thread accepts connections and watches the idle ones. When a connection has a request
+ * to read, it is handed to a worker, which reads and answers requests in blocking mode until the
+ * connection goes quiet, then parks it back on the selector. Idle keep-alive connections therefore
+ * cost a selection key, not a thread. Workers are virtual threads on a JDK that has them (21+) and
+ * a bounded pool of platform threads otherwise.
+ *
+ * Requests are HTTP/1.1 with keep-alive, Content-Length or chunked bodies and Expect: 100-continue.
+ * POST /upload and POST /analyze take the same multipart form as the Spark routes. The file part
+ * streams through a boundary scanner straight into the spool file the report pipeline reads, so an
+ * upload is never held in memory. Responses that fit in one buffer get a Content-Length; longer ones
+ * are sent chunked as they are produced. Static files go out with FileChannel.transferTo and a
+ * content ETag. The ETag is computed once per file version and answers If-None-Match with 304.
+ */
 public class SimpleServer {
+    static final int PORT = Integer.getInteger("inventory.server.port", 8080);
+    // Directory the web files are served from
+    static final String WEB_ROOT = System.getProperty("inventory.server.webRoot", ".");
+    // Platform worker threads, when virtual threads are unavailable or turned off
+    static final int WORKERS = Integer.getInteger("inventory.server.workers", 64);
+    static final boolean VIRTUAL_THREADS = !"false".equals(System.getProperty("inventory.server.virtualThreads"));
+    // Keep-alive connections idle this long are closed
+    static final long IDLE_TIMEOUT_MS = Long.getLong("inventory.server.idleTimeoutMs", 30_000);
+    // Longest wait for more bytes while a request is being read
+    static final int READ_TIMEOUT_MS = Integer.getInteger("inventory.server.readTimeoutMs", 30_000);
+    static final int MAX_KEEP_ALIVE_REQUESTS = Integer.getInteger("inventory.server.maxKeepAliveRequests", 1000);
+    static final long MAX_BODY_BYTES = Long.getLong("inventory.server.maxBodyBytes", 512L * 1024 * 1024);
+    static final int ASSET_MAX_AGE_SECONDS = Integer.getInteger("inventory.server.assetMaxAgeSeconds", 3600);
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // Unread request body that is still read and dropped to keep the connection open
+    private static final long MAX_DRAIN_BYTES = 1024 * 1024;
+    private static final Gson GSON = new Gson();
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers = workers();
+    private final Queue<Connection> parked = new ConcurrentLinkedQueue<>();
+    private final StaticFiles files = new StaticFiles(Paths.get(WEB_ROOT));
+
+    SimpleServer(int port) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /** The port the server listens on; the one picked by the system when it was built with port 0. */
+    int port() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
     public static void main(String[] args) throws IOException {
-        ServerSocket server = new ServerSocket(8080);
-        System.out.println("🚀 Server running on http://localhost:8080");
-        
+        SimpleServer server = new SimpleServer(PORT);
+        System.out.println("🚀 Server running on http://localhost:" + PORT);
+        server.run();
+    }
+
+    private static ExecutorService workers() {
+        if (VIRTUAL_THREADS) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // Before JDK 21: fall back to platform threads
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread t = new Thread(r, "simple-server-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** The selector loop: accepts connections, hands readable ones to workers and expires idle ones. */
+    void run() throws IOException {
+        List<Connection> ready = new ArrayList<>();
+        long lastSweep = System.nanoTime();
         while (true) {
-            Socket client = server.accept();
-            new Thread(() -> handleRequest(client)).start();
+            // Keys selected by the selectNow() below are handled before blocking again
+            if (selector.selectedKeys().isEmpty()) selector.select(1000);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    key.cancel();
+                    ready.add((Connection) key.attachment());
+                }
+            }
+            if (!ready.isEmpty()) {
+                selector.selectNow(); // deregisters the cancelled keys, so their channels may block again
+                for (Connection connection : ready) dispatch(connection);
+                ready.clear();
+            }
+            for (Connection connection; (connection = parked.poll()) != null; ) park(connection);
+
+            long now = System.nanoTime();
+            if (now - lastSweep > TimeUnit.SECONDS.toNanos(1)) {
+                lastSweep = now;
+                for (SelectionKey key : selector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Connection && now - ((Connection) attachment).idleSince > TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS)) {
+                        key.cancel();
+                        ((Connection) attachment).close();
+                    }
+                }
+            }
         }
     }
-    
-    static void handleRequest(Socket client) {
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setSoTimeout(READ_TIMEOUT_MS);
+            Connection connection = new Connection(channel);
+            connection.idleSince = System.nanoTime();
+            channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            System.err.println("Accept failed: " + e);
+        }
+    }
+
+    private void dispatch(Connection connection) {
+        try {
+            connection.channel.configureBlocking(true);
+            workers.execute(() -> serve(connection));
+        } catch (IOException | RejectedExecutionException e) {
+            connection.close();
+        }
+    }
+
+    private void park(Connection connection) {
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            PrintWriter out = new PrintWriter(client.getOutputStream());
-            
-            String line = in.readLine();
-            if (line != null && line.contains("OPTIONS")) {
-                out.println("HTTP/1.1 200 OK");
-                out.println("Access-Control-Allow-Origin: *");
-                out.println("Access-Control-Allow-Methods: POST, OPTIONS");
-                out.println("Access-Control-Allow-Headers: Content-Type");
-                out.println();
-                out.flush();
-            } else if (line != null && line.contains("POST")) {
-                // Skip headers
-                while ((line = in.readLine()) != null && !line.isEmpty()) {}
-                
-                // Create mock Excel response
-                out.println("HTTP/1.1 200 OK");
-                out.println("Access-Control-Allow-Origin: *");
-                out.println("Content-Type: application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
-                out.println("Content-Disposition: attachment; filename=inventory-report.xlsx");
-                out.println("Content-Length: 100");
-                out.println();
-                out.println("Mock Excel Data - Server Working!");
-                out.flush();
-            }
-            client.close();
+            connection.channel.configureBlocking(false);
+            connection.idleSince = System.nanoTime();
+            connection.channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /** Runs on a worker: answers requests until the connection is idle, closed, or used up. */
+    private void serve(Connection connection) {
+        try {
+            connection.open();
+            do {
+                Request request;
+                try {
+                    request = Request.read(connection);
+                } catch (HttpError e) {
+                    Response response = new Response(connection, null);
+                    response.error(e.status, e.getMessage());
+                    response.finish();
+                    connection.close();
+                    return;
+                }
+                if (request == null || !respond(connection, request) || ++connection.requests >= MAX_KEEP_ALIVE_REQUESTS) {
+                    connection.close();
+                    return;
+                }
+            } while (connection.in.available() > 0); // a pipelined request is already buffered
+            parked.add(connection);
+            selector.wakeup();
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+        }
+    }
+
+    /** Answers one request; returns whether the connection can take another. */
+    private boolean respond(Connection connection, Request request) throws IOException {
+        Response response = new Response(connection, request);
+        try {
+            route(request, response);
         } catch (Exception e) {
-            e.printStackTrace();
+            if (response.committed()) {
+                System.err.println(request.method + " " + request.path + " failed mid-response: " + e);
+                return false;
+            }
+            response.reset();
+            if (e instanceof HttpError) {
+                response.error(((HttpError) e).status, e.getMessage());
+            } else {
+                System.err.println(request.method + " " + request.path + " failed: " + e);
+                response.error(500, "Error processing file: " + e.getMessage());
+            }
+        }
+        response.finish();
+        return response.keepAlive() && request.body.drain();
+    }
+
+    private void route(Request request, Response response) throws Exception {
+        if ("OPTIONS".equals(request.method)) {
+            String headers = request.header("Access-Control-Request-Headers");
+            response.status(204);
+            response.header("Access-Control-Allow-Methods", "GET,HEAD,POST,OPTIONS");
+            response.header("Access-Control-Allow-Headers", headers != null ? headers : "Content-Type");
+            return;
+        }
+        switch (request.path) {
+            case "/upload":
+            case "/analyze":
+                if (!"POST".equals(request.method)) {
+                    methodNotAllowed(response, "POST, OPTIONS");
+                    return;
+                }
+                upload(request, response);
+                return;
+            case "/metrics":
+                if (!"GET".equals(request.method)) {
+                    methodNotAllowed(response, "GET, OPTIONS");
+                    return;
+                }
+                response.header("Content-Type", "text/plain; version=0.0.4");
+                response.body().write(Metrics.scrape().getBytes(StandardCharsets.UTF_8));
+                return;
+            default:
+                if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+                    methodNotAllowed(response, "GET, HEAD, OPTIONS");
+                    return;
+                }
+                staticFile(request, response);
+        }
+    }
+
+    private void methodNotAllowed(Response response, String allowed) throws IOException {
+        response.header("Allow", allowed);
+        response.error(405, "Method not allowed");
+    }
+
+    /** POST /upload and POST /analyze: spools the file part, then answers as the Spark routes do. */
+    private void upload(Request request, Response response) throws Exception {
+        Multipart form = Multipart.of(request);
+        Map<String, String> fields = new HashMap<>();
+        File upload = File.createTempFile("inventory-upload-", ".upload");
+        try (Metrics.Trace trace = Metrics.start(request.path, 0)) {
+            String uploadHash = null;
+            for (Multipart.Part part; (part = form.next()) != null; ) {
+                if ("file".equals(part.name)) uploadHash = ReportCache.spool(part.content, upload);
+                else fields.put(part.name, part.text(1024));
+            }
+            if (uploadHash == null) throw new HttpError(400, "No file part in the upload");
+            trace.bytesIn = upload.length();
+
+            if ("/upload".equals(request.path)) {
+                InventoryAgingReportGenerator.ReportOptions options = new InventoryAgingReportGenerator.ReportOptions(
+                    "true".equals(fields.get("includeCharts")),
+                    "true".equals(fields.get("includeSummary")),
+                    "true".equals(fields.get("includeRecommendations")));
+                response.header("Content-Type", InventoryAgingReportGenerator.XLSX_CONTENT_TYPE);
+                response.header("Content-Disposition", "attachment; filename=smart-inventory-aging-report.xlsx");
+                InventoryAgingReportGenerator.writeReportCached(uploadHash, upload, options, response.body());
+            } else {
+                InventoryAgingReportGenerator.InventoryAnalysis analysis = InventoryAgingReportGenerator.REPORT_CACHE.getAnalysis(uploadHash);
+                if (analysis == null) analysis = InventoryAgingReportGenerator.analyzeAndCache(uploadHash, upload);
+
+                String accept = request.header("Accept");
+                boolean ndjson = "ndjson".equals(request.queryParam("format"))
+                    || (accept != null && accept.contains(AnalysisJson.NDJSON_CONTENT_TYPE));
+                response.header("Content-Type", ndjson ? AnalysisJson.NDJSON_CONTENT_TYPE : AnalysisJson.JSON_CONTENT_TYPE);
+                Writer json = new BufferedWriter(new OutputStreamWriter(response.body(), StandardCharsets.UTF_8), BUFFER_BYTES);
+                Metrics.begin(Metrics.Stage.WRITE);
+                if (ndjson) AnalysisJson.writeNdjson(analysis, json);
+                else AnalysisJson.writeAggregates(analysis, json);
+                json.flush();
+                Metrics.end(Metrics.Stage.WRITE);
+            }
+            trace.bytesOut = response.bytes();
+        } finally {
+            upload.delete();
+        }
+    }
+
+    private void staticFile(Request request, Response response) throws IOException {
+        StaticFiles.Entry file = files.find(request.path);
+        if (file == null) {
+            response.error(404, "Not found");
+            return;
+        }
+        response.header("ETag", file.etag);
+        response.header("Cache-Control", file.type.startsWith("text/html") ? "no-cache" : "public, max-age=" + ASSET_MAX_AGE_SECONDS);
+        String ifNoneMatch = request.header("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(file.etag))) {
+            response.status(304);
+            return;
+        }
+        response.header("Content-Type", file.type);
+        response.sendFile(file.path);
+    }
+
+    /** A client connection; its streams live across requests and across trips through the selector. */
+    private static class Connection {
+        final SocketChannel channel;
+        InputStream in;
+        OutputStream out;
+        int requests;
+        long idleSince;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Opens the streams, once the channel is in blocking mode; the socket's streams honor the read timeout. */
+        void open() throws IOException {
+            if (in != null) return;
+            in = new BufferedInputStream(channel.socket().getInputStream(), BUFFER_BYTES);
+            out = new BufferedOutputStream(channel.socket().getOutputStream(), BUFFER_BYTES);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    /** A failure with the status to answer it with. */
+    static class HttpError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    static class Request {
+        final String method, path, query;
+        final boolean http11;
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Body body;
+
+        private Request(String method, String path, String query, boolean http11) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.http11 = http11;
+        }
+
+        /** The next request on the connection, or null when the client closed it between requests. */
+        static Request read(Connection connection) throws IOException {
+            int[] budget = {MAX_HEADER_BYTES};
+            String line = readLine(connection.in, budget);
+            while (line != null && line.isEmpty()) line = readLine(connection.in, budget); // stray CRLF after a body
+            if (line == null) return null;
+
+            String[] parts = line.split(" ");
+            if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) throw new HttpError(400, "Malformed request line");
+            URI target;
+            try {
+                target = new URI(parts[1]);
+            } catch (URISyntaxException e) {
+                throw new HttpError(400, "Malformed request target");
+            }
+            if (target.getPath() == null) throw new HttpError(400, "Malformed request target");
+            Request request = new Request(parts[0], target.getPath(), target.getRawQuery(), parts[2].equals("HTTP/1.1"));
+
+            for (line = readLine(connection.in, budget); line != null && !line.isEmpty(); line = readLine(connection.in, budget)) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) throw new HttpError(400, "Malformed header");
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                request.headers.merge(name, value, (a, b) -> a + ", " + b);
+            }
+            if (line == null) throw new HttpError(400, "Request ended inside its headers");
+
+            String transferEncoding = request.header("Transfer-Encoding");
+            String contentLength = request.header("Content-Length");
+            long length;
+            if (transferEncoding != null) {
+                if (!transferEncoding.equalsIgnoreCase("chunked")) throw new HttpError(501, "Unsupported transfer encoding");
+                length = -1;
+            } else {
+                try {
+                    length = contentLength == null ? 0 : Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new HttpError(400, "Malformed Content-Length");
+                }
+                if (length < 0) throw new HttpError(400, "Malformed Content-Length");
+                if (length > MAX_BODY_BYTES) throw new HttpError(413, "Upload larger than " + MAX_BODY_BYTES + " bytes");
+            }
+            boolean expectContinue = "100-continue".equalsIgnoreCase(request.header("Expect")) && request.http11 && length != 0;
+            request.body = new Body(connection, length, expectContinue);
+            return request;
+        }
+
+        private static String readLine(InputStream in, int[] budget) throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = in.read(); c != -1; c = in.read()) {
+                if (--budget[0] < 0) throw new HttpError(431, "Request headers too large");
+                if (c == '\n') {
+                    int end = line.length();
+                    if (end > 0 && line.charAt(end - 1) == '\r') line.setLength(end - 1);
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            if (line.length() > 0) throw new HttpError(400, "Request ended inside a line");
+            return null;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        String queryParam(String name) {
+            if (query == null) return null;
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                if (key.equals(name)) {
+                    try {
+                        return java.net.URLDecoder.decode(eq < 0 ? "" : pair.substring(eq + 1), "UTF-8");
+                    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+
+        boolean keepAlive() {
+            String connection = header("Connection");
+            String tokens = connection == null ? "" : connection.toLowerCase(Locale.ROOT);
+            return http11 ? !tokens.contains("close") : tokens.contains("keep-alive");
+        }
+    }
+
+    /** A request body, of a known length or chunked, capped at MAX_BODY_BYTES. */
+    static class Body extends InputStream {
+        private final Connection connection;
+        private final boolean chunked;
+        private long remaining; // in the body, or in the current chunk when chunked
+        private long total;
+        private boolean eof;
+        private boolean expectContinue;
+
+        Body(Connection connection, long length, boolean expectContinue) {
+            this.connection = connection;
+            this.chunked = length < 0;
+            this.remaining = chunked ? 0 : length;
+            this.eof = length == 0;
+            this.expectContinue = expectContinue;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (eof) return -1;
+            if (expectContinue) {
+                // The client waits for this before it sends the body
+                expectContinue = false;
+                connection.out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                connection.out.flush();
+            }
+            if (remaining == 0 && chunked && !nextChunk()) return -1;
+            int n = connection.in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) throw new HttpError(400, "Request body ended early");
+            remaining -= n;
+            total += n;
+            if (total > MAX_BODY_BYTES) throw new HttpError(413, "Upload larger than " + MAX_BODY_BYTES + " bytes");
+            if (remaining == 0) {
+                if (chunked) Request.readLine(connection.in, new int[] {2}); // the CRLF after the chunk
+                else eof = true;
+            }
+            return n;
+        }
+
+        private boolean nextChunk() throws IOException {
+            String line = Request.readLine(connection.in, new int[] {1024});
+            if (line == null) throw new HttpError(400, "Request body ended early");
+            int extension = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new HttpError(400, "Malformed chunk size");
+            }
+            if (remaining < 0) throw new HttpError(400, "Malformed chunk size");
+            if (remaining == 0) {
+                int[] budget = {MAX_HEADER_BYTES};
+                for (String trailer = Request.readLine(connection.in, budget); trailer != null && !trailer.isEmpty(); ) {
+                    trailer = Request.readLine(connection.in, budget);
+                }
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+
+        /** True while the client holds its body back for a 100 Continue that was never sent. */
+        boolean awaitingContinue() {
+            return expectContinue && !eof;
+        }
+
+        /** Reads and drops what the handler left unread; false when the connection should close instead. */
+        boolean drain() {
+            if (eof) return true;
+            if (awaitingContinue()) return false; // the client never sent the body
+            try {
+                byte[] skip = new byte[8192];
+                long dropped = 0;
+                for (int n; (n = read(skip, 0, skip.length)) != -1; ) {
+                    dropped += n;
+                    if (dropped > MAX_DRAIN_BYTES) return false;
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The response to one request. Headers are held back until the body outgrows one buffer or the
+     * handler finishes, so a failure before that can still become an error response.
+     */
+    static class Response {
+        private static final Map<Integer, String> REASONS = new HashMap<>();
+
+        static {
+            String[] reasons = {"200 OK", "204 No Content", "304 Not Modified", "400 Bad Request", "404 Not Found",
+                                "405 Method Not Allowed", "413 Payload Too Large", "415 Unsupported Media Type",
+                                "431 Request Header Fields Too Large", "500 Internal Server Error", "501 Not Implemented"};
+            for (String reason : reasons) REASONS.put(Integer.parseInt(reason.substring(0, 3)), reason.substring(4));
+        }
+
+        private final Connection connection;
+        private final Request request;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private final BodyStream body = new BodyStream();
+        private int status = 200;
+        private boolean committed;
+        private boolean chunked;
+        private boolean keepAlive;
+        private long bytes;
+
+        Response(Connection connection, Request request) {
+            this.connection = connection;
+            this.request = request;
+            this.keepAlive = request != null && request.keepAlive();
+        }
+
+        void status(int status) {
+            this.status = status;
+        }
+
+        void header(String name, String value) {
+            headers.put(name, value);
+        }
+
+        OutputStream body() {
+            return body;
+        }
+
+        boolean committed() {
+            return committed;
+        }
+
+        boolean keepAlive() {
+            return keepAlive;
+        }
+
+        long bytes() {
+            return bytes + body.size;
+        }
+
+        void reset() {
+            headers.clear();
+            body.size = 0;
+            status = 200;
+        }
+
+        void error(int status, String message) throws IOException {
+            this.status = status;
+            header("Content-Type", "application/json");
+            body.write(GSON.toJson(Collections.singletonMap("error", message)).getBytes(StandardCharsets.UTF_8));
+            if (status >= 400 && status != 404 && status != 405) keepAlive = keepAlive && status < 500;
+        }
+
+        /** Sends the whole file with transferTo, so its bytes go from the page cache to the socket without a copy through the heap. */
+        void sendFile(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                commit(size);
+                connection.out.flush();
+                if (request != null && "HEAD".equals(request.method)) return;
+                for (long position = 0; position < size; ) {
+                    long sent = channel.transferTo(position, size - position, connection.channel);
+                    if (sent <= 0) throw new IOException(file + " shrank while being sent");
+                    position += sent;
+                }
+                bytes += size;
+            }
+        }
+
+        /** Sends whatever the handler left: the whole response, or the last chunk and the terminator. */
+        void finish() throws IOException {
+            if (!committed) {
+                boolean empty = status == 204 || status == 304;
+                commit(empty ? -1 : body.size);
+                if (!empty && (request == null || !"HEAD".equals(request.method))) {
+                    connection.out.write(body.buffer, 0, body.size);
+                    bytes += body.size;
+                }
+                body.size = 0;
+            } else if (body.size > 0 || chunked) {
+                body.flushChunk();
+                if (chunked) connection.out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            connection.out.flush();
+        }
+
+        /** Writes the status line and headers; length is -1 for none, or -2 for a body of unknown length. */
+        private void commit(long length) throws IOException {
+            committed = true;
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(status).append(' ').append(REASONS.getOrDefault(status, "Unknown")).append("\r\n");
+            head.append("Access-Control-Allow-Origin: *\r\n");
+            headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+            if (length >= 0) {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            } else if (length == -2) {
+                // HTTP/1.0 clients can't take chunks: the end of the body is the end of the connection
+                chunked = request.http11;
+                if (chunked) head.append("Transfer-Encoding: chunked\r\n");
+                else keepAlive = false;
+            }
+            // Such a client may still send the body or give up on it, so the connection can't carry another request
+            if (request != null && request.body.awaitingContinue()) keepAlive = false;
+            head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+            head.append("\r\n");
+            connection.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private class BodyStream extends OutputStream {
+            final byte[] buffer = new byte[BUFFER_BYTES];
+            int size;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (size == buffer.length) flushChunk();
+                buffer[size++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (size == buffer.length) flushChunk();
+                    int n = Math.min(len, buffer.length - size);
+                    System.arraycopy(b, off, buffer, size, n);
+                    size += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            // The handler's flushes are not passed on: the body goes out a full buffer at a time
+
+            void flushChunk() throws IOException {
+                if (!committed) commit(-2);
+                if (size == 0 || "HEAD".equals(request.method)) {
+                    size = 0;
+                    return;
+                }
+                if (chunked) connection.out.write((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                connection.out.write(buffer, 0, size);
+                if (chunked) connection.out.write('\r');
+                if (chunked) connection.out.write('\n');
+                bytes += size;
+                size = 0;
+            }
+        }
+    }
+
+    /** Streams the parts of a multipart/form-data body, finding each boundary as the bytes arrive. */
+    static class Multipart {
+        private static final Pattern BOUNDARY = Pattern.compile("boundary=(?:\"([^\"]+)\"|([^;\\s]+))", Pattern.CASE_INSENSITIVE);
+        private static final Pattern NAME = Pattern.compile("(?:^|;)\\s*name=\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+
+        private final InputStream in;
+        private final byte[] delimiter;
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private int position, limit;
+        private PartStream current;
+        private boolean done;
+
+        Multipart(InputStream in, String boundary) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            // The first boundary has no CRLF before it; starting with one lets every boundary match alike
+            buffer[0] = '\r';
+            buffer[1] = '\n';
+            limit = 2;
+        }
+
+        static Multipart of(Request request) throws HttpError {
+            String type = request.header("Content-Type");
+            Matcher boundary = type == null ? null : BOUNDARY.matcher(type);
+            if (type == null || !type.toLowerCase(Locale.ROOT).startsWith("multipart/form-data") || !boundary.find()) {
+                throw new HttpError(415, "Expected a multipart/form-data upload");
+            }
+            String value = boundary.group(1) != null ? boundary.group(1) : boundary.group(2);
+            if (value.length() > 70) throw new HttpError(400, "Multipart boundary too long");
+            return new Multipart(request.body, value);
+        }
+
+        /** The next part, its content readable until the following boundary; null after the last. */
+        Part next() throws IOException {
+            if (done) return null;
+            (current != null ? current : new PartStream()).skipAll();
+            int a = readByte(), b = readByte();
+            if (a == '-' && b == '-') {
+                done = true;
+                return null;
+            }
+            if (a != '\r' || b != '\n') throw new HttpError(400, "Malformed multipart body");
+
+            String name = null;
+            int budget = MAX_HEADER_BYTES;
+            for (String line = readLine(budget); !line.isEmpty(); line = readLine(budget -= line.length() + 2)) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+                    Matcher matcher = NAME.matcher(line.substring(colon + 1));
+                    if (matcher.find()) name = matcher.group(1);
+                }
+            }
+            current = new PartStream();
+            return new Part(name, current);
+        }
+
+        private String readLine(int budget) throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = readByte(); c != '\n'; c = readByte()) {
+                if (line.length() >= budget) throw new HttpError(431, "Multipart headers too large");
+                line.append((char) c);
+            }
+            int end = line.length();
+            if (end > 0 && line.charAt(end - 1) == '\r') line.setLength(end - 1);
+            return new String(line.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit && !fill()) throw new HttpError(400, "Multipart body ended early");
+            return buffer[position++] & 0xff;
+        }
+
+        /** Moves the unread bytes to the front and reads more after them; false at the end of the body. */
+        private boolean fill() throws IOException {
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n == -1) return false;
+            limit += n;
+            return true;
+        }
+
+        private int indexOfDelimiter() {
+            byte first = delimiter[0];
+            outer:
+            for (int i = position, last = limit - delimiter.length; i <= last; i++) {
+                if (buffer[i] != first) continue;
+                for (int j = 1; j < delimiter.length; j++) {
+                    if (buffer[i + j] != delimiter[j]) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        static class Part {
+            final String name;
+            final InputStream content;
+
+            Part(String name, InputStream content) {
+                this.name = name;
+                this.content = content;
+            }
+
+            /** A form field's value, as UTF-8 text of at most max bytes. */
+            String text(int max) throws IOException {
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                byte[] chunk = new byte[256];
+                for (int n; (n = content.read(chunk)) != -1; ) {
+                    if (value.size() + n > max) throw new HttpError(400, "Form field " + name + " is too long");
+                    value.write(chunk, 0, n);
+                }
+                return new String(value.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+
+        /** One part's content: everything up to the next delimiter. */
+        private class PartStream extends InputStream {
+            private boolean ended;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (ended) return -1;
+                if (len == 0) return 0;
+                while (true) {
+                    int match = indexOfDelimiter();
+                    if (match == position) {
+                        position += delimiter.length;
+                        ended = true;
+                        return -1;
+                    }
+                    // Without a match, the last delimiter-length - 1 bytes could start one
+                    int safe = match >= 0 ? match : limit - (delimiter.length - 1);
+                    if (safe > position) {
+                        int n = Math.min(len, safe - position);
+                        System.arraycopy(buffer, position, b, off, n);
+                        position += n;
+                        return n;
+                    }
+                    if (!fill()) throw new HttpError(400, "Multipart body ended inside a part");
+                }
+            }
+
+            void skipAll() throws IOException {
+                byte[] skip = new byte[8192];
+                while (read(skip, 0, skip.length) != -1) {
+                    // dropped
+                }
+            }
+
+            // Spooling closes the stream it reads; the rest of the body still belongs to the form
+            @Override
+            public void close() {
+            }
+        }
+    }
+
+    /** Web files under the root, with content ETags kept until a file's size or modification time changes. */
+    static class StaticFiles {
+        // The file types the nginx image served; anything else under the root (sources, build files,
+        // sample and uploaded data) stays private
+        private static final Map<String, String> TYPES = new HashMap<>();
+
+        static {
+            TYPES.put("html", "text/html; charset=utf-8");
+            TYPES.put("css", "text/css; charset=utf-8");
+            TYPES.put("js", "application/javascript; charset=utf-8");
+            TYPES.put("png", "image/png");
+            TYPES.put("jpg", "image/jpeg");
+            TYPES.put("jpeg", "image/jpeg");
+            TYPES.put("gif", "image/gif");
+            TYPES.put("svg", "image/svg+xml");
+            TYPES.put("ico", "image/x-icon");
+        }
+
+        private final Path root;
+        private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+        StaticFiles(Path root) {
+            this.root = root.toAbsolutePath().normalize();
+        }
+
+        /** The file for a request path, or null. Paths without an extension get index.html, as try_files did. */
+        Entry find(String path) throws IOException {
+            String relative = path.startsWith("/") ? path.substring(1) : path;
+            if (relative.isEmpty()) relative = "index.html";
+            for (String segment : relative.split("/")) {
+                if (segment.startsWith(".")) return null; // dotfiles, and any .. left in the path
+            }
+            Path file = root.resolve(relative).normalize();
+            String name = file.getFileName() == null ? "" : file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            String type = dot < 0 ? null : TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (type == null) return dot < 0 && !relative.equals("index.html") ? find("/index.html") : null;
+            if (!file.startsWith(root)) return null;
+
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            if (!attributes.isRegularFile()) return null;
+            long modified = attributes.lastModifiedTime().toMillis();
+            Entry entry = entries.get(file);
+            if (entry == null || entry.size != attributes.size() || entry.modified != modified) {
+                entry = new Entry(file, type, attributes.size(), modified);
+                entries.put(file, entry);
+            }
+            return entry;
+        }
+
+        static class Entry {
+            final Path path;
+            final String type;
+            final long size, modified;
+            final String etag;
+
+            Entry(Path path, String type, long size, long modified) throws IOException {
+                this.path = path;
+                this.type = type;
+                this.size = size;
+                this.modified = modified;
+                this.etag = "\"" + digest(path) + "\"";
+            }
+
+            private static String digest(Path path) throws IOException {
+                MessageDigest digest;
+                try {
+                    digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                try (InputStream in = Files.newInputStream(path)) {
+                    byte[] chunk = new byte[BUFFER_BYTES];
+                    for (int n; (n = in.read(chunk)) != -1; ) digest.update(chunk, 0, n);
+                }
+                StringBuilder hex = new StringBuilder();
+                byte[] hash = digest.digest();
+                for (int i = 0; i < 12; i++) hex.append(String.format("%02x", hash[i]));
+                return hex.toString();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,663 @@
+import static spark.Spark.*;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import javax.servlet.http.Part;
+import spark.Request;
+import spark.Response;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Per-tenant inventory snapshots, so a day-over-day report costs the size of the change instead of
+ * a full re-upload. PUT /inventory/:id replaces a tenant's snapshot with an uploaded file;
+ * POST /inventory/:id/delta applies an upload of changed rows; GET /inventory/:id/summary and
+ * GET /inventory/:id/report answer for any as-of date, since aging is worked out from the stored
+ * date received rather than fixed at parse time. GET /inventory/:id/query filters and ranks lots
+ * through an InventoryIndex.
+ *
+ * Items are lots keyed by name and date received. A delta row for a known lot replaces its category
+ * and quantity, a row for a new lot adds it, and a row with a quantity of zero or less removes it.
+ *
+ * On disk a tenant has a base file of fixed-width columns, which is memory-mapped to load, and an
+ * append-only journal of the changes since. Journal records hold a lot's resulting values, so replaying
+ * one twice is harmless. Once the journal grows past a share of the base it is folded into a new base.
+ */
+class SnapshotStore {
+    static final File DIR = new File(System.getProperty("inventory.snapshot.dir",
+        new File(System.getProperty("java.io.tmpdir"), "inventory-snapshots").getPath()));
+    // The journal is folded into the base once it has more records than this share of the lots...
+    static final double COMPACT_RATIO = Double.parseDouble(System.getProperty("inventory.snapshot.compactRatio", "0.25"));
+    // ...and more than this many
+    static final int COMPACT_MIN_RECORDS = Integer.getInteger("inventory.snapshot.compactMinRecords", 10_000);
+
+    private static final Pattern TENANT = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    // Empty snapshots have NaN percentages
+    private final Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+    SnapshotStore() {
+        DIR.mkdirs();
+    }
+
+    void registerRoutes() {
+        put("/inventory/:id", (req, res) -> {
+            String tenant = tenant(req);
+            ItemTable table = readUpload(req, "/inventory/:id");
+            Snapshot snapshot = getOrCreate(tenant);
+            try {
+                snapshot.replace(table);
+            } catch (IOException e) {
+                snapshots.remove(tenant, snapshot);
+                throw e;
+            }
+            Map<String, Object> status = snapshot.status();
+            status.put("rejected", table.rejections.total());
+            res.type("application/json");
+            return gson.toJson(status);
+        });
+
+        post("/inventory/:id/delta", (req, res) -> {
+            String tenant = tenant(req);
+            Snapshot snapshot = snapshot(tenant);
+            if (snapshot == null) return notFound(res, tenant);
+            ItemTable delta = readUpload(req, "/inventory/:id/delta");
+            Delta applied;
+            try {
+                applied = snapshot.apply(delta);
+            } catch (IOException e) {
+                // Memory may be ahead of the journal now; reload from disk next time
+                snapshots.remove(tenant, snapshot);
+                throw e;
+            }
+            Map<String, Object> status = snapshot.status();
+            status.put("added", applied.added);
+            status.put("updated", applied.updated);
+            status.put("removed", applied.removed);
+            status.put("rejected", delta.rejections.total());
+            res.type("application/json");
+            return gson.toJson(status);
+        });
+
+        get("/inventory/:id/summary", (req, res) -> {
+            String tenant = tenant(req);
+            Snapshot snapshot = snapshot(tenant);
+            if (snapshot == null) return notFound(res, tenant);
+            res.type("application/json");
+            return gson.toJson(snapshot.summary(asOf(req)));
+        });
+
+        get("/inventory/:id/query", (req, res) -> {
+            String tenant = tenant(req);
+            Snapshot snapshot = snapshot(tenant);
+            if (snapshot == null) return notFound(res, tenant);
+            InventoryIndex.Query query = InventoryIndex.Query.from(req);
+            long start = System.nanoTime();
+            InventoryIndex.Result result = snapshot.query(query);
+            long micros = (System.nanoTime() - start) / 1000;
+            res.type(AnalysisJson.JSON_CONTENT_TYPE);
+            Writer json = new BufferedWriter(new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+            AnalysisJson.writeQueryResult(tenant, result, micros, json);
+            json.flush();
+            return res.raw();
+        });
+
+        get("/inventory/:id/report", (req, res) -> {
+            String tenant = tenant(req);
+            Snapshot snapshot = snapshot(tenant);
+            if (snapshot == null) return notFound(res, tenant);
+            LocalDate asOf = asOf(req);
+            InventoryAgingReportGenerator.ReportOptions options = InventoryAgingReportGenerator.ReportOptions.from(req.raw());
+            try (Metrics.Trace trace = Metrics.start("/inventory/:id/report", 0)) {
+                InventoryAgingReportGenerator.InventoryAnalysis analysis =
+                    InventoryAgingReportGenerator.analyzeInventory(snapshot.tableAsOf(asOf));
+                res.type(InventoryAgingReportGenerator.XLSX_CONTENT_TYPE);
+                res.header("Content-Disposition", "attachment; filename=smart-inventory-aging-report-" + asOf + ".xlsx");
+                InventoryAgingReportGenerator.CountingOutputStream body =
+                    new InventoryAgingReportGenerator.CountingOutputStream(res.raw().getOutputStream());
+                InventoryAgingReportGenerator.writeReport(analysis, options, body);
+                body.flush();
+                trace.bytesOut = body.count;
+            }
+            return res.raw();
+        });
+
+        delete("/inventory/:id", (req, res) -> {
+            String tenant = tenant(req);
+            Snapshot snapshot = snapshot(tenant);
+            if (snapshot == null) return notFound(res, tenant);
+            snapshot.delete();
+            snapshots.remove(tenant, snapshot);
+            res.status(204);
+            return "";
+        });
+
+        exception(BadRequest.class, (e, req, res) -> {
+            res.status(400);
+            res.type("application/json");
+            res.body(gson.toJson(Collections.singletonMap("error", e.getMessage())));
+        });
+    }
+
+    /** The tenant's snapshot, loaded from disk on first use, or null when it has none. */
+    Snapshot snapshot(String tenant) throws IOException {
+        try {
+            return snapshots.computeIfAbsent(tenant, t -> {
+                try {
+                    return Snapshot.load(t);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Snapshot getOrCreate(String tenant) throws IOException {
+        Snapshot snapshot = snapshot(tenant);
+        return snapshot != null ? snapshot : snapshots.computeIfAbsent(tenant, Snapshot::new);
+    }
+
+    static String tenant(Request req) {
+        String tenant = req.params("id");
+        if (!TENANT.matcher(tenant).matches()) {
+            throw new BadRequest("Inventory ids are 1-64 letters, digits, '-' or '_'");
+        }
+        return tenant;
+    }
+
+    static LocalDate asOf(Request req) {
+        String asOf = req.queryParams("asOf");
+        if (asOf == null || asOf.isEmpty()) return LocalDate.now();
+        try {
+            return LocalDate.parse(asOf);
+        } catch (DateTimeParseException e) {
+            throw new BadRequest("asOf must be a YYYY-MM-DD date, got " + asOf);
+        }
+    }
+
+    private String notFound(Response res, String tenant) {
+        res.status(404);
+        res.type("application/json");
+        return gson.toJson(Collections.singletonMap("error", "No inventory snapshot for " + tenant));
+    }
+
+    private static ItemTable readUpload(Request req, String route) throws Exception {
+        InventoryAgingReportGenerator.enableMultipart(req.raw());
+        Part filePart = req.raw().getPart("file");
+        if (filePart == null) throw new BadRequest("Form field 'file' is missing");
+        // readItems records the PARSE stage and the row count on the trace
+        Metrics.Trace trace = Metrics.start(route, filePart.getSize());
+        try (trace; InputStream in = new BufferedInputStream(filePart.getInputStream())) {
+            return InventoryAgingReportGenerator.readItems(in, filePart.getSize());
+        }
+    }
+
+    /** A malformed id, date or form; answered with 400 and its message. */
+    static class BadRequest extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BadRequest(String message) {
+            super(message);
+        }
+    }
+
+    /** What a delta did, in lots. */
+    static class Delta {
+        int added, updated, removed;
+    }
+
+    /**
+     * One tenant's lots and their aggregates, in memory, backed by its base file and journal.
+     *
+     * Base file layout, big-endian: magic, format version and row count; the category, supplier and
+     * location dictionaries as a count and then length-prefixed UTF-8 values; padding to 8 bytes; then
+     * the columns unit cost (double), date received (epoch day), quantity, category id, supplier id and
+     * location id, each an array of row-count entries; then row-count + 1 offsets into the UTF-8 item
+     * names that end the file. Every column starts at an offset computable from the header, so row i of
+     * any column can be read from the mapped file directly.
+     */
+    static class Snapshot {
+        private static final int MAGIC = 0x494E5653; // "INVS"
+        private static final int FORMAT_VERSION = 1;
+        private static final byte UPSERT = 1, REMOVE = 2;
+
+        final String tenant;
+        private final File base, journal;
+        private ItemTable items = new ItemTable();
+        private final Map<Lot, Integer> rows = new HashMap<>();
+        private Aggregates aggregates = new Aggregates();
+        private InventoryIndex index; // built on the first query after a change
+        private long journalRecords;
+        private boolean deleted;
+
+        Snapshot(String tenant) {
+            this.tenant = tenant;
+            this.base = new File(DIR, tenant + ".snapshot");
+            this.journal = new File(DIR, tenant + ".journal");
+        }
+
+        /** Reads the base file and replays the journal, or returns null when the tenant has neither. */
+        static Snapshot load(String tenant) throws IOException {
+            Snapshot snapshot = new Snapshot(tenant);
+            if (!snapshot.base.exists() && !snapshot.journal.exists()) return null;
+            if (snapshot.base.exists()) snapshot.readBase();
+            if (snapshot.journal.exists()) snapshot.replayJournal();
+            return snapshot;
+        }
+
+        synchronized void replace(ItemTable table) throws IOException {
+            checkLive();
+            items = new ItemTable();
+            index = null;
+            rows.clear();
+            aggregates = new Aggregates();
+            for (int i = 0; i < table.size(); i++) {
+                Lot lot = new Lot(table.name(i), table.receivedDay(i));
+                if (table.quantity(i) <= 0) removeLot(lot);
+                else upsert(lot, table.category(i), table.quantity(i), table.unitCost(i), table.supplier(i), table.location(i));
+            }
+            compact();
+        }
+
+        /** Applies delta's rows in order and makes them durable in the journal before returning. */
+        synchronized Delta apply(ItemTable delta) throws IOException {
+            checkLive();
+            Delta applied = new Delta();
+            try (FileOutputStream file = new FileOutputStream(journal, true);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                for (int i = 0; i < delta.size(); i++) {
+                    Lot lot = new Lot(delta.name(i), delta.receivedDay(i));
+                    Integer row = rows.get(lot);
+                    if (delta.quantity(i) <= 0) {
+                        if (row == null) continue;
+                        removeLot(lot);
+                        out.writeByte(REMOVE);
+                        writeLot(out, lot);
+                        applied.removed++;
+                    } else {
+                        // A known lot keeps its cost, supplier and location; a new one takes the upload's
+                        double unitCost = row != null ? items.unitCost(row) : delta.unitCost(i);
+                        String supplier = row != null ? items.supplier(row) : delta.supplier(i);
+                        String location = row != null ? items.location(row) : delta.location(i);
+                        upsert(lot, delta.category(i), delta.quantity(i), unitCost, supplier, location);
+                        out.writeByte(UPSERT);
+                        writeLot(out, lot);
+                        writeString(out, delta.category(i));
+                        out.writeInt(delta.quantity(i));
+                        out.writeDouble(unitCost);
+                        writeString(out, supplier);
+                        writeString(out, location);
+                        if (row != null) applied.updated++;
+                        else applied.added++;
+                    }
+                    journalRecords++;
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            if (journalRecords > Math.max(COMPACT_MIN_RECORDS, COMPACT_RATIO * items.size())) compact();
+            return applied;
+        }
+
+        /** A copy of the lots with aging, risk and buckets relative to asOf, for the report writers. */
+        synchronized ItemTable tableAsOf(LocalDate asOf) {
+            ItemTable table = new ItemTable(asOf);
+            table.addAll(items);
+            return table;
+        }
+
+        synchronized InventoryIndex.Result query(InventoryIndex.Query query) {
+            if (index == null) index = new InventoryIndex(items);
+            return index.query(query);
+        }
+
+        synchronized Map<String, Object> summary(LocalDate asOf) {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("inventory", tenant);
+            summary.put("asOf", asOf.toString());
+            aggregates.summarize(items, (int) asOf.toEpochDay(), summary);
+            return summary;
+        }
+
+        synchronized Map<String, Object> status() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("inventory", tenant);
+            status.put("lots", items.size());
+            status.put("journalRecords", journalRecords);
+            status.put("baseBytes", base.length());
+            status.put("journalBytes", journal.length());
+            return status;
+        }
+
+        synchronized void delete() throws IOException {
+            deleted = true;
+            Files.deleteIfExists(journal.toPath());
+            Files.deleteIfExists(base.toPath());
+        }
+
+        private void checkLive() throws IOException {
+            if (deleted) throw new IOException("Inventory snapshot " + tenant + " was deleted");
+        }
+
+        private void upsert(Lot lot, String category, int quantity, double unitCost, String supplier, String location) {
+            index = null;
+            Integer row = rows.get(lot);
+            if (row == null) {
+                row = items.add(lot.name, category, quantity, lot.receivedDay, unitCost, supplier, location);
+                rows.put(lot, row);
+            } else {
+                aggregates.remove(items, row);
+                items.set(row, category, quantity, unitCost, supplier, location);
+            }
+            aggregates.add(items, row);
+        }
+
+        private void removeLot(Lot lot) {
+            Integer row = rows.remove(lot);
+            if (row == null) return;
+            index = null;
+            aggregates.remove(items, row);
+            items.remove(row);
+            if (row < items.size()) rows.put(new Lot(items.name(row), items.receivedDay(row)), row);
+        }
+
+        /** Writes the lots as a new base file, drops the journal and recomputes the aggregates' running sums. */
+        private void compact() throws IOException {
+            File tmp = File.createTempFile(tenant + "-", ".tmp", DIR);
+            try {
+                try (FileOutputStream file = new FileOutputStream(tmp);
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                    writeBase(out);
+                    out.flush();
+                    file.getFD().sync();
+                }
+                Files.move(tmp.toPath(), base.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tmp.delete();
+            }
+            Files.deleteIfExists(journal.toPath());
+            journalRecords = 0;
+            aggregates = new Aggregates();
+            for (int row = 0; row < items.size(); row++) aggregates.add(items, row);
+        }
+
+        private void writeBase(DataOutputStream out) throws IOException {
+            int n = items.size();
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(n);
+            for (ItemTable.Dictionary dictionary : Arrays.asList(items.categories, items.suppliers, items.locations)) {
+                out.writeInt(dictionary.size());
+                for (String value : dictionary.values()) writeString(out, value);
+            }
+            while (out.size() % 8 != 0) out.writeByte(0);
+            for (int row = 0; row < n; row++) out.writeDouble(items.unitCost(row));
+            for (int row = 0; row < n; row++) out.writeInt(items.receivedDay(row));
+            for (int row = 0; row < n; row++) out.writeInt(items.quantity(row));
+            for (int row = 0; row < n; row++) out.writeInt(items.categoryId(row));
+            for (int row = 0; row < n; row++) out.writeInt(items.supplierId(row));
+            for (int row = 0; row < n; row++) out.writeInt(items.locationId(row));
+            byte[][] names = new byte[n][];
+            int offset = 0;
+            out.writeInt(0);
+            for (int row = 0; row < n; row++) {
+                names[row] = items.name(row).getBytes(StandardCharsets.UTF_8);
+                offset += names[row].length;
+                out.writeInt(offset);
+            }
+            for (byte[] name : names) out.write(name);
+            if (out.size() == Integer.MAX_VALUE) throw new IOException("Inventory snapshot " + tenant + " is over 2 GB");
+        }
+
+        private void readBase() throws IOException {
+            try (FileChannel channel = FileChannel.open(base.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) throw new IOException("Inventory snapshot " + base + " is over 2 GB");
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (data.getInt() != MAGIC || data.getInt() != FORMAT_VERSION) {
+                    throw new IOException(base + " is not an inventory snapshot");
+                }
+                int n = data.getInt();
+                for (ItemTable.Dictionary dictionary : Arrays.asList(items.categories, items.suppliers, items.locations)) {
+                    int size = data.getInt();
+                    for (int i = 0; i < size; i++) dictionary.id(readString(data));
+                }
+                int costs = (data.position() + 7) & ~7;
+                int days = costs + 8 * n;
+                int quantities = days + 4 * n;
+                int categories = quantities + 4 * n;
+                int suppliers = categories + 4 * n;
+                int locations = suppliers + 4 * n;
+                int offsets = locations + 4 * n;
+                byte[] names = new byte[data.getInt(offsets + 4 * n)];
+                data.position(offsets + 4 * (n + 1));
+                data.get(names);
+
+                for (int row = 0; row < n; row++) {
+                    int from = data.getInt(offsets + 4 * row);
+                    String name = new String(names, from, data.getInt(offsets + 4 * row + 4) - from, StandardCharsets.UTF_8);
+                    int receivedDay = data.getInt(days + 4 * row);
+                    items.add(name, data.getInt(categories + 4 * row), data.getInt(suppliers + 4 * row),
+                              data.getInt(locations + 4 * row), data.getInt(quantities + 4 * row), receivedDay,
+                              data.getDouble(costs + 8 * row));
+                    rows.put(new Lot(name, receivedDay), row);
+                    aggregates.add(items, row);
+                }
+            }
+        }
+
+        /**
+         * Replays journal records in order; a torn record at the end, from a crash mid-append, is cut off.
+         * The journal is read onto the heap rather than mapped, since a mapped file cannot be truncated on Windows.
+         */
+        private void replayJournal() throws IOException {
+            if (journal.length() > Integer.MAX_VALUE) throw new IOException("Inventory journal " + journal + " is over 2 GB");
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(journal.toPath()));
+            int complete = 0;
+            try {
+                while (data.hasRemaining()) {
+                    byte op = data.get();
+                    Lot lot = new Lot(readString(data), data.getInt());
+                    if (op == UPSERT) {
+                        String category = readString(data);
+                        int quantity = data.getInt();
+                        double unitCost = data.getDouble();
+                        upsert(lot, category, quantity, unitCost, readString(data), readString(data));
+                    } else if (op == REMOVE) {
+                        removeLot(lot);
+                    } else {
+                        throw new IOException("Inventory journal " + journal + " has an unknown record at byte " + complete);
+                    }
+                    complete = data.position();
+                    journalRecords++;
+                }
+            } catch (BufferUnderflowException e) {
+                try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(complete);
+                }
+            }
+        }
+
+        private static void writeLot(DataOutputStream out, Lot lot) throws IOException {
+            writeString(out, lot.name);
+            out.writeInt(lot.receivedDay);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /** A length-prefixed string; a length that runs past the end underflows like a short read. */
+        private static String readString(ByteBuffer data) {
+            int length = data.getInt();
+            if (length < 0 || length > data.remaining()) throw new BufferUnderflowException();
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Lot identity: an item name received on a given day. */
+    private static class Lot {
+        final String name;
+        final int receivedDay;
+
+        Lot(String name, int receivedDay) {
+            this.name = name;
+            this.receivedDay = receivedDay;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Lot)) return false;
+            Lot other = (Lot) o;
+            return receivedDay == other.receivedDay && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + receivedDay;
+        }
+    }
+
+    /**
+     * Running totals kept per date received and per dictionary id, updated as lots come and go. Aging
+     * only depends on the date received and category, so a summary for any as-of date walks the distinct
+     * dates, and the categories present on each, instead of the lots. The sums are added to and
+     * subtracted from, so they can differ in the last bits from a fresh analysis; compaction starts them over.
+     */
+    private static class Aggregates {
+        private final TreeMap<Integer, Day> days = new TreeMap<>();
+        private double[] categoryValues = new double[8];
+        private long[] categoryLots = new long[8];
+        private long[] supplierQuantities = new long[8];
+        private long[] supplierLots = new long[8];
+
+        void add(ItemTable items, int row) {
+            update(items, row, 1);
+        }
+
+        void remove(ItemTable items, int row) {
+            update(items, row, -1);
+        }
+
+        private void update(ItemTable items, int row, int sign) {
+            int category = items.categoryId(row);
+            int supplier = items.supplierId(row);
+            double value = sign * items.totalValue(row);
+            Day day = days.computeIfAbsent(items.receivedDay(row), d -> new Day());
+            day.lots += sign;
+            day.value += value;
+            if (category >= day.categoryLots.length) {
+                day.categoryLots = Arrays.copyOf(day.categoryLots, category + 8);
+                day.categoryValues = Arrays.copyOf(day.categoryValues, category + 8);
+            }
+            day.categoryLots[category] += sign;
+            day.categoryValues[category] += value;
+            if (day.lots == 0) days.remove(items.receivedDay(row));
+
+            if (category >= categoryValues.length) {
+                categoryValues = Arrays.copyOf(categoryValues, category * 2);
+                categoryLots = Arrays.copyOf(categoryLots, category * 2);
+            }
+            categoryValues[category] += value;
+            categoryLots[category] += sign;
+            if (supplier >= supplierQuantities.length) {
+                supplierQuantities = Arrays.copyOf(supplierQuantities, supplier * 2);
+                supplierLots = Arrays.copyOf(supplierLots, supplier * 2);
+            }
+            supplierQuantities[supplier] += sign * (long) items.quantity(row);
+            supplierLots[supplier] += sign;
+        }
+
+        /**
+         * Puts the KPIs, bucket totals, category values, supplier quantities and recommendations as of
+         * asOfDay, plus the bucket totals and recommendations of every further AgingScheme.
+         */
+        void summarize(ItemTable items, int asOfDay, Map<String, Object> summary) {
+            List<AgingScheme> schemes = AgingScheme.SCHEMES;
+            AgingScheme.Accumulator[] tallies = new AgingScheme.Accumulator[schemes.size()];
+            for (int i = 0; i < tallies.length; i++) tallies[i] = schemes.get(i).new Accumulator(null);
+            long lots = 0, ageSum = 0;
+            double total = 0;
+            for (Map.Entry<Integer, Day> entry : days.entrySet()) {
+                long age = asOfDay - entry.getKey();
+                Day day = entry.getValue();
+                lots += day.lots;
+                total += day.value;
+                ageSum += age * day.lots;
+                int categories = Math.min(day.categoryLots.length, items.categories.size());
+                for (int c = 0; c < categories; c++) {
+                    if (day.categoryLots[c] == 0) continue;
+                    String category = items.categories.value(c);
+                    for (AgingScheme.Accumulator tally : tallies) tally.add(category, age, day.categoryLots[c], day.categoryValues[c]);
+                }
+            }
+
+            int critical = AgingScheme.PRIMARY.lastBucket();
+            summary.put("kpis", InventoryAgingReportGenerator.AnalysisAccumulator.kpis(
+                (int) lots, total, tallies[0].count(critical), tallies[0].value(critical), ageSum));
+            AgingScheme.Result primary = tallies[0].result(total);
+            summary.put("agingBuckets", buckets(primary));
+
+            Map<String, Double> values = new LinkedHashMap<>();
+            // The dictionaries keep ids no lot uses any more, which a rebuild leaves out of these arrays
+            for (int c = 0, n = Math.min(categoryLots.length, items.categories.size()); c < n; c++) {
+                if (categoryLots[c] != 0) values.put(items.categories.value(c), categoryValues[c]);
+            }
+            summary.put("categoryValues", values);
+            Map<String, Long> suppliers = new LinkedHashMap<>();
+            for (int s = 0, n = Math.min(supplierLots.length, items.suppliers.size()); s < n; s++) {
+                if (supplierLots[s] != 0) suppliers.put(items.suppliers.value(s), supplierQuantities[s]);
+            }
+            summary.put("supplierCounts", suppliers);
+            summary.put("recommendations", primary.recommendations);
+
+            if (tallies.length > 1) {
+                Map<String, Object> others = new LinkedHashMap<>();
+                for (int i = 1; i < tallies.length; i++) {
+                    AgingScheme.Result result = tallies[i].result(total);
+                    Map<String, Object> scheme = new LinkedHashMap<>();
+                    scheme.put("agingBuckets", buckets(result));
+                    scheme.put("recommendations", result.recommendations);
+                    others.put(schemes.get(i).name, scheme);
+                }
+                summary.put("schemes", others);
+            }
+        }
+
+        private static Map<String, Object> buckets(AgingScheme.Result result) {
+            Map<String, Object> buckets = new LinkedHashMap<>();
+            for (int b = 0; b < result.buckets.length; b++) {
+                Map<String, Object> bucket = new LinkedHashMap<>();
+                bucket.put("items", result.items[b]);
+                bucket.put("value", result.values[b]);
+                buckets.put(result.buckets[b], bucket);
+            }
+            return buckets;
+        }
+
+        private static class Day {
+            long lots;
+            double value;
+            long[] categoryLots = new long[8];
+            double[] categoryValues = new double[8];
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.inventory.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/** analyzeInventory over a parsed ItemTable; rows beyond 100k take the parallel accumulator path. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class AnalysisBenchmark {
+    @Param({"1000", "100000", "1000000", "5000000"})
+    int rows;
+
+    @Param({"42"})
+    long seed;
+
+    private Object items;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        App.seedMockData(seed);
+        byte[] csv = new SyntheticInventory(seed).cachedBytes(SyntheticInventory.Format.CSV, rows);
+        items = App.readItems(new ByteArrayInputStream(csv), csv.length);
+    }
+
+    @Benchmark
+    public Object analyzeInventory() throws Throwable {
+        return App.analyzeInventory(items);
+    }
+}
@@ -0,0 +1,120 @@
+package com.inventory.benchmarks;
+
+import org.apache.poi.ss.usermodel.Workbook;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Entry points into the application classes. They live in the default package, which Java code in a
+ * named package cannot import and JMH does not accept benchmarks in, so they are bound once through
+ * method handles. Static final handles are constants to the JIT; the call overhead is a few nanoseconds
+ * against operations measured in milliseconds.
+ *
+ * Application objects (ItemTable, InventoryAnalysis, ReportOptions) are passed around as Object.
+ */
+final class App {
+    static final Class<?> GENERATOR = load("InventoryAgingReportGenerator");
+    static final Class<?> ITEM_TABLE = load("ItemTable");
+    static final Class<?> ANALYSIS = load("InventoryAgingReportGenerator$InventoryAnalysis");
+    static final Class<?> OPTIONS = load("InventoryAgingReportGenerator$ReportOptions");
+
+    private static final MethodHandle READ_ITEMS = method(GENERATOR, "readItems", InputStream.class, long.class);
+    private static final MethodHandle READ_ITEMS_FROM_EXCEL = method(GENERATOR, "readItemsFromExcel", InputStream.class);
+    private static final MethodHandle ANALYZE_INVENTORY = method(GENERATOR, "analyzeInventory", ITEM_TABLE);
+    private static final MethodHandle GENERATE_SMART_REPORT = method(GENERATOR, "generateSmartReport",
+        ANALYSIS, boolean.class, boolean.class, boolean.class);
+    private static final MethodHandle WRITE_REPORT = method(GENERATOR, "writeReport", ANALYSIS, OPTIONS, OutputStream.class);
+    private static final MethodHandle CREATE_STYLES = method(GENERATOR, "createStyles", Workbook.class);
+    private static final MethodHandle NEW_OPTIONS = constructor(OPTIONS, boolean.class, boolean.class, boolean.class);
+    private static final MethodHandle SEED_MOCK_DATA = method(load("InventoryAgingReportGenerator$Item"), "seedMockData", long.class);
+
+    /** The create*Sheet methods, by the sheet they build. */
+    enum Sheet {
+        EXECUTIVE_SUMMARY("createExecutiveSummarySheet"),
+        DETAILED_AGING("createDetailedAgingSheet"),
+        CATEGORY_ANALYSIS("createCategoryAnalysisSheet"),
+        RECOMMENDATIONS("createRecommendationsSheet"),
+        REJECTED_ROWS("createRejectedRowsSheet");
+
+        private final MethodHandle handle;
+
+        Sheet(String methodName) {
+            this.handle = method(GENERATOR, methodName, Workbook.class, ANALYSIS, Map.class);
+        }
+
+        void create(Workbook workbook, Object analysis, Map<?, ?> styles) throws Throwable {
+            handle.invoke(workbook, analysis, styles);
+        }
+    }
+
+    private App() {
+    }
+
+    static Object readItems(InputStream in, long size) throws Throwable {
+        return READ_ITEMS.invoke(in, size);
+    }
+
+    static Object readItemsFromExcel(InputStream in) throws Throwable {
+        return READ_ITEMS_FROM_EXCEL.invoke(in);
+    }
+
+    static Object analyzeInventory(Object items) throws Throwable {
+        return ANALYZE_INVENTORY.invoke(items);
+    }
+
+    static Object generateSmartReport(Object analysis, boolean includeCharts, boolean includeSummary,
+                                      boolean includeRecommendations) throws Throwable {
+        return GENERATE_SMART_REPORT.invoke(analysis, includeCharts, includeSummary, includeRecommendations);
+    }
+
+    static void writeReport(Object analysis, Object options, OutputStream out) throws Throwable {
+        WRITE_REPORT.invoke(analysis, options, out);
+    }
+
+    static Map<?, ?> createStyles(Workbook workbook) throws Throwable {
+        return (Map<?, ?>) CREATE_STYLES.invoke(workbook);
+    }
+
+    static Object reportOptions(boolean includeCharts, boolean includeSummary, boolean includeRecommendations) throws Throwable {
+        return NEW_OPTIONS.invoke(includeCharts, includeSummary, includeRecommendations);
+    }
+
+    /** Makes the mock unit cost, supplier and location columns reproducible. */
+    static void seedMockData(long seed) throws Throwable {
+        SEED_MOCK_DATA.invoke(seed);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Application class " + name + " is not on the classpath", e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = owner.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot bind " + owner.getName() + "." + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = owner.getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot bind " + owner.getName() + " constructor", e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.inventory.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload parsing: readItemsFromExcel builds a full XSSFWorkbook, readItems picks the reader the server
+ * would use for the same bytes (DOM or streaming SAX for XLSX, the native reader for CSV).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class IngestBenchmark {
+    // XLSX tops out at one sheet (about 1M rows); readItemsFromExcel needs several GB beyond 100k
+    @Param({"1000", "100000"})
+    int rows;
+
+    @Param({"42"})
+    long seed;
+
+    private byte[] xlsx, csv;
+
+    @Setup(Level.Trial)
+    public void generate() throws Throwable {
+        App.seedMockData(seed);
+        SyntheticInventory inventory = new SyntheticInventory(seed);
+        xlsx = inventory.cachedBytes(SyntheticInventory.Format.XLSX, rows);
+        csv = inventory.cachedBytes(SyntheticInventory.Format.CSV, rows);
+    }
+
+    @Benchmark
+    public Object readItemsFromExcel() throws Throwable {
+        return App.readItemsFromExcel(new ByteArrayInputStream(xlsx));
+    }
+
+    @Benchmark
+    public Object readItemsXlsx() throws Throwable {
+        return App.readItems(new ByteArrayInputStream(xlsx), xlsx.length);
+    }
+
+    @Benchmark
+    public Object readItemsCsv() throws Throwable {
+        return App.readItems(new ByteArrayInputStream(csv), csv.length);
+    }
+}
@@ -0,0 +1,630 @@
+package com.inventory.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Closed-loop load test of the HTTP endpoints: a number of clients each send a request, wait for the
+ * whole response, and send the next, for a warm-up period and then a measured one.
+ *
+ * Each request picks an operation from the weighted mix (upload, analyze, ndjson, static) and an input
+ * from the generated shapes (format x rows). Inputs come from SyntheticInventory with the given seed,
+ * and every upload is made unique so the server's report cache doesn't answer it from memory: CSV gets
+ * one extra row, XLSX a distinct zip comment. --repeat sends that fraction of uploads byte-for-byte
+ * again to model cache hits. Client choices are seeded per client, so two runs replay the same mix.
+ *
+ * Without --url a server is started in a child JVM on this classpath: SimpleServer on a free port, or
+ * the Spark server on 8080. The server's heap and GC figures come from the jvm_* gauges on /metrics,
+ * sampled during the measured period, so they work against a remote server too.
+ *
+ * The result is written as JSON: latency percentiles and throughput per operation and input, server
+ * heap and GC, and server-side request time per route. With --baseline the run is compared to an
+ * earlier result, and --max-regression makes a p95 or throughput regression beyond that percentage
+ * fail the run.
+ *
+ * Run with: java -cp benchmarks.jar com.inventory.benchmarks.LoadTest [--option value ...]
+ */
+public final class LoadTest {
+    private static final String USAGE = String.join("\n",
+        "Usage: LoadTest [--option value ...]",
+        "  --url URL              server to test; default: start one in a child JVM",
+        "  --server simple|spark  server to start (default simple)",
+        "  --web-root DIR         directory the started SimpleServer serves static files from (default .)",
+        "  --server-jvm ARGS      JVM options for the started server, e.g. \"-Xmx1g -XX:+UseZGC\"",
+        "  --clients N            concurrent clients (default 8)",
+        "  --warmup S             seconds before measuring (default 10)",
+        "  --duration S           measured seconds (default 30)",
+        "  --mix OP=W,...         operation weights from upload, analyze, ndjson, static (default upload=6,analyze=3,ndjson=1)",
+        "  --formats csv,xlsx     input formats (default csv,xlsx)",
+        "  --rows N,...           input sizes in rows (default 1000,20000)",
+        "  --bad-rows F           fraction of malformed rows (default 0)",
+        "  --as-of YYYY-MM-DD     date the inputs are aged against (default today)",
+        "  --repeat F             fraction of uploads that resend the previous bytes (default 0)",
+        "  --seed N               generator and client seed (default 42)",
+        "  --out FILE             result file (default loadtest-<time>.json)",
+        "  --baseline FILE        earlier result to compare with",
+        "  --max-regression PCT   exit 1 when p95 or throughput is this much worse than the baseline");
+
+    private static final String[] OPERATIONS = {"upload", "analyze", "ndjson", "static"};
+    private static final double[] PERCENTILES = {50, 95, 99};
+    private static final Pattern SAMPLE = Pattern.compile("^([a-z_]+)\\{([^}]*)\\} (\\S+)$");
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().serializeSpecialFloatingPointValues().create();
+
+    private final Map<String, String> options;
+    private final long seed;
+    private final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10)).build();
+    private final AtomicLong uniqueCounter = new AtomicLong();
+    private final Instant startedAt = Instant.now();
+    private URI base;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.seed = Long.parseLong(option("seed", "42"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length || args[i].equals("--help")) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        System.exit(new LoadTest(options).run());
+    }
+
+    private String option(String name, String fallback) {
+        return options.getOrDefault(name, fallback);
+    }
+
+    private int run() throws Exception {
+        int clients = Integer.parseInt(option("clients", "8"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "10")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+        Mix mix = new Mix(option("mix", "upload=6,analyze=3,ndjson=1"));
+        List<Input> inputs = inputs();
+
+        Process server = null;
+        try {
+            if (options.containsKey("url")) {
+                base = URI.create(option("url", null));
+            } else {
+                server = startServer();
+            }
+            awaitServer();
+            System.out.printf("Load test: %d clients, %ds warm-up, %ds measured, mix %s, against %s%n",
+                              clients, warmupNanos / 1_000_000_000, durationNanos / 1_000_000_000, mix, base);
+
+            long start = System.nanoTime();
+            long measureFrom = start + warmupNanos;
+            long measureUntil = measureFrom + durationNanos;
+            ExecutorService pool = Executors.newFixedThreadPool(clients + 1);
+            Sampler sampler = new Sampler(measureFrom, measureUntil);
+            Future<?> sampling = pool.submit(sampler);
+            List<Future<Client>> futures = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                Client client = new Client(c, mix, inputs, measureFrom, measureUntil);
+                futures.add(pool.submit(client::call));
+            }
+            List<Client> done = new ArrayList<>();
+            for (Future<Client> future : futures) done.add(future.get());
+            sampling.get();
+            pool.shutdown();
+
+            JsonObject result = result(done, sampler, clients, mix, inputs, durationNanos / 1e9);
+            String out = option("out", "loadtest-" + startedAt.toString().replace(':', '-').replaceAll("\\..*", "") + ".json");
+            Files.write(Paths.get(out), GSON.toJson(result).getBytes(StandardCharsets.UTF_8));
+            print(result);
+            System.out.println("Wrote " + out);
+
+            if (options.containsKey("baseline")) {
+                JsonObject baseline = JsonParser.parseString(new String(Files.readAllBytes(Paths.get(option("baseline", null))),
+                                                                        StandardCharsets.UTF_8)).getAsJsonObject();
+                return compare(baseline, result);
+            }
+            return 0;
+        } finally {
+            if (server != null) {
+                server.destroy();
+                if (!server.waitFor(10, TimeUnit.SECONDS)) server.destroyForcibly();
+            }
+        }
+    }
+
+    /** The generated inputs, one per format and size, read once and kept in memory. */
+    private List<Input> inputs() throws IOException {
+        LocalDate asOf = options.containsKey("as-of") ? LocalDate.parse(option("as-of", null)) : LocalDate.now();
+        SyntheticInventory generator = new SyntheticInventory(seed, asOf, Double.parseDouble(option("bad-rows", "0")));
+        List<Input> inputs = new ArrayList<>();
+        for (String format : option("formats", "csv,xlsx").split(",")) {
+            for (String rows : option("rows", "1000,20000").split(",")) {
+                SyntheticInventory.Format f = SyntheticInventory.Format.valueOf(format.trim().toUpperCase(Locale.ROOT));
+                int n = Integer.parseInt(rows.trim());
+                inputs.add(new Input(f, n, generator.cachedBytes(f, n), asOf));
+            }
+        }
+        return inputs;
+    }
+
+    private Process startServer() throws IOException {
+        boolean spark = "spark".equals(option("server", "simple"));
+        int port = spark ? 8080 : freePort();
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (options.containsKey("server-jvm")) command.addAll(Arrays.asList(option("server-jvm", "").trim().split("\\s+")));
+        command.add("-Dinventory.mockSeed=" + seed);
+        command.add("-Dinventory.server.port=" + port);
+        command.add("-Dinventory.server.webRoot=" + option("web-root", "."));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(spark ? "InventoryAgingReportGenerator" : "SimpleServer");
+
+        File log = File.createTempFile("loadtest-server-", ".log");
+        System.out.println("Starting " + command.get(command.size() - 1) + " on port " + port + ", log in " + log);
+        base = URI.create("http://localhost:" + port);
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void awaitServer() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (true) {
+            try {
+                scrape();
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) throw new IllegalStateException("No server answering at " + base, e);
+                Thread.sleep(250);
+            }
+        }
+    }
+
+    private String scrape() throws IOException, InterruptedException {
+        HttpResponse<String> response = http.send(HttpRequest.newBuilder(base.resolve("/metrics")).build(),
+                                                  HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) throw new IOException("GET /metrics: " + response.statusCode());
+        return response.body();
+    }
+
+    /** One generated inventory, with what it takes to send it as a unique upload. */
+    private static final class Input {
+        final SyntheticInventory.Format format;
+        final int rows;
+        final byte[] bytes;
+        final String name;
+        private final byte[] head;
+        private final String extraRow;
+
+        Input(SyntheticInventory.Format format, int rows, byte[] bytes, LocalDate asOf) {
+            this.format = format;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.name = format.name().toLowerCase(Locale.ROOT) + "-" + rows;
+            if (format == SyntheticInventory.Format.XLSX) {
+                // Everything but the end-of-central-directory comment length, which the generator leaves at 0
+                int end = bytes.length - 22;
+                if (end < 0 || bytes[end] != 'P' || bytes[end + 1] != 'K' || bytes[end + 2] != 5 || bytes[end + 3] != 6
+                        || bytes[end + 20] != 0 || bytes[end + 21] != 0) {
+                    throw new IllegalStateException(name + " does not end in a bare zip directory record");
+                }
+                head = Arrays.copyOf(bytes, bytes.length - 2);
+                extraRow = null;
+            } else {
+                head = bytes;
+                extraRow = "Load Test Item #%d,Electronics,1," + asOf + "\n";
+            }
+        }
+
+        /** The file's bytes, changed by a marker so that no two uploads hash the same. */
+        List<byte[]> unique(long n) {
+            if (extraRow != null) return Arrays.asList(head, String.format(extraRow, n).getBytes(StandardCharsets.UTF_8));
+            byte[] comment = ("loadtest-" + n).getBytes(StandardCharsets.US_ASCII);
+            byte[] tail = new byte[2 + comment.length];
+            tail[0] = (byte) comment.length;
+            System.arraycopy(comment, 0, tail, 2, comment.length);
+            return Arrays.asList(head, tail);
+        }
+    }
+
+    /** Operation weights, parsed from "upload=6,analyze=3". */
+    private static final class Mix {
+        final String[] operations;
+        final double[] cumulative;
+        private final String text;
+
+        Mix(String text) {
+            this.text = text;
+            List<String> ops = new ArrayList<>();
+            List<Double> weights = new ArrayList<>();
+            double total = 0;
+            for (String entry : text.split(",")) {
+                String[] pair = entry.split("=");
+                String op = pair[0].trim();
+                if (!Arrays.asList(OPERATIONS).contains(op)) throw new IllegalArgumentException("Unknown operation " + op);
+                double weight = pair.length > 1 ? Double.parseDouble(pair[1]) : 1;
+                if (weight <= 0) continue;
+                total += weight;
+                ops.add(op);
+                weights.add(total);
+            }
+            if (ops.isEmpty()) throw new IllegalArgumentException("Empty mix " + text);
+            operations = ops.toArray(new String[0]);
+            cumulative = new double[weights.size()];
+            for (int i = 0; i < cumulative.length; i++) cumulative[i] = weights.get(i) / total;
+        }
+
+        String pick(SplittableRandom random) {
+            double u = random.nextDouble();
+            for (int i = 0; i < cumulative.length - 1; i++) {
+                if (u < cumulative[i]) return operations[i];
+            }
+            return operations[operations.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /** Latencies and counts of the measured requests of one operation on one input. */
+    private static final class Series {
+        long[] nanos = new long[256];
+        int count;
+        long errors, rows, bytesIn, bytesOut;
+        final Map<String, Long> statuses = new TreeMap<>();
+
+        void add(long latency) {
+            if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = latency;
+        }
+
+        void merge(Series other) {
+            for (int i = 0; i < other.count; i++) add(other.nanos[i]);
+            errors += other.errors;
+            rows += other.rows;
+            bytesIn += other.bytesIn;
+            bytesOut += other.bytesOut;
+            other.statuses.forEach((status, n) -> statuses.merge(status, n, Long::sum));
+        }
+
+        JsonObject toJson(double seconds) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            JsonObject json = new JsonObject();
+            json.addProperty("requests", count);
+            json.addProperty("errors", errors);
+            json.addProperty("throughput", count / seconds);
+            json.addProperty("rowsPerSecond", rows / seconds);
+            json.addProperty("bytesInPerSecond", bytesIn / seconds);
+            json.addProperty("bytesOutPerSecond", bytesOut / seconds);
+            JsonObject latency = new JsonObject();
+            for (double p : PERCENTILES) latency.addProperty("p" + (int) p, millis(percentile(sorted, p)));
+            long total = 0;
+            for (long n : sorted) total += n;
+            latency.addProperty("mean", count == 0 ? Double.NaN : millis(total / (double) count));
+            latency.addProperty("max", count == 0 ? Double.NaN : millis(sorted[count - 1]));
+            json.add("latencyMs", latency);
+            JsonObject codes = new JsonObject();
+            statuses.forEach(codes::addProperty);
+            json.add("statuses", codes);
+            return json;
+        }
+
+        /** Nearest-rank percentile. */
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return Double.NaN;
+            int rank = (int) Math.ceil(p / 100 * sorted.length);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        private static double millis(double nanos) {
+            return Math.round(nanos / 1e3) / 1e3;
+        }
+    }
+
+    /** One closed-loop client; its series are keyed by "operation" and "operation input". */
+    private final class Client implements Callable<Client> {
+        final Map<String, Series> series = new TreeMap<>();
+        private final SplittableRandom random;
+        private final String boundary;
+        private final Mix mix;
+        private final List<Input> inputs;
+        private final long measureFrom, measureUntil;
+        private List<byte[]> previous;
+        private Input previousInput;
+
+        Client(int index, Mix mix, List<Input> inputs, long measureFrom, long measureUntil) {
+            this.random = new SplittableRandom(seed * 31 + index);
+            this.boundary = "----LoadTestBoundary" + Long.toHexString(random.nextLong());
+            this.mix = mix;
+            this.inputs = inputs;
+            this.measureFrom = measureFrom;
+            this.measureUntil = measureUntil;
+        }
+
+        @Override
+        public Client call() {
+            while (true) {
+                long start = System.nanoTime();
+                if (start >= measureUntil) return this;
+                String operation = mix.pick(random);
+                Input input = "static".equals(operation) ? null : inputs.get(random.nextInt(inputs.size()));
+                HttpRequest request = request(operation, input);
+
+                int status;
+                long bytesOut = 0;
+                try {
+                    HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                    try (InputStream body = response.body()) {
+                        byte[] buffer = new byte[1 << 16];
+                        for (int n; (n = body.read(buffer)) != -1; ) bytesOut += n;
+                    }
+                    status = response.statusCode();
+                } catch (IOException e) {
+                    status = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return this;
+                }
+                long latency = System.nanoTime() - start;
+                if (start < measureFrom) continue;
+
+                String key = operation + (input == null ? "" : " " + input.name);
+                for (String name : new String[] {operation, key}) {
+                    Series s = series.computeIfAbsent(name, k -> new Series());
+                    s.add(latency);
+                    s.statuses.merge(status == 0 ? "io-error" : Integer.toString(status), 1L, Long::sum);
+                    s.bytesOut += bytesOut;
+                    if (status < 200 || status >= 300) {
+                        s.errors++;
+                    } else if (input != null) {
+                        s.rows += input.rows;
+                        s.bytesIn += input.bytes.length;
+                    }
+                    if (key.equals(operation)) break;
+                }
+            }
+        }
+
+        private HttpRequest request(String operation, Input input) {
+            if ("static".equals(operation)) return HttpRequest.newBuilder(base.resolve("/index.html")).GET().build();
+
+            List<byte[]> file;
+            if (previous != null && previousInput == input && random.nextDouble() < Double.parseDouble(option("repeat", "0"))) {
+                file = previous;
+            } else {
+                file = input.unique(uniqueCounter.incrementAndGet());
+                previous = file;
+                previousInput = input;
+            }
+            StringBuilder fields = new StringBuilder();
+            if ("upload".equals(operation)) {
+                for (String field : new String[] {"includeCharts", "includeSummary", "includeRecommendations"}) {
+                    fields.append("--").append(boundary).append("\r\n")
+                        .append("Content-Disposition: form-data; name=\"").append(field).append("\"\r\n\r\ntrue\r\n");
+                }
+            }
+            fields.append("--").append(boundary).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"file\"; filename=\"inventory.")
+                .append(input.format.name().toLowerCase(Locale.ROOT)).append("\"\r\n")
+                .append("Content-Type: application/octet-stream\r\n\r\n");
+            List<byte[]> body = new ArrayList<>();
+            body.add(fields.toString().getBytes(StandardCharsets.UTF_8));
+            body.addAll(file);
+            body.add(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+            String path = "upload".equals(operation) ? "/upload" : "ndjson".equals(operation) ? "/analyze?format=ndjson" : "/analyze";
+            return HttpRequest.newBuilder(base.resolve(path))
+                .timeout(Duration.ofMinutes(10))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(body))
+                .build();
+        }
+    }
+
+    /** Scrapes the server's /metrics through the measured period for heap, GC and per-route figures. */
+    private final class Sampler implements Runnable {
+        private final long measureFrom, measureUntil;
+        Map<String, Double> first, last;
+        double heapUsedMax, heapUsedSum, heapCommittedMax, heapMax;
+        int samples;
+
+        Sampler(long measureFrom, long measureUntil) {
+            this.measureFrom = measureFrom;
+            this.measureUntil = measureUntil;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long wait = measureFrom - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                while (true) {
+                    Map<String, Double> sample = parse(scrape());
+                    if (first == null) first = sample;
+                    last = sample;
+                    double used = sample.getOrDefault("jvm_memory_heap_bytes{area=\"used\"}", Double.NaN);
+                    heapUsedMax = Math.max(heapUsedMax, used);
+                    heapUsedSum += used;
+                    heapCommittedMax = Math.max(heapCommittedMax, sample.getOrDefault("jvm_memory_heap_bytes{area=\"committed\"}", Double.NaN));
+                    heapMax = sample.getOrDefault("jvm_memory_heap_bytes{area=\"max\"}", Double.NaN);
+                    samples++;
+                    if (System.nanoTime() >= measureUntil) return;
+                    Thread.sleep(500);
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Server metrics unavailable: " + e);
+            }
+        }
+
+        private Map<String, Double> parse(String text) {
+            Map<String, Double> values = new HashMap<>();
+            for (String line : text.split("\n")) {
+                Matcher m = SAMPLE.matcher(line);
+                if (m.matches()) values.put(m.group(1) + "{" + m.group(2) + "}", Double.parseDouble(m.group(3)));
+            }
+            return values;
+        }
+
+        JsonObject toJson(double seconds) {
+            JsonObject json = new JsonObject();
+            if (first == null) return json;
+            json.addProperty("samples", samples);
+            json.addProperty("heapUsedMaxBytes", heapUsedMax);
+            json.addProperty("heapUsedMeanBytes", heapUsedSum / samples);
+            json.addProperty("heapCommittedMaxBytes", heapCommittedMax);
+            json.addProperty("heapMaxBytes", heapMax);
+
+            JsonObject collectors = new JsonObject();
+            double gcSeconds = 0, collections = 0;
+            Pattern gc = Pattern.compile("jvm_gc_(collections_total|collection_seconds_total)\\{gc=\"(.*)\"\\}");
+            for (Map.Entry<String, Double> e : last.entrySet()) {
+                Matcher m = gc.matcher(e.getKey());
+                if (!m.matches()) continue;
+                double delta = e.getValue() - first.getOrDefault(e.getKey(), 0.0);
+                JsonObject collector = collectors.has(m.group(2)) ? collectors.getAsJsonObject(m.group(2)) : new JsonObject();
+                collectors.add(m.group(2), collector);
+                if (m.group(1).equals("collections_total")) {
+                    collector.addProperty("collections", delta);
+                    collections += delta;
+                } else {
+                    collector.addProperty("seconds", delta);
+                    gcSeconds += delta;
+                }
+            }
+            json.addProperty("gcCollections", collections);
+            json.addProperty("gcSeconds", Math.round(gcSeconds * 1e3) / 1e3);
+            json.addProperty("gcTimeFraction", gcSeconds / seconds);
+            json.add("collectors", collectors);
+
+            // Server-side request time, without the network and the client
+            JsonObject routes = new JsonObject();
+            Pattern count = Pattern.compile("inventory_request_duration_seconds_count\\{route=\"(.*)\"\\}");
+            for (Map.Entry<String, Double> e : last.entrySet()) {
+                Matcher m = count.matcher(e.getKey());
+                if (!m.matches()) continue;
+                String sumKey = "inventory_request_duration_seconds_sum{route=\"" + m.group(1) + "\"}";
+                double requests = e.getValue() - first.getOrDefault(e.getKey(), 0.0);
+                double sum = last.getOrDefault(sumKey, 0.0) - first.getOrDefault(sumKey, 0.0);
+                JsonObject route = new JsonObject();
+                route.addProperty("requests", requests);
+                route.addProperty("meanMs", requests == 0 ? Double.NaN : Math.round(sum / requests * 1e6) / 1e3);
+                routes.add(m.group(1), route);
+            }
+            json.add("routes", routes);
+            return json;
+        }
+    }
+
+    private JsonObject result(List<Client> clients, Sampler sampler, int clientCount, Mix mix, List<Input> inputs, double seconds) {
+        JsonObject json = new JsonObject();
+        json.addProperty("startedAt", startedAt.toString());
+        JsonObject config = new JsonObject();
+        config.addProperty("url", base.toString());
+        config.addProperty("server", options.containsKey("url") ? "external" : option("server", "simple"));
+        config.addProperty("serverJvm", option("server-jvm", ""));
+        config.addProperty("clients", clientCount);
+        config.addProperty("warmupSeconds", Long.parseLong(option("warmup", "10")));
+        config.addProperty("durationSeconds", seconds);
+        config.addProperty("mix", mix.toString());
+        config.addProperty("repeat", Double.parseDouble(option("repeat", "0")));
+        config.addProperty("seed", seed);
+        JsonObject inputSizes = new JsonObject();
+        for (Input input : inputs) inputSizes.addProperty(input.name, input.bytes.length);
+        config.add("inputBytes", inputSizes);
+        config.addProperty("java", System.getProperty("java.version"));
+        config.addProperty("cores", Runtime.getRuntime().availableProcessors());
+        json.add("config", config);
+
+        Map<String, Series> merged = new TreeMap<>();
+        Series total = new Series();
+        for (Client client : clients) {
+            client.series.forEach((key, s) -> {
+                merged.computeIfAbsent(key, k -> new Series()).merge(s);
+                if (!key.contains(" ")) total.merge(s);
+            });
+        }
+        json.add("total", total.toJson(seconds));
+        JsonObject operations = new JsonObject();
+        merged.forEach((key, s) -> operations.add(key, s.toJson(seconds)));
+        json.add("operations", operations);
+        json.add("serverJvm", sampler.toJson(seconds));
+        return json;
+    }
+
+    private static void print(JsonObject result) {
+        System.out.printf("%-22s %8s %7s %9s %9s %9s %9s%n", "operation", "requests", "errors", "req/s", "p50 ms", "p95 ms", "p99 ms");
+        Map<String, JsonObject> rows = new LinkedHashMap<>();
+        rows.put("total", result.getAsJsonObject("total"));
+        for (String key : result.getAsJsonObject("operations").keySet()) {
+            rows.put(key, result.getAsJsonObject("operations").getAsJsonObject(key));
+        }
+        rows.forEach((name, s) -> {
+            JsonObject latency = s.getAsJsonObject("latencyMs");
+            System.out.printf("%-22s %8d %7d %9.2f %9.1f %9.1f %9.1f%n", name, s.get("requests").getAsLong(),
+                              s.get("errors").getAsLong(), s.get("throughput").getAsDouble(),
+                              latency.get("p50").getAsDouble(), latency.get("p95").getAsDouble(), latency.get("p99").getAsDouble());
+        });
+        JsonObject jvm = result.getAsJsonObject("serverJvm");
+        if (jvm.has("heapUsedMaxBytes")) {
+            System.out.printf("Server heap: %.0f MB peak used, %.0f MB committed; GC: %.0f collections, %.2f s (%.1f%% of the run)%n",
+                              jvm.get("heapUsedMaxBytes").getAsDouble() / 1e6, jvm.get("heapCommittedMaxBytes").getAsDouble() / 1e6,
+                              jvm.get("gcCollections").getAsDouble(), jvm.get("gcSeconds").getAsDouble(),
+                              jvm.get("gcTimeFraction").getAsDouble() * 100);
+        }
+    }
+
+    /** Prints the change against the baseline per operation; returns 1 when a limit was exceeded. */
+    private int compare(JsonObject baseline, JsonObject result) {
+        double limit = Double.parseDouble(option("max-regression", "Infinity"));
+        boolean regressed = false;
+        System.out.printf("%-22s %12s %12s%n", "vs baseline", "p95", "req/s");
+        Map<String, JsonObject[]> pairs = new LinkedHashMap<>();
+        pairs.put("total", new JsonObject[] {baseline.getAsJsonObject("total"), result.getAsJsonObject("total")});
+        JsonObject before = baseline.getAsJsonObject("operations");
+        for (String key : result.getAsJsonObject("operations").keySet()) {
+            if (before.has(key)) pairs.put(key, new JsonObject[] {before.getAsJsonObject(key), result.getAsJsonObject("operations").getAsJsonObject(key)});
+        }
+        for (Map.Entry<String, JsonObject[]> pair : pairs.entrySet()) {
+            JsonObject old = pair.getValue()[0], now = pair.getValue()[1];
+            double p95 = change(old.getAsJsonObject("latencyMs").get("p95").getAsDouble(), now.getAsJsonObject("latencyMs").get("p95").getAsDouble());
+            double throughput = change(old.get("throughput").getAsDouble(), now.get("throughput").getAsDouble());
+            boolean bad = p95 > limit || -throughput > limit;
+            regressed |= bad;
+            System.out.printf("%-22s %+11.1f%% %+11.1f%%%s%n", pair.getKey(), p95, throughput, bad ? "  REGRESSION" : "");
+        }
+        return regressed ? 1 : 0;
+    }
+
+    private static double change(double before, double after) {
+        return before > 0 && !Double.isNaN(after) ? (after - before) / before * 100 : 0;
+    }
+}
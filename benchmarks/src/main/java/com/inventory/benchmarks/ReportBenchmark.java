@@ -0,0 +1,46 @@
+package com.inventory.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole report rendering: generateSmartReport always uses an XSSFWorkbook held in memory, writeReport
+ * goes through the writer the upload endpoint uses: the direct OOXML writer by default, or with
+ * -jvmArgsAppend -Dinventory.reportWriter=poi the POI workbook, switching to SXSSF at the streaming threshold.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ReportBenchmark {
+    @Param({"1000", "20000", "100000"})
+    int rows;
+
+    @Param({"42"})
+    long seed;
+
+    private Object analysis, allSections;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        App.seedMockData(seed);
+        byte[] csv = new SyntheticInventory(seed).cachedBytes(SyntheticInventory.Format.CSV, rows);
+        analysis = App.analyzeInventory(App.readItems(new ByteArrayInputStream(csv), csv.length));
+        allSections = App.reportOptions(true, true, true);
+    }
+
+    @Benchmark
+    public Object generateSmartReport() throws Throwable {
+        return App.generateSmartReport(analysis, true, true, true);
+    }
+
+    @Benchmark
+    public void writeReport() throws Throwable {
+        App.writeReport(analysis, allSections, OutputStream.nullOutputStream());
+    }
+}
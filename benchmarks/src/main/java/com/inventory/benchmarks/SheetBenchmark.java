@@ -0,0 +1,60 @@
+package com.inventory.benchmarks;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each create*Sheet method on its own, building the sheet in a fresh workbook without writing it.
+ * The input carries 1% malformed rows so the rejected-rows sheet has content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class SheetBenchmark {
+    @Param({"1000", "20000"})
+    int rows;
+
+    @Param({"EXECUTIVE_SUMMARY", "DETAILED_AGING", "CATEGORY_ANALYSIS", "RECOMMENDATIONS", "REJECTED_ROWS"})
+    String sheet;
+
+    @Param({"xssf", "sxssf"})
+    String workbook;
+
+    @Param({"42"})
+    long seed;
+
+    private App.Sheet builder;
+    private Object analysis;
+
+    @Setup(Level.Trial)
+    public void load() throws Throwable {
+        builder = App.Sheet.valueOf(sheet);
+        App.seedMockData(seed);
+        byte[] csv = new SyntheticInventory(seed, LocalDate.now(), 0.01)
+            .cachedBytes(SyntheticInventory.Format.CSV, rows);
+        analysis = App.analyzeInventory(App.readItems(new ByteArrayInputStream(csv), csv.length));
+    }
+
+    @Benchmark
+    public Workbook createSheet() throws Throwable {
+        Workbook wb = "sxssf".equals(workbook) ? new SXSSFWorkbook(null, 500, true) : new XSSFWorkbook();
+        try {
+            Map<?, ?> styles = App.createStyles(wb);
+            builder.create(wb, analysis, styles);
+            return wb;
+        } finally {
+            if (wb instanceof SXSSFWorkbook) ((SXSSFWorkbook) wb).dispose();
+            wb.close();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.inventory.benchmarks;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+
+/**
+ * Seeded generator for inventory uploads in the Item Name / Category / Quantity / Date Received layout.
+ * The same seed, as-of date and row count always give the same rows, in either CSV or XLSX.
+ *
+ * The data is skewed the way real stock lists are: a few categories hold most rows (Zipf), most stock
+ * is recent with a long tail of old items, slow-moving categories age further, goods arrive on
+ * weekdays, quantities are log-normal, and a few names need CSV quoting. An optional fraction of rows
+ * is malformed so the rejection path gets exercised too.
+ *
+ * XLSX output is limited to one sheet's worth of rows; larger inputs are CSV only.
+ * Run with: format (csv|xlsx) rows [seed] [output file]
+ */
+public final class SyntheticInventory {
+    public static final int MAX_XLSX_ROWS = SpreadsheetVersion.EXCEL2007.getMaxRows() - 1;
+    public static final File CACHE_DIR = new File(System.getProperty("java.io.tmpdir"), "inventory-bench");
+
+    public enum Format { CSV, XLSX }
+
+    private static final String[] CATEGORIES = {
+        "Electronics", "Office Supplies", "Furniture", "Apparel", "Home & Kitchen", "Tools",
+        "Sporting Goods", "Toys", "Health & Beauty", "Automotive", "Garden", "Seasonal", "Books", "Pet Supplies"
+    };
+    // How much slower than average each category sells; multiplies the sampled age
+    private static final double[] AGING_FACTOR = {
+        0.8, 0.7, 1.6, 1.1, 1.0, 1.3, 1.2, 0.9, 0.8, 1.4, 1.5, 2.2, 1.2, 0.9
+    };
+    private static final String[] PRODUCTS = {
+        "Widget", "Adapter", "Organizer", "Cable", "Bracket", "Kit", "Set", "Holder", "Cover", "Lamp",
+        "Bottle", "Stand", "Pack", "Case", "Tray", "Filter"
+    };
+    private static final double CATEGORY_SKEW = 1.2;
+
+    private final long seed;
+    private final LocalDate asOf;
+    private final double badRowRate;
+    private final double[] categoryCdf = new double[CATEGORIES.length];
+
+    public SyntheticInventory(long seed, LocalDate asOf, double badRowRate) {
+        this.seed = seed;
+        this.asOf = asOf;
+        this.badRowRate = badRowRate;
+        double total = 0;
+        for (int k = 0; k < CATEGORIES.length; k++) {
+            total += 1 / Math.pow(k + 1, CATEGORY_SKEW);
+            categoryCdf[k] = total;
+        }
+        for (int k = 0; k < categoryCdf.length; k++) categoryCdf[k] /= total;
+    }
+
+    public SyntheticInventory(long seed) {
+        this(seed, LocalDate.now(), 0);
+    }
+
+    public void write(Format format, int rows, OutputStream out) throws IOException {
+        if (format == Format.CSV) writeCsv(rows, out);
+        else writeXlsx(rows, out);
+    }
+
+    public void writeCsv(int rows, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        writer.write("Item Name,Category,Quantity,Date Received\n");
+        Rows source = new Rows();
+        StringBuilder line = new StringBuilder(96);
+        for (int i = 0; i < rows; i++) {
+            source.next();
+            line.setLength(0);
+            if (source.name.indexOf(',') >= 0) line.append('"').append(source.name).append('"');
+            else line.append(source.name);
+            line.append(',');
+            line.append(source.category).append(',');
+            if (source.badQuantity) line.append("n/a");
+            else line.append(source.quantity);
+            line.append(',');
+            if (!source.missingDate) line.append(source.received);
+            line.append('\n');
+            writer.append(line);
+        }
+        writer.flush();
+    }
+
+    public void writeXlsx(int rows, OutputStream out) throws IOException {
+        if (rows > MAX_XLSX_ROWS) {
+            throw new IllegalArgumentException(rows + " rows do not fit one XLSX sheet (max " + MAX_XLSX_ROWS + "); use CSV");
+        }
+        SXSSFWorkbook workbook = new SXSSFWorkbook(null, 1000, true);
+        try {
+            CellStyle dateStyle = workbook.createCellStyle();
+            dateStyle.setDataFormat(workbook.createDataFormat().getFormat("yyyy-mm-dd"));
+            Sheet sheet = workbook.createSheet("Inventory");
+            Row header = sheet.createRow(0);
+            header.createCell(0).setCellValue("Item Name");
+            header.createCell(1).setCellValue("Category");
+            header.createCell(2).setCellValue("Quantity");
+            header.createCell(3).setCellValue("Date Received");
+
+            Rows source = new Rows();
+            for (int i = 0; i < rows; i++) {
+                source.next();
+                Row row = sheet.createRow(i + 1);
+                row.createCell(0).setCellValue(source.name);
+                row.createCell(1).setCellValue(source.category);
+                if (source.badQuantity) row.createCell(2).setCellValue("n/a");
+                else row.createCell(2).setCellValue(source.quantity);
+                if (!source.missingDate) {
+                    Cell date = row.createCell(3);
+                    date.setCellValue(source.received);
+                    date.setCellStyle(dateStyle);
+                }
+            }
+            workbook.write(out);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+
+    /**
+     * Generated file for these settings under CACHE_DIR, written on first use. Large XLSX files take
+     * minutes to produce, so benchmark forks and repeated runs share them.
+     */
+    public File cachedFile(Format format, int rows) throws IOException {
+        CACHE_DIR.mkdirs();
+        String name = String.format("inventory-%d-s%d-b%s-%s.%s", rows, seed, badRowRate, asOf,
+                                    format.name().toLowerCase());
+        File file = new File(CACHE_DIR, name);
+        if (file.isFile()) return file;
+
+        File partial = File.createTempFile("inventory-", ".partial", CACHE_DIR);
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), 1 << 16)) {
+                write(format, rows, out);
+            }
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            partial.delete();
+        }
+        return file;
+    }
+
+    public byte[] cachedBytes(Format format, int rows) throws IOException {
+        return Files.readAllBytes(cachedFile(format, rows).toPath());
+    }
+
+    /** Row cursor over the seeded stream; fields hold the current row. */
+    private class Rows {
+        private final SplittableRandom random = new SplittableRandom(seed);
+        private int index;
+        String name, category;
+        int quantity;
+        LocalDate received;
+        boolean badQuantity, missingDate;
+
+        void next() {
+            index++;
+            int c = category();
+            category = CATEGORIES[c];
+
+            String product = PRODUCTS[random.nextInt(PRODUCTS.length)];
+            StringBuilder n = new StringBuilder(40).append(category).append(' ').append(product);
+            // A few names carry a size suffix with a comma, as exported catalogs often do
+            if (random.nextInt(50) == 0) n.append(", Large");
+            name = n.append(" #").append(index).toString();
+
+            quantity = (int) Math.min(5000, Math.max(1, Math.round(Math.exp(3 + 1.1 * gaussian()))));
+            received = receivedDate(c);
+
+            badQuantity = false;
+            missingDate = false;
+            if (badRowRate > 0 && random.nextDouble() < badRowRate) {
+                if (random.nextBoolean()) badQuantity = true;
+                else missingDate = true;
+            }
+        }
+
+        // Box-Muller; SplittableRandom has no nextGaussian before Java 17
+        private double gaussian() {
+            return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+        }
+
+        private int category() {
+            double u = random.nextDouble();
+            int k = 0;
+            while (k < categoryCdf.length - 1 && categoryCdf[k] < u) k++;
+            return k;
+        }
+
+        /** Mostly recent stock, a band of moderately aged stock, and a long tail of old items. */
+        private LocalDate receivedDate(int category) {
+            double u = random.nextDouble();
+            double age;
+            if (u < 0.60) age = -25 * Math.log(1 - random.nextDouble());
+            else if (u < 0.85) age = 30 + 90 * random.nextDouble();
+            else if (u < 0.97) age = 90 - 120 * Math.log(1 - random.nextDouble());
+            else age = 365 + 730 * random.nextDouble();
+            LocalDate date = asOf.minusDays(Math.min(3650, Math.round(age * AGING_FACTOR[category])));
+            // Deliveries land on weekdays
+            if (date.getDayOfWeek() == DayOfWeek.SATURDAY) date = date.minusDays(1);
+            else if (date.getDayOfWeek() == DayOfWeek.SUNDAY) date = date.minusDays(2);
+            return date;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticInventory csv|xlsx rows [seed] [output file]");
+            System.exit(2);
+        }
+        Format format = Format.valueOf(args[0].toUpperCase());
+        int rows = Integer.parseInt(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        SyntheticInventory generator = new SyntheticInventory(seed);
+        if (args.length > 3) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[3]), 1 << 16)) {
+                generator.write(format, rows, out);
+            }
+            System.out.println("Wrote " + rows + " rows to " + args[3]);
+        } else {
+            System.out.println("Wrote " + rows + " rows to " + generator.cachedFile(format, rows));
+        }
+    }
+}
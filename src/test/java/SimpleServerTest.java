@@ -0,0 +1,294 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Request framing and multipart parsing in SimpleServer. The multipart tests drive the boundary
+ * scanner directly; the others talk raw HTTP/1.1 to a server on a free port, serving the repository
+ * root the way the tests run.
+ */
+class SimpleServerTest {
+    private static final String BOUNDARY = "----form-boundary-7MA4YWxk";
+    private static final String CSV = "Item Name,Category,Quantity,Date Received\nWidget,Tools,5,2024-01-01\n";
+
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        SimpleServer server = new SimpleServer(0);
+        port = server.port();
+        Thread selector = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "simple-server-test");
+        selector.setDaemon(true);
+        selector.start();
+    }
+
+    @Test
+    void multipartFindsBoundariesSplitAcrossTheBuffer() throws IOException {
+        String head = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.csv\"\r\n\r\n";
+        // Sizes that put the delimiter at every offset around the end of the first 64 KB read
+        int around = 64 * 1024 - 2 - head.length();
+        for (int size = around - 50; size <= around + 50; size++) {
+            byte[] content = content(size);
+            byte[] body = form(head, content, "true");
+            for (int readSize : new int[] {1, 7, 8192, 64 * 1024, body.length}) {
+                SimpleServer.Multipart form = new SimpleServer.Multipart(new TrickleInputStream(body, readSize), BOUNDARY);
+                SimpleServer.Multipart.Part file = form.next();
+                assertEquals("file", file.name);
+                assertArrayEquals(content, file.content.readAllBytes(), "size " + size + ", reads of " + readSize);
+                SimpleServer.Multipart.Part field = form.next();
+                assertEquals("includeSummary", field.name);
+                assertEquals("true", field.text(1024));
+                assertNull(form.next());
+            }
+        }
+    }
+
+    @Test
+    void multipartSkipsUnreadParts() throws IOException {
+        String head = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"\r\n\r\n";
+        byte[] body = form(head, content(200_000), "false");
+        SimpleServer.Multipart form = new SimpleServer.Multipart(new TrickleInputStream(body, 5000), BOUNDARY);
+        assertEquals("file", form.next().name);
+        SimpleServer.Multipart.Part field = form.next();
+        assertEquals("includeSummary", field.name);
+        assertEquals("false", field.text(1024));
+        assertNull(form.next());
+    }
+
+    @Test
+    void multipartRejectsATruncatedBody() throws IOException {
+        String head = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"\r\n\r\n";
+        byte[] body = Arrays.copyOf(form(head, content(1000), "true"), head.length() + 500);
+        SimpleServer.Multipart form = new SimpleServer.Multipart(new ByteArrayInputStream(body), BOUNDARY);
+        InputStream file = form.next().content;
+        SimpleServer.HttpError error = assertThrows(SimpleServer.HttpError.class, file::readAllBytes);
+        assertEquals(400, error.status);
+    }
+
+    @Test
+    void chunkedBodyWithTrailersLeavesTheNextRequestIntact() throws IOException {
+        byte[] form = form("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.csv\"\r\n\r\n",
+                           CSV.getBytes(StandardCharsets.UTF_8), "true");
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        write(request, "POST /analyze HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n"
+                       + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n\r\n");
+        for (int off = 0; off < form.length; off += 100) {
+            int n = Math.min(100, form.length - off);
+            write(request, Integer.toHexString(n) + ";ext=1\r\n");
+            request.write(form, off, n);
+            write(request, "\r\n");
+        }
+        write(request, "0\r\nX-Checksum: abc\r\nX-Other: def\r\n\r\n");
+        write(request, "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+        try (Client client = new Client()) {
+            client.send(request.toByteArray());
+            Reply analysis = client.read(false);
+            assertEquals(200, analysis.status);
+            assertTrue(analysis.text().contains("\"totalItems\":1"), analysis.text());
+            Reply page = client.read(false);
+            assertEquals(200, page.status);
+            assertTrue(page.text().contains("<html"), "index.html after the chunked upload");
+        }
+    }
+
+    @Test
+    void pipelinedRequestsAreAnsweredInOrder() throws IOException {
+        try (Client client = new Client()) {
+            client.send(("GET /style.css HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                         + "GET /missing.css HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                         + "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            Reply css = client.read(false);
+            assertEquals(200, css.status);
+            assertTrue(css.header("Content-Type").startsWith("text/css"));
+            assertEquals(404, client.read(false).status);
+            Reply page = client.read(false);
+            assertEquals(200, page.status);
+            assertTrue(page.header("Content-Type").startsWith("text/html"));
+        }
+    }
+
+    @Test
+    void headAndNotModifiedSendNoBody() throws IOException {
+        try (Client client = new Client()) {
+            client.send("GET /style.css HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Reply full = client.read(false);
+            String etag = full.header("ETag");
+            assertNotNull(etag);
+
+            client.send("HEAD /style.css HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Reply head = client.read(true);
+            assertEquals(200, head.status);
+            assertEquals(String.valueOf(full.body.length), head.header("Content-Length"));
+
+            client.send("GET /style.css HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: " + etag + "\r\n\r\n");
+            Reply notModified = client.read(true);
+            assertEquals(304, notModified.status);
+            assertEquals(etag, notModified.header("ETag"));
+
+            // Any body bytes sent after the HEAD or the 304 would be misread as this response
+            client.send("GET /style.css HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Reply again = client.read(false);
+            assertEquals(200, again.status);
+            assertArrayEquals(full.body, again.body);
+        }
+    }
+
+    @Test
+    void expectContinueWaitsForTheGoAhead() throws IOException {
+        byte[] form = form("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.csv\"\r\n\r\n",
+                           CSV.getBytes(StandardCharsets.UTF_8), "true");
+        try (Client client = new Client()) {
+            client.send("POST /analyze HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\nContent-Length: " + form.length
+                        + "\r\nContent-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n\r\n");
+            assertEquals(100, client.read(true).status);
+            client.send(form);
+            Reply analysis = client.read(false);
+            assertEquals(200, analysis.status);
+            assertTrue(analysis.text().contains("\"totalItems\":1"), analysis.text());
+        }
+    }
+
+    @Test
+    void expectContinueIsNotSentForARejectedRequest() throws IOException {
+        try (Client client = new Client()) {
+            client.send("POST /metrics HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\nContent-Length: 1000\r\n\r\n");
+            Reply reply = client.read(false);
+            assertEquals(405, reply.status);
+            assertEquals("close", reply.header("Connection"));
+        }
+    }
+
+    /** Bytes that contain partial delimiters ("\r\n--" not followed by the boundary) throughout. */
+    private static byte[] content(int size) {
+        byte[] pattern = "\r\n--x,".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) content[i] = pattern[i % pattern.length];
+        return content;
+    }
+
+    private static byte[] form(String head, byte[] content, String includeSummary) throws IOException {
+        ByteArrayOutputStream form = new ByteArrayOutputStream();
+        write(form, head);
+        form.write(content);
+        write(form, "\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"includeSummary\"\r\n\r\n"
+                    + includeSummary + "\r\n--" + BOUNDARY + "--\r\n");
+        return form.toByteArray();
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** Hands out at most readSize bytes per read, as a slow network would. */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int readSize;
+
+        TrickleInputStream(byte[] bytes, int readSize) {
+            super(bytes);
+            this.readSize = readSize;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, readSize));
+        }
+    }
+
+    private static class Client implements Closeable {
+        private final Socket socket;
+        private final InputStream in;
+
+        Client() throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(10_000);
+            in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        void send(String text) throws IOException {
+            send(text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        void send(byte[] bytes) throws IOException {
+            socket.getOutputStream().write(bytes);
+            socket.getOutputStream().flush();
+        }
+
+        /** The next response; noBody for HEAD requests and interim responses. */
+        Reply read(boolean noBody) throws IOException {
+            String status = line();
+            assertTrue(status.startsWith("HTTP/1.1 "), status);
+            Reply reply = new Reply(Integer.parseInt(status.substring(9, 12)));
+            for (String line = line(); !line.isEmpty(); line = line()) {
+                int colon = line.indexOf(':');
+                reply.headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+            if (noBody || reply.status == 204 || reply.status == 304) return reply;
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if ("chunked".equals(reply.header("Transfer-Encoding"))) {
+                for (int size = Integer.parseInt(line(), 16); size > 0; size = Integer.parseInt(line(), 16)) {
+                    body.write(bytes(size));
+                    assertEquals("", line());
+                }
+                assertEquals("", line());
+            } else {
+                body.write(bytes(Integer.parseInt(reply.header("Content-Length"))));
+            }
+            reply.body = body.toByteArray();
+            return reply;
+        }
+
+        private byte[] bytes(int n) throws IOException {
+            byte[] bytes = in.readNBytes(n);
+            assertEquals(n, bytes.length, "response ended early");
+            return bytes;
+        }
+
+        private String line() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                if (c == -1) throw new EOFException("response ended early");
+                if (c != '\r') line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static class Reply {
+        final int status;
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        byte[] body = new byte[0];
+
+        Reply(int status) {
+            this.status = status;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}